@@ -1,19 +1,45 @@
 package image;
 
+import java.awt.AlphaComposite;
 import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.imageio.ImageIO;
 
 public class ImageStoryboardGenerator {
 
+    private static final int COLUMN = 5;
+
+    // number of worker threads decoding and labelling images, 1 means the
+    // calling thread does everything
+    private int threads = 1;
+
+    // upper bound of decoded images held in memory at once (queued, being
+    // decoded or waiting to be drawn)
+    private int maxDecodedImages = 16;
+
+    // compose and encode one row of tiles at a time instead of the whole sheet
+    private boolean streaming = false;
+
+    // labelled tiles of previous runs, null to always decode the sources
+    private TileCache tileCache = null;
+
     /**
      * Create an image storyboard based on images, with a header on top of it.
-     * The images should have same dimensions(unitWidth and unitHeight).
+     * The images should have same dimensions(unitWidth and unitHeight), larger
+     * ones are decoded at reduced resolution and scaled down into their cell.
      * 
      * @param images
      * @param header
@@ -23,9 +49,117 @@ public class ImageStoryboardGenerator {
      */
     public static void generate(File[] images, String header, int unitWidth,
             int unitHeight, String outputPath) throws IOException {
-        int column = 5;
-        int row = (images.length / column)
-                + (images.length % column == 0 ? 0 : 1);
+        new ImageStoryboardGenerator().write(images, header, unitWidth,
+                unitHeight, outputPath);
+    }
+
+    /**
+     * Use a pool of worker threads to decode and label the images. The output
+     * is identical to the sequential one since the tiles are still drawn in
+     * their original order.
+     *
+     * @param threads number of workers, 1 disables the pool
+     */
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be positive: "
+                    + threads);
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * Limit how many decoded images can be held in memory at once when the
+     * worker pool is used.
+     *
+     * @param maxDecodedImages
+     */
+    public void setMaxDecodedImages(int maxDecodedImages) {
+        if (maxDecodedImages < 1) {
+            throw new IllegalArgumentException(
+                    "maxDecodedImages must be positive: " + maxDecodedImages);
+        }
+        this.maxDecodedImages = maxDecodedImages;
+    }
+
+    /**
+     * Compose and encode the storyboard one row of tiles at a time, so that
+     * only a single row has to be held in memory. Only png output is
+     * supported in this mode, the pixels are the same as the ones of the
+     * non-streaming output.
+     *
+     * @param streaming
+     */
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    /**
+     * Reuse the labelled tiles of previous runs, images whose file has not
+     * changed are then not decoded again.
+     *
+     * @param tileCache the cache to use, null to disable caching
+     */
+    public void setTileCache(TileCache tileCache) {
+        this.tileCache = tileCache;
+    }
+
+    /**
+     * Same as {@link #generate(File[], String, int, int, String)}, but using
+     * the settings of this generator.
+     *
+     * @param images
+     * @param header
+     * @param unitWidth
+     * @param unitHeight
+     * @param outputPath
+     * @throws IOException
+     */
+    public void write(File[] images, String header, int unitWidth,
+            int unitHeight, String outputPath) throws IOException {
+        compose(images.length, openTiles(images, unitWidth, unitHeight),
+                header, unitWidth, unitHeight, outputPath);
+    }
+
+    /**
+     * Create an image storyboard from images which are already in memory, e.g.
+     * frames taken from a video. Frames of another size than unitWidth x
+     * unitHeight are scaled into their cell.
+     *
+     * @param frames
+     * @param labels the label put on each frame, same length as frames
+     * @param header
+     * @param unitWidth
+     * @param unitHeight
+     * @param outputPath
+     * @throws IOException
+     */
+    public void write(BufferedImage[] frames, String[] labels, String header,
+            int unitWidth, int unitHeight, String outputPath)
+            throws IOException {
+        if (frames.length != labels.length) {
+            throw new IllegalArgumentException(frames.length + " frames but "
+                    + labels.length + " labels");
+        }
+        compose(frames.length, new FrameTileIterator(frames, labels,
+                unitWidth, unitHeight), header, unitWidth, unitHeight,
+                outputPath);
+    }
+
+    private void compose(int count, TileIterator tiles, String header,
+            int unitWidth, int unitHeight, String outputPath)
+            throws IOException {
+        try {
+            drawTiles(count, tiles, header, unitWidth, unitHeight, outputPath);
+        } finally {
+            tiles.close();
+        }
+    }
+
+    private void drawTiles(int count, TileIterator tiles, String header,
+            int unitWidth, int unitHeight, String outputPath)
+            throws IOException {
+        int row = (count / COLUMN) + (count % COLUMN == 0 ? 0 : 1);
 
         boolean headerNeeded = header != null && !header.isEmpty();
         String imageType = outputPath.split("\\.")[1];
@@ -35,6 +169,12 @@ public class ImageStoryboardGenerator {
             row += 1;
         }
 
+        if (streaming) {
+            writeBanded(tiles, headerNeeded ? header : null, unitWidth,
+                    unitHeight, row, imageType, outputPath);
+            return;
+        }
+
         int imageColorMode;
         if (imageType.equalsIgnoreCase("png")) {
             imageColorMode = BufferedImage.TYPE_INT_ARGB;
@@ -42,21 +182,20 @@ public class ImageStoryboardGenerator {
             imageColorMode = BufferedImage.TYPE_INT_BGR;
         }
 
-        BufferedImage output = new BufferedImage(unitWidth * column, unitHeight
+        BufferedImage output = new BufferedImage(unitWidth * COLUMN, unitHeight
                 * row, imageColorMode);
         Graphics2D g = output.createGraphics();
 
         // draw the header
         if (headerNeeded) {
-            drawHeader(g, header, unitWidth * column, unitHeight);
+            drawHeader(g, header, unitWidth * COLUMN, unitHeight);
         }
 
         // draw each image
         int x = 0, y = headerNeeded ? unitHeight : 0;
         int outputWidth = output.getWidth();
-        for (File image : images) {
-            BufferedImage bi = ImageIO.read(image);
-            putLabel(bi, image.getName());
+        while (tiles.hasNext()) {
+            BufferedImage bi = tiles.next();
             g.drawImage(bi, x, y, null);
             x += unitWidth;
             if (x >= outputWidth) {
@@ -68,8 +207,231 @@ public class ImageStoryboardGenerator {
         ImageIO.write(output, imageType, new File(outputPath));
     }
 
+    // Same layout as drawTiles(), but the rows are drawn into a single band
+    // which is handed to the encoder and then cleared for the next row.
+    private void writeBanded(TileIterator tiles, String header, int unitWidth,
+            int unitHeight, int row, String imageType, String outputPath)
+            throws IOException {
+        if (!imageType.equalsIgnoreCase("png")) {
+            throw new IllegalArgumentException(
+                    "streaming output only supports png: " + outputPath);
+        }
+
+        int outputWidth = unitWidth * COLUMN;
+        BufferedImage band = new BufferedImage(outputWidth, unitHeight,
+                BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = band.createGraphics();
+
+        try (StreamingPngWriter writer = new StreamingPngWriter(new File(
+                outputPath), outputWidth, unitHeight * row)) {
+            // draw the header
+            if (header != null) {
+                drawHeader(g, header, outputWidth, unitHeight);
+                writer.writeRows(band, unitHeight);
+            }
+
+            // draw each image
+            int x = 0;
+            while (tiles.hasNext()) {
+                if (x == 0) {
+                    clear(g, outputWidth, unitHeight);
+                }
+                BufferedImage bi = tiles.next();
+                g.drawImage(bi, x, 0, null);
+                x += unitWidth;
+                if (x >= outputWidth) {
+                    x = 0;
+                    writer.writeRows(band, unitHeight);
+                }
+            }
+
+            // the last row is not complete
+            if (x > 0) {
+                writer.writeRows(band, unitHeight);
+            }
+        } finally {
+            g.dispose();
+        }
+    }
+
+    // make the band fully transparent again, like a newly created image
+    private static void clear(Graphics2D g, int width, int height) {
+        g.setComposite(AlphaComposite.Clear);
+        g.fillRect(0, 0, width, height);
+        g.setComposite(AlphaComposite.SrcOver);
+    }
+
+    private TileIterator openTiles(File[] images, int unitWidth,
+            int unitHeight) {
+        return threads > 1 ? new PooledTileIterator(images, unitWidth,
+                unitHeight) : new SequentialTileIterator(images, unitWidth,
+                unitHeight);
+    }
+
+    // read an image at tile size and put its file name on it
+    private BufferedImage loadTile(File image, int unitWidth, int unitHeight)
+            throws IOException {
+        String label = image.getName();
+        if (tileCache != null) {
+            BufferedImage cached = tileCache.get(image, unitWidth, unitHeight,
+                    label);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        BufferedImage bi = TileDecoder.decode(image, unitWidth, unitHeight);
+        putLabel(bi, label);
+
+        if (tileCache != null) {
+            tileCache.put(image, unitWidth, unitHeight, label, bi);
+        }
+        return bi;
+    }
+
+    // hands out the labelled tiles in the order of the source files
+    private interface TileIterator {
+
+        boolean hasNext();
+
+        BufferedImage next() throws IOException;
+
+        void close();
+    }
+
+    private class SequentialTileIterator implements TileIterator {
+
+        private final File[] images;
+        private final int unitWidth;
+        private final int unitHeight;
+        private int next = 0;
+
+        SequentialTileIterator(File[] images, int unitWidth, int unitHeight) {
+            this.images = images;
+            this.unitWidth = unitWidth;
+            this.unitHeight = unitHeight;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next < images.length;
+        }
+
+        @Override
+        public BufferedImage next() throws IOException {
+            return loadTile(images[next++], unitWidth, unitHeight);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    // labels frames which are already decoded, scaling them if needed
+    private static class FrameTileIterator implements TileIterator {
+
+        private final BufferedImage[] frames;
+        private final String[] labels;
+        private final int unitWidth;
+        private final int unitHeight;
+        private int next = 0;
+
+        FrameTileIterator(BufferedImage[] frames, String[] labels,
+                int unitWidth, int unitHeight) {
+            this.frames = frames;
+            this.labels = labels;
+            this.unitWidth = unitWidth;
+            this.unitHeight = unitHeight;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next < frames.length;
+        }
+
+        @Override
+        public BufferedImage next() {
+            BufferedImage frame = frames[next];
+            BufferedImage bi = TileDecoder.fit(frame, unitWidth, unitHeight);
+            putLabel(bi, labels[next]);
+            next++;
+            return bi;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    // Keeps a sliding window of at most maxDecodedImages tasks on the pool.
+    // The window only moves forward once the oldest tile has been taken, so a
+    // slow image can not let the workers run away and fill the heap.
+    private class PooledTileIterator implements TileIterator {
+
+        private final File[] images;
+        private final int unitWidth;
+        private final int unitHeight;
+        private final ExecutorService executor;
+        private final Deque<Future<BufferedImage>> pending = new ArrayDeque<>();
+        private int submitted = 0;
+        private int taken = 0;
+
+        PooledTileIterator(File[] images, int unitWidth, int unitHeight) {
+            this.images = images;
+            this.unitWidth = unitWidth;
+            this.unitHeight = unitHeight;
+            this.executor = Executors.newFixedThreadPool(Math.min(threads,
+                    Math.max(1, images.length)));
+        }
+
+        @Override
+        public boolean hasNext() {
+            return taken < images.length;
+        }
+
+        @Override
+        public BufferedImage next() throws IOException {
+            // the previously taken tile has been drawn, so its slot is free
+            while (submitted < images.length
+                    && pending.size() < maxDecodedImages) {
+                final File image = images[submitted++];
+                pending.add(executor.submit(new Callable<BufferedImage>() {
+                    @Override
+                    public BufferedImage call() throws IOException {
+                        return loadTile(image, unitWidth, unitHeight);
+                    }
+                }));
+            }
+
+            taken++;
+            try {
+                return pending.poll().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(
+                        "interrupted while waiting for image "
+                                + images[taken - 1]);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new IOException("could not load image "
+                        + images[taken - 1], cause);
+            }
+        }
+
+        @Override
+        public void close() {
+            executor.shutdownNow();
+        }
+    }
+
     // draw a header with white foreground color and black background color
-    private static void drawHeader(Graphics2D g, String header, int width,
+    static void drawHeader(Graphics2D g, String header, int width,
             int height) {
         // draw the background
         Rectangle2D headerBounds = new Rectangle2D.Float(0, 0, width, height);
@@ -86,7 +448,7 @@ public class ImageStoryboardGenerator {
                 (height - (int) (bounds.getHeight())) / 2);
     }
 
-    private static void putLabel(BufferedImage image, String label) {
+    static void putLabel(BufferedImage image, String label) {
         Graphics2D g = image.createGraphics();
         Rectangle2D bounds = g.getFont().getStringBounds(label,
                 g.getFontRenderContext());
@@ -4,12 +4,19 @@ import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Paths;
 
 import javax.imageio.ImageIO;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
 import org.junit.Test;
 
 public class ImageTest {
@@ -20,6 +27,163 @@ public class ImageTest {
                 "Sample header", 100, 100, "output.jpg");
     }
 
+    @Test
+    public void testGenerateInParallel() throws IOException {
+        File[] images = new File("D:/Images").listFiles();
+        ImageStoryboardGenerator.generate(images, "Sample header", 100, 100,
+                "sequential.png");
+
+        ImageStoryboardGenerator generator = new ImageStoryboardGenerator();
+        generator.setThreads(4);
+        generator.setMaxDecodedImages(8);
+        generator.write(images, "Sample header", 100, 100, "parallel.png");
+
+        assertArrayEquals(Files.readAllBytes(Paths.get("sequential.png")),
+                Files.readAllBytes(Paths.get("parallel.png")));
+    }
+
+    @Test
+    public void testGenerateStreaming() throws IOException {
+        File[] images = new File("D:/Images").listFiles();
+        ImageStoryboardGenerator.generate(images, "Sample header", 100, 100,
+                "whole.png");
+
+        ImageStoryboardGenerator generator = new ImageStoryboardGenerator();
+        generator.setStreaming(true);
+        generator.write(images, "Sample header", 100, 100, "banded.png");
+
+        BufferedImage whole = ImageIO.read(new File("whole.png"));
+        BufferedImage banded = ImageIO.read(new File("banded.png"));
+        assertEquals(whole.getWidth(), banded.getWidth());
+        assertEquals(whole.getHeight(), banded.getHeight());
+        assertArrayEquals(
+                whole.getRGB(0, 0, whole.getWidth(), whole.getHeight(), null,
+                        0, whole.getWidth()),
+                banded.getRGB(0, 0, banded.getWidth(), banded.getHeight(),
+                        null, 0, banded.getWidth()));
+    }
+
+    @Test
+    public void testTileCache() throws IOException {
+        File[] images = new File("D:/Images").listFiles();
+        File cacheDirectory = Files.createTempDirectory("tiles").toFile();
+        TileCache cache = new TileCache(cacheDirectory, 64 * 1024 * 1024,
+                8 * 1024 * 1024);
+
+        ImageStoryboardGenerator generator = new ImageStoryboardGenerator();
+        generator.setTileCache(cache);
+        generator.write(images, "Sample header", 100, 100, "cold.png");
+        assertEquals(images.length, cache.getMisses());
+
+        // a new cache on the same directory only has the tiles on disk
+        cache = new TileCache(cacheDirectory, 64 * 1024 * 1024,
+                8 * 1024 * 1024);
+        generator.setTileCache(cache);
+        generator.write(images, "Sample header", 100, 100, "warm.png");
+        assertEquals(0, cache.getMisses());
+        assertEquals(images.length, cache.getDiskHits());
+
+        assertArrayEquals(Files.readAllBytes(Paths.get("cold.png")),
+                Files.readAllBytes(Paths.get("warm.png")));
+    }
+
+    @Test
+    public void testDecodeAtTileSize() throws IOException {
+        File source = File.createTempFile("large", ".jpg");
+        source.deleteOnExit();
+        ImageIO.write(new BufferedImage(6000, 4000,
+                BufferedImage.TYPE_3BYTE_BGR), "jpg", source);
+
+        assertEquals(40, TileDecoder.subsampling(6000, 4000, 100, 100));
+
+        BufferedImage tile = TileDecoder.decode(source, 100, 100);
+        assertEquals(100, tile.getWidth());
+        assertEquals(100, tile.getHeight());
+    }
+
+    @Test
+    public void testDecodeExifThumbnail() throws IOException {
+        // a red camera picture with a blue EXIF thumbnail of the same ratio
+        BufferedImage thumbnail = new BufferedImage(300, 200,
+                BufferedImage.TYPE_3BYTE_BGR);
+        fill(thumbnail, Color.BLUE);
+        BufferedImage image = new BufferedImage(3000, 2000,
+                BufferedImage.TYPE_3BYTE_BGR);
+        fill(image, Color.RED);
+        File source = File.createTempFile("camera", ".jpg");
+        source.deleteOnExit();
+        Files.write(source.toPath(), withExif(jpeg(image), jpeg(thumbnail)));
+
+        BufferedImage tile = TileDecoder.decode(source, 150, 100);
+        assertEquals(150, tile.getWidth());
+        Color center = new Color(tile.getRGB(75, 50));
+        assertTrue(center.getBlue() > 200 && center.getRed() < 50);
+
+        // too small for the tile, or padded to another ratio: decoded from
+        // the picture
+        tile = TileDecoder.decode(source, 600, 400);
+        center = new Color(tile.getRGB(300, 200));
+        assertTrue(center.getRed() > 200 && center.getBlue() < 50);
+
+        BufferedImage padded = new BufferedImage(320, 240,
+                BufferedImage.TYPE_3BYTE_BGR);
+        fill(padded, Color.BLUE);
+        Files.write(source.toPath(), withExif(jpeg(image), jpeg(padded)));
+        tile = TileDecoder.decode(source, 150, 100);
+        center = new Color(tile.getRGB(75, 50));
+        assertTrue(center.getRed() > 200 && center.getBlue() < 50);
+    }
+
+    private static void fill(BufferedImage image, Color color) {
+        Graphics2D g = image.createGraphics();
+        g.setColor(color);
+        g.fillRect(0, 0, image.getWidth(), image.getHeight());
+        g.dispose();
+    }
+
+    private static byte[] jpeg(BufferedImage image) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpg", out);
+        return out.toByteArray();
+    }
+
+    // insert an EXIF APP1 segment, with only a thumbnail in its IFD1, after
+    // the JFIF APP0 segment of a JPEG file
+    private static byte[] withExif(byte[] jpeg, byte[] thumbnail)
+            throws IOException {
+        ByteArrayOutputStream tiff = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(tiff);
+        out.writeBytes("MM");
+        out.writeShort(42);
+        out.writeInt(8);
+        // IFD0, empty, then IFD1 at 14 with its data at 44
+        out.writeShort(0);
+        out.writeInt(14);
+        out.writeShort(2);
+        out.writeShort(0x0201);
+        out.writeShort(4);
+        out.writeInt(1);
+        out.writeInt(44);
+        out.writeShort(0x0202);
+        out.writeShort(4);
+        out.writeInt(1);
+        out.writeInt(thumbnail.length);
+        out.writeInt(0);
+        out.write(thumbnail);
+
+        int app0 = 4 + ((jpeg[4] & 0xFF) << 8 | jpeg[5] & 0xFF);
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        DataOutputStream segment = new DataOutputStream(file);
+        segment.write(jpeg, 0, app0);
+        segment.writeShort(0xFFE1);
+        segment.writeShort(2 + 6 + tiff.size());
+        segment.writeBytes("Exif");
+        segment.writeShort(0);
+        tiff.writeTo(segment);
+        segment.write(jpeg, app0, jpeg.length - app0);
+        return file.toByteArray();
+    }
+
     @Test
     public void testCombineImages() throws IOException {
         int imageWidth = 100;
@@ -0,0 +1,123 @@
+package image;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * End-to-end benchmark of {@link ImageStoryboardGenerator}, on synthetic jpeg
+ * images written to a temporary directory during the setup.
+ *
+ * Run it through {@link #main(String[])} to get the allocation rate of the
+ * GC profiler next to the timings.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class StoryboardBenchmark {
+
+    @Param({ "25", "100" })
+    public int imageCount;
+
+    // size of the source images, equal to the tile size or a camera frame
+    @Param({ "100", "1920" })
+    public int sourceWidth;
+
+    @Param({ "1", "4" })
+    public int threads;
+
+    @Param({ "png", "jpg" })
+    public String format;
+
+    private File directory;
+    private File[] images;
+    private String outputPath;
+    private ImageStoryboardGenerator generator;
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("storyboard-bench").toFile();
+        images = createImages(directory, imageCount, sourceWidth,
+                sourceWidth * 9 / 16);
+        outputPath = new File(directory, "output." + format).getPath();
+
+        generator = new ImageStoryboardGenerator();
+        generator.setThreads(threads);
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Benchmark
+    public void generate() throws IOException {
+        generator.write(images, "Benchmark", 100, 100, outputPath);
+    }
+
+    /**
+     * Write count jpeg images of the given size, with a gradient and some
+     * noise so that they do not compress unrealistically well.
+     */
+    static File[] createImages(File directory, int count, int width,
+            int height) throws IOException {
+        Random random = new Random(42);
+        File[] files = new File[count];
+        for (int i = 0; i < count; i++) {
+            BufferedImage image = new BufferedImage(width, height,
+                    BufferedImage.TYPE_3BYTE_BGR);
+            Graphics2D g = image.createGraphics();
+            g.setPaint(new GradientPaint(0, 0, new Color(random.nextInt()),
+                    width, height, new Color(random.nextInt())));
+            g.fillRect(0, 0, width, height);
+            for (int n = 0; n < width * height / 50; n++) {
+                image.setRGB(random.nextInt(width), random.nextInt(height),
+                        random.nextInt());
+            }
+            g.dispose();
+
+            files[i] = new File(directory, String.format("image-%04d.jpg", i));
+            ImageIO.write(image, "jpg", files[i]);
+        }
+        return files;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(StoryboardBenchmark.class.getSimpleName())
+                .include(StoryboardDrawBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class).build()).run();
+    }
+
+}
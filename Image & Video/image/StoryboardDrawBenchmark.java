@@ -0,0 +1,76 @@
+package image;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Micro benchmarks of the drawing steps of {@link ImageStoryboardGenerator},
+ * for the image types used by the generator and the capture code.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class StoryboardDrawBenchmark {
+
+    @Param({ "TYPE_INT_ARGB", "TYPE_INT_BGR", "TYPE_3BYTE_BGR" })
+    public String imageType;
+
+    @Param({ "100", "320", "1920" })
+    public int width;
+
+    private BufferedImage image;
+    private Graphics2D graphics;
+
+    @Setup
+    public void setUp() throws ReflectiveOperationException {
+        int type = BufferedImage.class.getField(imageType).getInt(null);
+        image = new BufferedImage(width, width * 9 / 16, type);
+        graphics = image.createGraphics();
+    }
+
+    @TearDown
+    public void tearDown() {
+        graphics.dispose();
+    }
+
+    @Benchmark
+    public BufferedImage drawHeader() {
+        ImageStoryboardGenerator.drawHeader(graphics, "Benchmark header",
+                image.getWidth(), image.getHeight());
+        return image;
+    }
+
+    @Benchmark
+    public BufferedImage putLabel() {
+        ImageStoryboardGenerator.putLabel(image, "image-0001.jpg");
+        return image;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(StoryboardDrawBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class).build()).run();
+    }
+
+}
@@ -0,0 +1,195 @@
+package image;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Write a 8 bit RGBA PNG image band by band, so that only the band being
+ * written needs to be held in memory. Rows are compressed as soon as they are
+ * written and emitted as a sequence of IDAT chunks.
+ */
+public class StreamingPngWriter implements Closeable {
+
+    private static final byte[] SIGNATURE = { (byte) 137, 80, 78, 71, 13, 10,
+            26, 10 };
+
+    // bytes of compressed data per IDAT chunk
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    // PNG "Sub" filter, each byte is stored as the difference to the byte of
+    // the pixel on its left
+    private static final int FILTER_SUB = 1;
+
+    private final DataOutputStream out;
+    private final int width;
+    private final int height;
+    private final Deflater deflater = new Deflater();
+    private final IdatOutputStream chunks = new IdatOutputStream();
+    private final DeflaterOutputStream idat;
+
+    private final int[] argb;
+    private final byte[] scanline;
+    private int rowsWritten = 0;
+
+    /**
+     * Start a PNG image of the given size, the header is written right away.
+     *
+     * @param file the output file
+     * @param width
+     * @param height
+     * @throws IOException
+     */
+    public StreamingPngWriter(File file, int width, int height)
+            throws IOException {
+        this(new FileOutputStream(file), width, height);
+    }
+
+    public StreamingPngWriter(OutputStream out, int width, int height)
+            throws IOException {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("invalid image size: " + width
+                    + "x" + height);
+        }
+
+        this.out = new DataOutputStream(new BufferedOutputStream(out));
+        this.width = width;
+        this.height = height;
+        this.argb = new int[width];
+        this.scanline = new byte[1 + width * 4];
+        this.idat = new DeflaterOutputStream(chunks, deflater,
+                CHUNK_SIZE);
+
+        this.out.write(SIGNATURE);
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream(13);
+        DataOutputStream ihdr = new DataOutputStream(header);
+        ihdr.writeInt(width);
+        ihdr.writeInt(height);
+        ihdr.writeByte(8); // bit depth
+        ihdr.writeByte(6); // color type: RGBA
+        ihdr.writeByte(0); // compression: deflate
+        ihdr.writeByte(0); // filter method: adaptive
+        ihdr.writeByte(0); // interlace: none
+        writeChunk("IHDR", header.toByteArray(), header.size());
+    }
+
+    /**
+     * Append the given number of rows, taken from the top of the band.
+     *
+     * @param band an image at least as wide as the output
+     * @param rows number of rows of the band to write
+     * @throws IOException
+     */
+    public void writeRows(BufferedImage band, int rows) throws IOException {
+        if (rowsWritten + rows > height) {
+            throw new IllegalStateException("only " + (height - rowsWritten)
+                    + " rows left, can not write " + rows);
+        }
+
+        for (int y = 0; y < rows; y++) {
+            band.getRGB(0, y, width, 1, argb, 0, width);
+
+            scanline[0] = FILTER_SUB;
+            int prevR = 0, prevG = 0, prevB = 0, prevA = 0;
+            for (int x = 0, i = 1; x < width; x++, i += 4) {
+                int p = argb[x];
+                int r = (p >> 16) & 0xff;
+                int g = (p >> 8) & 0xff;
+                int b = p & 0xff;
+                int a = p >>> 24;
+                scanline[i] = (byte) (r - prevR);
+                scanline[i + 1] = (byte) (g - prevG);
+                scanline[i + 2] = (byte) (b - prevB);
+                scanline[i + 3] = (byte) (a - prevA);
+                prevR = r;
+                prevG = g;
+                prevB = b;
+                prevA = a;
+            }
+            idat.write(scanline);
+        }
+        rowsWritten += rows;
+    }
+
+    /**
+     * Flush the remaining compressed data and write the trailer. All rows
+     * must have been written.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (rowsWritten != height) {
+                throw new IOException("incomplete image, " + rowsWritten
+                        + " of " + height + " rows written");
+            }
+            idat.finish();
+            chunks.flushChunk();
+            writeChunk("IEND", new byte[0], 0);
+            out.flush();
+        } finally {
+            deflater.end();
+            out.close();
+        }
+    }
+
+    private void writeChunk(String type, byte[] data, int length)
+            throws IOException {
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+
+        out.writeInt(length);
+        out.write(typeBytes);
+        out.write(data, 0, length);
+        out.writeInt((int) crc.getValue());
+    }
+
+    // collects compressed bytes and writes them out as IDAT chunks
+    private class IdatOutputStream extends OutputStream {
+
+        private final byte[] buffer = new byte[CHUNK_SIZE];
+        private int count = 0;
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buffer.length) {
+                flushChunk();
+            }
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (count == buffer.length) {
+                    flushChunk();
+                }
+                int n = Math.min(len, buffer.length - count);
+                System.arraycopy(b, off, buffer, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        void flushChunk() throws IOException {
+            if (count > 0) {
+                writeChunk("IDAT", buffer, count);
+                count = 0;
+            }
+        }
+    }
+
+}
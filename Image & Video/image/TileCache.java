@@ -0,0 +1,258 @@
+package image;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Cache of labelled storyboard tiles, so that unchanged source images do not
+ * have to be decoded again.
+ *
+ * A tile is identified by the path, length and modification time of its
+ * source, the tile size and the label. Tiles are kept as png files in the
+ * cache directory, with a LRU of decoded tiles in memory in front of them.
+ * Both levels have a size limit, the least recently used tiles are evicted
+ * first. It is safe to use the cache from several threads.
+ */
+public class TileCache {
+
+    private static final String SUFFIX = ".png";
+
+    private final File directory;
+    private final long maxDiskBytes;
+    private final long maxMemoryBytes;
+
+    // tile files on disk, least recently used first
+    private final LinkedHashMap<String, Long> diskEntries = new LinkedHashMap<>(
+            16, 0.75f, true);
+    private long diskBytes = 0;
+
+    // decoded tiles, least recently used first
+    private final LinkedHashMap<String, BufferedImage> memoryEntries = new LinkedHashMap<>(
+            16, 0.75f, true);
+    private long memoryBytes = 0;
+
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Open a cache directory, tiles already in it are reused.
+     *
+     * @param directory where the tiles are stored, created if needed
+     * @param maxDiskBytes size limit of the tile files
+     * @param maxMemoryBytes size limit of the decoded tiles kept in memory,
+     *        counted as 4 bytes per pixel
+     * @throws IOException
+     */
+    public TileCache(File directory, long maxDiskBytes, long maxMemoryBytes)
+            throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("could not create cache directory "
+                    + directory);
+        }
+        this.directory = directory;
+        this.maxDiskBytes = maxDiskBytes;
+        this.maxMemoryBytes = maxMemoryBytes;
+
+        // rebuild the LRU order from the modification times, which are
+        // updated on every hit
+        File[] files = directory.listFiles();
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                return Long.compare(f1.lastModified(), f2.lastModified());
+            }
+        });
+        for (File file : files) {
+            String name = file.getName();
+            if (file.isFile() && name.endsWith(SUFFIX)) {
+                diskEntries.put(name.substring(0,
+                        name.length() - SUFFIX.length()), file.length());
+                diskBytes += file.length();
+            }
+        }
+        synchronized (this) {
+            evictDisk();
+        }
+    }
+
+    /**
+     * Look up the tile of an image.
+     *
+     * @return the cached tile, or null if there is none for the current
+     *         version of the source. The returned image must not be modified.
+     * @throws IOException
+     */
+    public BufferedImage get(File source, int width, int height, String label)
+            throws IOException {
+        String key = key(source, width, height, label);
+
+        synchronized (this) {
+            BufferedImage tile = memoryEntries.get(key);
+            if (tile != null) {
+                memoryHits.incrementAndGet();
+                return tile;
+            }
+            if (diskEntries.get(key) == null) {
+                misses.incrementAndGet();
+                return null;
+            }
+        }
+
+        // the file is read outside of the lock, so a put from another thread
+        // can evict it in between, even while it is read
+        File file = file(key);
+        BufferedImage tile;
+        try {
+            tile = file.isFile() ? ImageIO.read(file) : null;
+        } catch (IOException e) {
+            tile = null;
+        }
+        if (tile == null) {
+            // evicted or removed meanwhile
+            synchronized (this) {
+                forget(key);
+            }
+            misses.incrementAndGet();
+            return null;
+        }
+
+        file.setLastModified(System.currentTimeMillis());
+        synchronized (this) {
+            remember(key, tile);
+        }
+        diskHits.incrementAndGet();
+        return tile;
+    }
+
+    /**
+     * Store the tile of an image. The tile must not be modified afterwards.
+     *
+     * @throws IOException
+     */
+    public void put(File source, int width, int height, String label,
+            BufferedImage tile) throws IOException {
+        String key = key(source, width, height, label);
+
+        // write to a temporary file first, so that other readers of the
+        // directory never see a partial tile
+        File file = file(key);
+        File temp = File.createTempFile(key, ".tmp", directory);
+        try {
+            if (!ImageIO.write(tile, "png", temp)) {
+                throw new IOException("no png writer for tile of " + source);
+            }
+            Files.move(temp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp.toPath());
+        }
+
+        synchronized (this) {
+            Long previous = diskEntries.put(key, file.length());
+            diskBytes += file.length() - (previous == null ? 0 : previous);
+            evictDisk();
+            remember(key, tile);
+        }
+    }
+
+    public long getMemoryHits() {
+        return memoryHits.get();
+    }
+
+    public long getDiskHits() {
+        return diskHits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public synchronized long getDiskBytes() {
+        return diskBytes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("TileCache[memory hits: %d, disk hits: %d, "
+                + "misses: %d]", getMemoryHits(), getDiskHits(), getMisses());
+    }
+
+    private void remember(String key, BufferedImage tile) {
+        BufferedImage previous = memoryEntries.put(key, tile);
+        memoryBytes += bytes(tile) - (previous == null ? 0 : bytes(previous));
+
+        Iterator<Map.Entry<String, BufferedImage>> it = memoryEntries
+                .entrySet().iterator();
+        while (memoryBytes > maxMemoryBytes && it.hasNext()) {
+            memoryBytes -= bytes(it.next().getValue());
+            it.remove();
+        }
+    }
+
+    private void forget(String key) {
+        Long size = diskEntries.remove(key);
+        if (size != null) {
+            diskBytes -= size;
+        }
+        BufferedImage tile = memoryEntries.remove(key);
+        if (tile != null) {
+            memoryBytes -= bytes(tile);
+        }
+    }
+
+    private void evictDisk() {
+        Iterator<Map.Entry<String, Long>> it = diskEntries.entrySet()
+                .iterator();
+        while (diskBytes > maxDiskBytes && it.hasNext()) {
+            Map.Entry<String, Long> entry = it.next();
+            diskBytes -= entry.getValue();
+            file(entry.getKey()).delete();
+            it.remove();
+        }
+    }
+
+    private File file(String key) {
+        return new File(directory, key + SUFFIX);
+    }
+
+    private static long bytes(BufferedImage tile) {
+        return 4L * tile.getWidth() * tile.getHeight();
+    }
+
+    // sha-1 of everything identifying a tile, used as its file name
+    static String key(File source, int width, int height, String label) {
+        String id = source.getAbsolutePath() + '\n' + source.length() + '\n'
+                + source.lastModified() + '\n' + width + 'x' + height + '\n'
+                + label;
+
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(
+                    id.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+                sb.append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available", e);
+        }
+    }
+
+}
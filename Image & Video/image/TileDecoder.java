@@ -0,0 +1,294 @@
+package image;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Decode an image at (roughly) the size of a storyboard tile instead of its
+ * full resolution.
+ *
+ * The size of the source is read from its header first. Sources no larger than
+ * the tile are decoded as they are, which gives the same pixels as
+ * {@link ImageIO#read(File)}. Larger sources use an embedded thumbnail when
+ * there is one big enough to cover the tile, with the aspect ratio of the
+ * source: a JFIF thumbnail exposed by the reader, or the EXIF thumbnail that
+ * cameras store in the APP1 segment of their JPEG files. Otherwise they are
+ * decoded with a source subsampling factor so that the decoded raster is less
+ * than twice the tile size along its limiting side. The result is then scaled
+ * down into the tile, keeping its aspect ratio.
+ */
+public final class TileDecoder {
+
+    private TileDecoder() {
+    }
+
+    /**
+     * Decode an image into a tile of the given size.
+     *
+     * @param file the source image
+     * @param width width of the tile
+     * @param height height of the tile
+     * @return the decoded image, or a tile of exactly width x height when the
+     *         source had to be scaled down
+     * @throws IOException if the file can not be read or no reader supports it
+     */
+    public static BufferedImage decode(File file, int width, int height)
+            throws IOException {
+        ImageInputStream in = ImageIO.createImageInputStream(file);
+        if (in == null) {
+            throw new IOException("could not open image " + file);
+        }
+
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                throw new IOException("no image reader for " + file);
+            }
+
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in);
+                return decode(reader, width, height);
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static BufferedImage decode(ImageReader reader, int width,
+            int height) throws IOException {
+        int sourceWidth = reader.getWidth(0);
+        int sourceHeight = reader.getHeight(0);
+
+        // already small enough, nothing to save
+        if (sourceWidth <= width && sourceHeight <= height) {
+            return reader.read(0);
+        }
+
+        int thumbnail = findThumbnail(reader, width, height);
+        if (thumbnail >= 0) {
+            return fit(reader.readThumbnail(0, thumbnail), width, height);
+        }
+
+        if ("jpeg".equalsIgnoreCase(reader.getFormatName())) {
+            BufferedImage exif = readExifThumbnail(
+                    (ImageInputStream) reader.getInput(), sourceWidth,
+                    sourceHeight, width, height);
+            if (exif != null) {
+                return fit(exif, width, height);
+            }
+        }
+
+        int factor = subsampling(sourceWidth, sourceHeight, width, height);
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceSubsampling(factor, factor, 0, 0);
+        return fit(reader.read(0, param), width, height);
+    }
+
+    /**
+     * The largest subsampling factor that still leaves at least width x height
+     * pixels.
+     */
+    static int subsampling(int sourceWidth, int sourceHeight, int width,
+            int height) {
+        return Math.max(1, Math.min(sourceWidth / width, sourceHeight / height));
+    }
+
+    // the smallest thumbnail covering the tile, -1 if there is none
+    private static int findThumbnail(ImageReader reader, int width, int height)
+            throws IOException {
+        if (!reader.readerSupportsThumbnails() || !reader.hasThumbnails(0)) {
+            return -1;
+        }
+
+        int best = -1;
+        long bestArea = Long.MAX_VALUE;
+        for (int i = 0; i < reader.getNumThumbnails(0); i++) {
+            int w = reader.getThumbnailWidth(0, i);
+            int h = reader.getThumbnailHeight(0, i);
+            if (w >= width && h >= height && (long) w * h < bestArea) {
+                best = i;
+                bestArea = (long) w * h;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Decode the EXIF thumbnail of a JPEG file if it covers the tile with the
+     * aspect ratio of the source, since cameras often pad it to 4:3.
+     *
+     * @return the thumbnail, or null if there is no usable one
+     */
+    private static BufferedImage readExifThumbnail(ImageInputStream in,
+            int sourceWidth, int sourceHeight, int width, int height)
+            throws IOException {
+        byte[] jpeg = findExifThumbnail(in);
+        if (jpeg == null) {
+            return null;
+        }
+
+        ImageInputStream thumbnail = ImageIO
+                .createImageInputStream(new ByteArrayInputStream(jpeg));
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(thumbnail);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(thumbnail);
+                int w = reader.getWidth(0);
+                int h = reader.getHeight(0);
+                double ratio = (double) sourceWidth / sourceHeight;
+                if (w < width || h < height
+                        || Math.abs((double) w / h - ratio) > 0.02 * ratio) {
+                    return null;
+                }
+                return reader.read(0);
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException e) {
+            // a broken thumbnail, the image itself may still be fine
+            return null;
+        } finally {
+            thumbnail.close();
+        }
+    }
+
+    /**
+     * The JPEG thumbnail of the EXIF data of a JPEG stream, located by the
+     * JPEGInterchangeFormat and JPEGInterchangeFormatLength tags of IFD1. Only
+     * the segments before the image data are read, and the position of the
+     * stream is left unchanged.
+     *
+     * @return the bytes of the thumbnail, or null if there is none
+     */
+    static byte[] findExifThumbnail(ImageInputStream in) throws IOException {
+        long position = in.getStreamPosition();
+        try {
+            in.seek(0);
+            if (in.readUnsignedShort() != 0xFFD8) {
+                return null;
+            }
+            while (true) {
+                int marker = in.readUnsignedShort();
+                // start of scan, or not a marker segment
+                if (marker == 0xFFDA || (marker & 0xFF00) != 0xFF00) {
+                    return null;
+                }
+                int length = in.readUnsignedShort() - 2;
+                if (marker == 0xFFE1 && length > 14) {
+                    byte[] segment = new byte[length];
+                    in.readFully(segment);
+                    if (segment[0] == 'E' && segment[1] == 'x'
+                            && segment[2] == 'i' && segment[3] == 'f'
+                            && segment[4] == 0 && segment[5] == 0) {
+                        return exifThumbnail(ByteBuffer.wrap(segment, 6,
+                                length - 6).slice());
+                    }
+                } else {
+                    in.seek(in.getStreamPosition() + length);
+                }
+            }
+        } catch (EOFException e) {
+            return null;
+        } catch (IndexOutOfBoundsException e) {
+            // the start of the stream was already discarded
+            return null;
+        } finally {
+            in.seek(position);
+        }
+    }
+
+    // the thumbnail of the TIFF structure of EXIF data, null if there is none
+    private static byte[] exifThumbnail(ByteBuffer tiff) {
+        try {
+            tiff.order(tiff.get(0) == 'I' ? ByteOrder.LITTLE_ENDIAN
+                    : ByteOrder.BIG_ENDIAN);
+            if (tiff.getShort(2) != 42) {
+                return null;
+            }
+
+            // IFD1, the thumbnail, follows IFD0, the main image
+            int ifd0 = tiff.getInt(4);
+            int ifd1 = tiff.getInt(ifd0 + 2 + 12
+                    * (tiff.getShort(ifd0) & 0xFFFF));
+            if (ifd1 <= 0) {
+                return null;
+            }
+
+            int offset = 0;
+            int length = 0;
+            int entries = tiff.getShort(ifd1) & 0xFFFF;
+            for (int i = 0; i < entries; i++) {
+                int entry = ifd1 + 2 + 12 * i;
+                int tag = tiff.getShort(entry) & 0xFFFF;
+                // a LONG, or a SHORT in some files
+                int value = tiff.getShort(entry + 2) == 3 ? tiff
+                        .getShort(entry + 8) & 0xFFFF : tiff.getInt(entry + 8);
+                if (tag == 0x0201) {
+                    offset = value;
+                } else if (tag == 0x0202) {
+                    length = value;
+                }
+            }
+            if (offset <= 0 || length <= 0
+                    || (long) offset + length > tiff.limit()) {
+                return null;
+            }
+
+            byte[] thumbnail = new byte[length];
+            tiff.position(offset);
+            tiff.get(thumbnail);
+            return thumbnail;
+        } catch (IndexOutOfBoundsException e) {
+            // offsets past the segment
+            return null;
+        }
+    }
+
+    /**
+     * Scale an image into a black tile of width x height, keeping its ratio.
+     * The result is always a new image, the given one is left untouched.
+     */
+    public static BufferedImage fit(BufferedImage image, int width,
+            int height) {
+        double scale = Math.min((double) width / image.getWidth(),
+                (double) height / image.getHeight());
+        int w = Math.max(1, (int) Math.round(image.getWidth() * scale));
+        int h = Math.max(1, (int) Math.round(image.getHeight() * scale));
+
+        BufferedImage tile = new BufferedImage(width, height,
+                BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = tile.createGraphics();
+        try {
+            g.setColor(Color.BLACK);
+            g.fillRect(0, 0, width, height);
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                    RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(image, (width - w) / 2, (height - h) / 2, w, h, null);
+        } finally {
+            g.dispose();
+        }
+        return tile;
+    }
+
+}
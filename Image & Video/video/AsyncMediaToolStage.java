@@ -0,0 +1,494 @@
+package video;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import com.xuggle.mediatool.MediaToolAdapter;
+import com.xuggle.mediatool.event.AudioSamplesEvent;
+import com.xuggle.mediatool.event.IAddStreamEvent;
+import com.xuggle.mediatool.event.IAudioSamplesEvent;
+import com.xuggle.mediatool.event.ICloseCoderEvent;
+import com.xuggle.mediatool.event.ICloseEvent;
+import com.xuggle.mediatool.event.IFlushEvent;
+import com.xuggle.mediatool.event.IOpenCoderEvent;
+import com.xuggle.mediatool.event.IOpenEvent;
+import com.xuggle.mediatool.event.IReadPacketEvent;
+import com.xuggle.mediatool.event.IVideoPictureEvent;
+import com.xuggle.mediatool.event.IWriteHeaderEvent;
+import com.xuggle.mediatool.event.IWritePacketEvent;
+import com.xuggle.mediatool.event.IWriteTrailerEvent;
+import com.xuggle.mediatool.event.ReadPacketEvent;
+import com.xuggle.mediatool.event.VideoPictureEvent;
+import com.xuggle.xuggler.IAudioSamples;
+import com.xuggle.xuggler.IPacket;
+import com.xuggle.xuggler.IVideoPicture;
+import com.xuggle.xuggler.RefCounted;
+
+/**
+ * Passes the events of a tool chain on to its listeners on a thread of its
+ * own, so that the tools before and after it run on different cores. In
+ * {@link ModifyVideoAndAudio}, stages after the reader and after the tools
+ * let decoding, the tools and encoding run at the same time.
+ *
+ * Events are queued in the order they arrive and passed on in that order,
+ * so time stamps stay in order. The queue is bounded: when the tools after
+ * the stage fall behind, the tool before it waits.
+ *
+ * The reader deletes its pictures, samples and packets once its listeners
+ * return, and decodes all the frames of a packet into the same picture or
+ * samples. So the stage queues copies of the pictures and samples, and a
+ * copy of the packets sharing their data, as the reader reads each packet
+ * into a new buffer. Once passed on, or dropped after a failure, the copies
+ * are reused for the next events, unless a listener kept a reference to
+ * them, so that copying does not allocate native memory for every event.
+ * Events with only a
+ * {@link java.awt.image.BufferedImage} are queued as they are, which assumes
+ * the image is not reused by the tool before the stage.
+ *
+ * {@link #close()} must be called once the reader is done, to wait for the
+ * queued events to be passed on.
+ */
+public class AsyncMediaToolStage extends MediaToolAdapter implements Closeable {
+    // the default number of queued events, a few frames
+
+    public static final int DEFAULT_CAPACITY = 8;
+
+    private final String mName;
+
+    private final int mCapacity;
+
+    private final BlockingQueue<Task> mQueue;
+
+    // copies passed on, to copy the next pictures and samples into
+
+    private final Queue<IVideoPicture> mFreePictures =
+            new ConcurrentLinkedQueue<IVideoPicture>();
+
+    private final Queue<IAudioSamples> mFreeSamples =
+            new ConcurrentLinkedQueue<IAudioSamples>();
+
+    private final Thread mThread;
+
+    // the first failure of a listener, after which events are dropped
+
+    private volatile RuntimeException mFailure;
+
+    private volatile boolean mClosed;
+
+    // tells the thread to stop
+
+    private static final Task STOP = new Task() {
+        @Override
+        void dispatch() {
+        }
+    };
+
+    /**
+     * Create a stage with the default capacity.
+     *
+     * @param name the name of the thread of the stage
+     */
+
+    public AsyncMediaToolStage(String name) {
+        this(name, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Create a stage.
+     *
+     * @param name the name of the thread of the stage
+     * @param capacity the number of events queued before the tool before the
+     *        stage waits
+     */
+
+    public AsyncMediaToolStage(String name, int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("invalid capacity " + capacity);
+        mName = name;
+        mCapacity = capacity;
+        mQueue = new ArrayBlockingQueue<Task>(capacity);
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, name);
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /** {@inheritDoc} */
+
+    @Override
+    public void onVideoPicture(final IVideoPictureEvent event) {
+        IVideoPicture picture = event.getPicture();
+        if (picture == null) {
+            enqueue(new Task() {
+                @Override
+                void dispatch() {
+                    AsyncMediaToolStage.super.onVideoPicture(event);
+                }
+            });
+            return;
+        }
+
+        final IVideoPicture data = copy(picture);
+        final IVideoPictureEvent copy = new VideoPictureEvent(this, data,
+                event.getImage(), event.getTimeStamp(), event.getTimeUnit(),
+                event.getStreamIndex());
+        enqueue(new Task() {
+            @Override
+            void dispatch() {
+                AsyncMediaToolStage.super.onVideoPicture(copy);
+            }
+
+            @Override
+            void release() {
+                recycle(data, mFreePictures);
+            }
+        });
+    }
+
+    /** {@inheritDoc} */
+
+    @Override
+    public void onAudioSamples(final IAudioSamplesEvent event) {
+        IAudioSamples samples = event.getAudioSamples();
+        if (samples == null) {
+            enqueue(new Task() {
+                @Override
+                void dispatch() {
+                    AsyncMediaToolStage.super.onAudioSamples(event);
+                }
+            });
+            return;
+        }
+
+        final IAudioSamples data = copy(samples);
+        final IAudioSamplesEvent copy = new AudioSamplesEvent(this, data,
+                event.getStreamIndex());
+        enqueue(new Task() {
+            @Override
+            void dispatch() {
+                AsyncMediaToolStage.super.onAudioSamples(copy);
+            }
+
+            @Override
+            void release() {
+                recycle(data, mFreeSamples);
+            }
+        });
+    }
+
+    /** {@inheritDoc} */
+
+    @Override
+    public void onReadPacket(final IReadPacketEvent event) {
+        IPacket packet = event.getPacket();
+        if (packet == null) {
+            enqueue(new Task() {
+                @Override
+                void dispatch() {
+                    AsyncMediaToolStage.super.onReadPacket(event);
+                }
+            });
+            return;
+        }
+
+        // the reader reads the next packet into the same one
+        final IPacket copy = IPacket.make(packet, false);
+        final IReadPacketEvent copyEvent = new ReadPacketEvent(this, copy);
+        enqueue(new Task(copy) {
+            @Override
+            void dispatch() {
+                AsyncMediaToolStage.super.onReadPacket(copyEvent);
+            }
+        });
+    }
+
+    /** {@inheritDoc} */
+
+    @Override
+    public void onOpen(final IOpenEvent event) {
+        enqueue(new Task() {
+            @Override
+            void dispatch() {
+                AsyncMediaToolStage.super.onOpen(event);
+            }
+        });
+    }
+
+    /** {@inheritDoc} */
+
+    @Override
+    public void onClose(final ICloseEvent event) {
+        enqueue(new Task() {
+            @Override
+            void dispatch() {
+                AsyncMediaToolStage.super.onClose(event);
+            }
+        });
+    }
+
+    /** {@inheritDoc} */
+
+    @Override
+    public void onAddStream(final IAddStreamEvent event) {
+        enqueue(new Task() {
+            @Override
+            void dispatch() {
+                AsyncMediaToolStage.super.onAddStream(event);
+            }
+        });
+    }
+
+    /** {@inheritDoc} */
+
+    @Override
+    public void onOpenCoder(final IOpenCoderEvent event) {
+        enqueue(new Task() {
+            @Override
+            void dispatch() {
+                AsyncMediaToolStage.super.onOpenCoder(event);
+            }
+        });
+    }
+
+    /** {@inheritDoc} */
+
+    @Override
+    public void onCloseCoder(final ICloseCoderEvent event) {
+        enqueue(new Task() {
+            @Override
+            void dispatch() {
+                AsyncMediaToolStage.super.onCloseCoder(event);
+            }
+        });
+    }
+
+    /** {@inheritDoc} */
+
+    @Override
+    public void onWritePacket(final IWritePacketEvent event) {
+        enqueue(new Task() {
+            @Override
+            void dispatch() {
+                AsyncMediaToolStage.super.onWritePacket(event);
+            }
+        });
+    }
+
+    /** {@inheritDoc} */
+
+    @Override
+    public void onWriteHeader(final IWriteHeaderEvent event) {
+        enqueue(new Task() {
+            @Override
+            void dispatch() {
+                AsyncMediaToolStage.super.onWriteHeader(event);
+            }
+        });
+    }
+
+    /** {@inheritDoc} */
+
+    @Override
+    public void onFlush(final IFlushEvent event) {
+        enqueue(new Task() {
+            @Override
+            void dispatch() {
+                AsyncMediaToolStage.super.onFlush(event);
+            }
+        });
+    }
+
+    /** {@inheritDoc} */
+
+    @Override
+    public void onWriteTrailer(final IWriteTrailerEvent event) {
+        enqueue(new Task() {
+            @Override
+            void dispatch() {
+                AsyncMediaToolStage.super.onWriteTrailer(event);
+            }
+        });
+    }
+
+    /** The number of events waiting to be passed on. */
+
+    public int getQueued() {
+        return mQueue.size();
+    }
+
+    /**
+     * Wait for the queued events to be passed on and stop the thread of the
+     * stage. Close the stages of a chain from the first to the last.
+     *
+     * @throws RuntimeException if a listener failed
+     */
+
+    @Override
+    public synchronized void close() {
+        if (!mClosed) {
+            mClosed = true;
+            try {
+                mQueue.put(STOP);
+                mThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("interrupted closing " + mName, e);
+            } finally {
+                deleteAll(mFreePictures);
+                deleteAll(mFreeSamples);
+            }
+        }
+        checkFailure();
+    }
+
+    @Override
+    public String toString() {
+        return mName;
+    }
+
+    // queue an event, waiting for room
+
+    private void enqueue(Task task) {
+        try {
+            checkFailure();
+            if (mClosed)
+                throw new IllegalStateException(mName + " is closed");
+            mQueue.put(task);
+        } catch (InterruptedException e) {
+            task.release();
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("interrupted queuing to " + mName, e);
+        } catch (RuntimeException e) {
+            task.release();
+            throw e;
+        }
+    }
+
+    // a copy of a picture, into one passed on before if it has the same
+    // format
+
+    private IVideoPicture copy(IVideoPicture picture) {
+        IVideoPicture copy = mFreePictures.poll();
+        if (copy != null
+                && (copy.getPixelType() != picture.getPixelType()
+                        || copy.getWidth() != picture.getWidth()
+                        || copy.getHeight() != picture.getHeight())) {
+            copy.delete();
+            copy = null;
+        }
+        if (copy == null)
+            copy = IVideoPicture.make(picture.getPixelType(), picture
+                    .getWidth(), picture.getHeight());
+        if (!copy.copy(picture)) {
+            copy.delete();
+            throw new RuntimeException("could not copy picture in " + mName);
+        }
+        return copy;
+    }
+
+    // a copy of samples, into ones passed on before if they are large enough
+
+    private IAudioSamples copy(IAudioSamples samples) {
+        int size = samples.getSize();
+        IAudioSamples copy = mFreeSamples.poll();
+        if (copy != null
+                && (copy.getFormat() != samples.getFormat()
+                        || copy.getMaxBufferSize() < size)) {
+            copy.delete();
+            copy = null;
+        }
+        if (copy == null)
+            copy = IAudioSamples.make(samples.getNumSamples(), samples
+                    .getChannels(), samples.getFormat());
+
+        ByteBuffer from = samples.getByteBuffer();
+        from.limit(size);
+        copy.getByteBuffer().put(from);
+        copy.setTimeBase(samples.getTimeBase());
+        copy.setComplete(samples.isComplete(), samples.getNumSamples(),
+                samples.getSampleRate(), samples.getChannels(), samples
+                        .getFormat(), samples.getPts());
+        return copy;
+    }
+
+    // keep a copy passed on for the next one, unless a listener still holds
+    // it or enough are kept
+
+    private <T extends RefCounted> void recycle(T data, Queue<T> free) {
+        if (!mClosed && data.getCurrentRefCount() == 1
+                && free.size() <= mCapacity)
+            free.add(data);
+        else
+            data.delete();
+    }
+
+    private static void deleteAll(Queue<? extends RefCounted> free) {
+        RefCounted data;
+        while ((data = free.poll()) != null)
+            data.delete();
+    }
+
+    private void checkFailure() {
+        RuntimeException failure = mFailure;
+        if (failure != null)
+            throw new RuntimeException("stage " + mName + " failed", failure);
+    }
+
+    // pass the queued events on until stopped, dropping them after a failure
+    // so that the tool before the stage does not wait forever
+
+    private void drain() {
+        while (true) {
+            Task task;
+            try {
+                task = mQueue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (task == STOP)
+                return;
+
+            try {
+                if (mFailure == null)
+                    task.dispatch();
+            } catch (RuntimeException e) {
+                mFailure = e;
+            } catch (Error e) {
+                mFailure = new RuntimeException(e);
+            } finally {
+                task.release();
+            }
+        }
+    }
+
+    // a queued event, with the native data the stage holds for it
+
+    private abstract static class Task {
+        private final RefCounted mData;
+
+        Task() {
+            this(null);
+        }
+
+        Task(RefCounted data) {
+            mData = data;
+        }
+
+        abstract void dispatch();
+
+        // free the data once the event is passed on or dropped
+
+        void release() {
+            if (mData != null)
+                mData.delete();
+        }
+    }
+}
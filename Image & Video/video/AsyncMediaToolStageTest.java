@@ -0,0 +1,241 @@
+package video;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.xuggle.mediatool.IMediaGenerator;
+import com.xuggle.mediatool.MediaListenerAdapter;
+import com.xuggle.mediatool.event.AudioSamplesEvent;
+import com.xuggle.mediatool.event.IAudioSamplesEvent;
+import com.xuggle.mediatool.event.IVideoPictureEvent;
+import com.xuggle.mediatool.event.VideoPictureEvent;
+import com.xuggle.xuggler.IAudioSamples;
+import com.xuggle.xuggler.IPixelFormat;
+import com.xuggle.xuggler.IVideoPicture;
+
+public class AsyncMediaToolStageTest {
+
+    @Test
+    public void testOrderOnOwnThread() {
+        final List<Long> timeStamps = Collections
+                .synchronizedList(new ArrayList<Long>());
+        final List<Thread> threads = Collections
+                .synchronizedList(new ArrayList<Thread>());
+        AsyncMediaToolStage stage = new AsyncMediaToolStage("ordered", 4);
+        stage.addListener(new MediaListenerAdapter() {
+            @Override
+            public void onVideoPicture(IVideoPictureEvent event) {
+                timeStamps.add(event.getTimeStamp());
+                threads.add(Thread.currentThread());
+            }
+        });
+
+        List<Long> expected = new ArrayList<Long>();
+        for (long i = 0; i < 1000; i++) {
+            stage.onVideoPicture(new ImageEvent(i * 40000));
+            expected.add(i * 40000);
+        }
+        stage.close();
+
+        assertEquals(expected, timeStamps);
+        assertNotSame(Thread.currentThread(), threads.get(0));
+    }
+
+    @Test
+    public void testBackpressure() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AsyncMediaToolStage stage = new AsyncMediaToolStage("bounded",
+                2);
+        stage.addListener(new MediaListenerAdapter() {
+            @Override
+            public void onVideoPicture(IVideoPictureEvent event) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+
+        // one event held by the listener, two queued, the fourth waits
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 4; i++)
+                    stage.onVideoPicture(new ImageEvent(i));
+            }
+        };
+        producer.start();
+        try {
+            producer.join(300);
+            assertTrue(producer.isAlive());
+            assertEquals(2, stage.getQueued());
+        } finally {
+            release.countDown();
+        }
+        producer.join(5000);
+        stage.close();
+        assertEquals(0, stage.getQueued());
+    }
+
+    @Test
+    public void testFailure() {
+        AsyncMediaToolStage stage = new AsyncMediaToolStage("failing", 1);
+        stage.addListener(new MediaListenerAdapter() {
+            @Override
+            public void onVideoPicture(IVideoPictureEvent event) {
+                throw new IllegalStateException("broken encoder");
+            }
+        });
+
+        // later events are dropped rather than blocking the producer
+        try {
+            for (int i = 0; i < 100; i++)
+                stage.onVideoPicture(new ImageEvent(i));
+            stage.close();
+            fail("no failure");
+        } catch (RuntimeException e) {
+            assertEquals("broken encoder", e.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void testCopiesReusedSamples() {
+        // the reader decodes the frames of a packet into the same samples,
+        // overwriting them while the first ones are still queued
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Short> received = Collections
+                .synchronizedList(new ArrayList<Short>());
+        AsyncMediaToolStage stage = new AsyncMediaToolStage("samples", 4);
+        stage.addListener(new MediaListenerAdapter() {
+            @Override
+            public void onAudioSamples(IAudioSamplesEvent event) {
+                await(release);
+                received.add(event.getAudioSamples().getByteBuffer()
+                        .getShort(0));
+            }
+        });
+
+        IAudioSamples samples = IAudioSamples.make(1024, 2,
+                IAudioSamples.Format.FMT_S16);
+        try {
+            for (short i = 1; i <= 3; i++) {
+                samples.getByteBuffer().putShort(0, i);
+                samples.setComplete(true, 1024, 44100, 2,
+                        IAudioSamples.Format.FMT_S16, i * 23220);
+                stage.onAudioSamples(new AudioSamplesEvent(stage, samples, 0));
+            }
+            release.countDown();
+            stage.close();
+        } finally {
+            samples.delete();
+        }
+        assertEquals(Arrays.asList((short) 1, (short) 2, (short) 3), received);
+    }
+
+    @Test
+    public void testCopiesReusedPictures() {
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Byte> received = Collections
+                .synchronizedList(new ArrayList<Byte>());
+        AsyncMediaToolStage stage = new AsyncMediaToolStage("pictures", 4);
+        stage.addListener(new MediaListenerAdapter() {
+            @Override
+            public void onVideoPicture(IVideoPictureEvent event) {
+                await(release);
+                received.add(event.getPicture().getByteBuffer().get(0));
+            }
+        });
+
+        IVideoPicture picture = IVideoPicture.make(IPixelFormat.Type.YUV420P,
+                16, 16);
+        try {
+            for (byte i = 1; i <= 3; i++) {
+                picture.getByteBuffer().put(0, i);
+                picture.setComplete(true, IPixelFormat.Type.YUV420P, 16, 16,
+                        i * 40000);
+                stage.onVideoPicture(new VideoPictureEvent(stage, picture, 0));
+            }
+            release.countDown();
+            stage.close();
+        } finally {
+            picture.delete();
+        }
+        assertEquals(Arrays.asList((byte) 1, (byte) 2, (byte) 3), received);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // an event with an image only, as generated by a tool from images
+
+    private static class ImageEvent implements IVideoPictureEvent {
+        private final long mTimeStamp;
+
+        ImageEvent(long timeStamp) {
+            mTimeStamp = timeStamp;
+        }
+
+        @Override
+        public IMediaGenerator getSource() {
+            return null;
+        }
+
+        @Override
+        public long getTimeStamp() {
+            return mTimeStamp;
+        }
+
+        @Override
+        public Long getTimeStamp(TimeUnit unit) {
+            return unit.convert(mTimeStamp, TimeUnit.MICROSECONDS);
+        }
+
+        @Override
+        public TimeUnit getTimeUnit() {
+            return TimeUnit.MICROSECONDS;
+        }
+
+        @Override
+        public BufferedImage getJavaData() {
+            return null;
+        }
+
+        @Override
+        public Integer getStreamIndex() {
+            return 0;
+        }
+
+        @Override
+        public IVideoPicture getPicture() {
+            return null;
+        }
+
+        @Override
+        public IVideoPicture getMediaData() {
+            return null;
+        }
+
+        @Override
+        public BufferedImage getImage() {
+            return null;
+        }
+    }
+}
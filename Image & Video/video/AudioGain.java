@@ -0,0 +1,231 @@
+package video;
+
+import java.nio.ShortBuffer;
+
+/**
+ * A gain stage for interleaved signed 16 bit audio samples.
+ *
+ * Gains are applied in fixed point and the results are saturated to the 16
+ * bit range, so loud inputs are clipped instead of wrapping around. Every
+ * channel has its own gain, and gain changes can be ramped linearly over a
+ * number of sample frames to avoid clicks.
+ *
+ * Buffers are processed in bulk on a plain short array. While no ramp is in
+ * progress the inner loops are simple enough for the JIT to vectorize them.
+ */
+public class AudioGain {
+    // gains are stored with 24 fractional bits while ramping, and applied
+    // with GAIN_BITS of them
+
+    static final int GAIN_BITS = 12;
+
+    private static final int RAMP_BITS = 24;
+
+    private static final int UNITY = 1 << RAMP_BITS;
+
+    /** The largest supported gain, about +24 dB. */
+
+    public static final double MAX_GAIN = 15.99;
+
+    // sample frames copied out of a direct buffer at a time
+
+    private static final int CHUNK_FRAMES = 2048;
+
+    private final int mChannels;
+
+    // current gain of each channel
+
+    private final int[] mGain;
+
+    // per frame increment and target of a ramp in progress
+
+    private final int[] mStep;
+    private final int[] mTarget;
+    private int mRampFrames = 0;
+
+    private final short[] mScratch;
+
+    /**
+     * Create a gain stage with unity gain on every channel.
+     *
+     * @param channels the number of interleaved channels
+     */
+
+    public AudioGain(int channels) {
+        if (channels < 1)
+            throw new IllegalArgumentException("invalid channel count: "
+                    + channels);
+        mChannels = channels;
+        mGain = new int[channels];
+        mStep = new int[channels];
+        mTarget = new int[channels];
+        mScratch = new short[CHUNK_FRAMES * channels];
+        setGain(1.0);
+    }
+
+    public int getChannels() {
+        return mChannels;
+    }
+
+    /** Set the gain of all channels right away, cancelling any ramp. */
+
+    public void setGain(double gain) {
+        for (int c = 0; c < mChannels; c++)
+            mGain[c] = toFixed(gain);
+        mRampFrames = 0;
+    }
+
+    /** Set the gain of one channel right away, cancelling any ramp. */
+
+    public void setGain(int channel, double gain) {
+        mGain[channel] = toFixed(gain);
+        mRampFrames = 0;
+    }
+
+    /** The current gain of a channel. */
+
+    public double getGain(int channel) {
+        return (double) mGain[channel] / UNITY;
+    }
+
+    /**
+     * Move the gain of all channels linearly to a new value over the given
+     * number of sample frames.
+     */
+
+    public void rampTo(double gain, int frames) {
+        double[] gains = new double[mChannels];
+        for (int c = 0; c < mChannels; c++)
+            gains[c] = gain;
+        rampTo(gains, frames);
+    }
+
+    /**
+     * Move the gain of each channel linearly to a new value over the given
+     * number of sample frames.
+     *
+     * @param gains the target gain of each channel
+     * @param frames length of the ramp, 0 sets the gains right away
+     */
+
+    public void rampTo(double[] gains, int frames) {
+        if (gains.length != mChannels)
+            throw new IllegalArgumentException(gains.length + " gains for "
+                    + mChannels + " channels");
+
+        for (int c = 0; c < mChannels; c++) {
+            mTarget[c] = toFixed(gains[c]);
+            if (frames > 0)
+                mStep[c] = (int) (((long) mTarget[c] - mGain[c]) / frames);
+            else
+                mGain[c] = mTarget[c];
+        }
+        mRampFrames = Math.max(frames, 0);
+    }
+
+    /** Whether a ramp is still in progress. */
+
+    public boolean isRamping() {
+        return mRampFrames > 0;
+    }
+
+    /**
+     * Apply the gain to every sample from 0 to the limit of the buffer. The
+     * position of the buffer is not changed.
+     */
+
+    public void process(ShortBuffer buffer) {
+        int length = buffer.limit();
+        if (buffer.hasArray()) {
+            process(buffer.array(), buffer.arrayOffset(), length);
+            return;
+        }
+
+        // work through the buffer in cache sized chunks, a whole number of
+        // sample frames each so that the channels stay aligned
+        int chunk = CHUNK_FRAMES * mChannels;
+        ShortBuffer in = buffer.duplicate();
+        ShortBuffer out = buffer.duplicate();
+        in.clear().limit(length);
+        out.clear().limit(length);
+        while (in.hasRemaining()) {
+            int n = Math.min(chunk, in.remaining());
+            in.get(mScratch, 0, n);
+            process(mScratch, 0, n);
+            out.put(mScratch, 0, n);
+        }
+    }
+
+    /**
+     * Apply the gain to interleaved samples, starting with the first channel
+     * at offset.
+     */
+
+    public void process(short[] samples, int offset, int length) {
+        int end = offset + length;
+        int i = offset;
+
+        // ramp sample frame by sample frame
+        while (mRampFrames > 0 && i + mChannels <= end) {
+            for (int c = 0; c < mChannels; c++, i++) {
+                mGain[c] += mStep[c];
+                samples[i] = apply(samples[i], mGain[c]
+                        >> (RAMP_BITS - GAIN_BITS));
+            }
+            if (--mRampFrames == 0)
+                System.arraycopy(mTarget, 0, mGain, 0, mChannels);
+        }
+
+        if (i >= end)
+            return;
+
+        if (isUniform()) {
+            int gain = mGain[0] >> (RAMP_BITS - GAIN_BITS);
+            if (gain != 1 << GAIN_BITS)
+                applyConstant(samples, i, end, gain);
+        } else {
+            for (int c = 0; c < mChannels; c++)
+                applyStrided(samples, i + c, end, mChannels,
+                        mGain[c] >> (RAMP_BITS - GAIN_BITS));
+        }
+    }
+
+    private boolean isUniform() {
+        for (int c = 1; c < mChannels; c++)
+            if (mGain[c] != mGain[0])
+                return false;
+        return true;
+    }
+
+    // the hot loop, no ramp and the same gain on every channel
+
+    private static void applyConstant(short[] samples, int from, int to,
+            int gain) {
+        for (int i = from; i < to; i++) {
+            int v = (samples[i] * gain) >> GAIN_BITS;
+            samples[i] = (short) Math.max(Short.MIN_VALUE,
+                    Math.min(Short.MAX_VALUE, v));
+        }
+    }
+
+    private static void applyStrided(short[] samples, int from, int to,
+            int stride, int gain) {
+        for (int i = from; i < to; i += stride) {
+            int v = (samples[i] * gain) >> GAIN_BITS;
+            samples[i] = (short) Math.max(Short.MIN_VALUE,
+                    Math.min(Short.MAX_VALUE, v));
+        }
+    }
+
+    private static short apply(short sample, int gain) {
+        int v = (sample * gain) >> GAIN_BITS;
+        return (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, v));
+    }
+
+    private static int toFixed(double gain) {
+        if (gain < 0 || gain > MAX_GAIN || Double.isNaN(gain))
+            throw new IllegalArgumentException("gain out of range [0, "
+                    + MAX_GAIN + "]: " + gain);
+        return (int) Math.round(gain * UNITY);
+    }
+}
@@ -0,0 +1,93 @@
+package video;
+
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compare {@link AudioGain} with the per sample loop the volume tools used to
+ * run, on 48 kHz stereo audio held in a direct buffer like the one of
+ * IAudioSamples.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class AudioGainBenchmark {
+
+    // sample frames per buffer: one AAC frame, and one second
+    @Param({ "1024", "48000" })
+    public int frames;
+
+    private ShortBuffer buffer;
+    private AudioGain gain;
+    private AudioGain ramp;
+
+    @Setup
+    public void setUp() {
+        buffer = ByteBuffer.allocateDirect(frames * 2 * 2).asShortBuffer();
+        Random random = new Random(42);
+        for (int i = 0; i < buffer.limit(); i++)
+            buffer.put(i, (short) random.nextInt());
+
+        // gains above and below 1 alternate so that the samples do not
+        // converge to zero or full scale over the iterations
+        gain = new AudioGain(2);
+        ramp = new AudioGain(2);
+    }
+
+    @Benchmark
+    public ShortBuffer perSampleLoop() {
+        double volume = 0.5;
+        for (int i = 0; i < buffer.limit(); ++i)
+            buffer.put(i, (short) (buffer.get(i) * volume));
+        volume = 2.0;
+        for (int i = 0; i < buffer.limit(); ++i)
+            buffer.put(i, (short) (buffer.get(i) * volume));
+        return buffer;
+    }
+
+    @Benchmark
+    public ShortBuffer fixedPointGain() {
+        gain.setGain(0.5);
+        gain.process(buffer);
+        gain.setGain(2.0);
+        gain.process(buffer);
+        return buffer;
+    }
+
+    @Benchmark
+    public ShortBuffer fixedPointRamp() {
+        ramp.rampTo(0.5, frames);
+        ramp.process(buffer);
+        ramp.rampTo(2.0, frames);
+        ramp.process(buffer);
+        return buffer;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(AudioGainBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class).build()).run();
+    }
+
+}
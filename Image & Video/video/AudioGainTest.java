@@ -0,0 +1,85 @@
+package video;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+
+import org.junit.Test;
+
+public class AudioGainTest {
+
+    @Test
+    public void testSaturation() {
+        AudioGain gain = new AudioGain(1);
+        gain.setGain(4.0);
+
+        short[] samples = { 1000, -1000, 10000, -10000, Short.MAX_VALUE,
+                Short.MIN_VALUE };
+        gain.process(samples, 0, samples.length);
+
+        assertArrayEquals(new short[] { 4000, -4000, Short.MAX_VALUE,
+                Short.MIN_VALUE, Short.MAX_VALUE, Short.MIN_VALUE }, samples);
+    }
+
+    @Test
+    public void testAttenuationMatchesDoubleMultiply() {
+        AudioGain gain = new AudioGain(2);
+        gain.setGain(0.5);
+
+        short[] samples = new short[2048];
+        for (int i = 0; i < samples.length; i++)
+            samples[i] = (short) (i * 31 - 30000);
+        short[] expected = new short[samples.length];
+        for (int i = 0; i < samples.length; i++)
+            expected[i] = (short) Math.floor(samples[i] * 0.5);
+
+        gain.process(samples, 0, samples.length);
+        assertArrayEquals(expected, samples);
+    }
+
+    @Test
+    public void testPerChannelGain() {
+        AudioGain gain = new AudioGain(2);
+        gain.setGain(0, 1.0);
+        gain.setGain(1, 0.0);
+
+        short[] samples = { 100, 100, 200, 200, 300, 300 };
+        gain.process(samples, 0, samples.length);
+
+        assertArrayEquals(new short[] { 100, 0, 200, 0, 300, 0 }, samples);
+    }
+
+    @Test
+    public void testRamp() {
+        AudioGain gain = new AudioGain(1);
+        gain.setGain(0.0);
+        gain.rampTo(1.0, 4);
+
+        short[] samples = { 1000, 1000, 1000, 1000, 1000, 1000 };
+        gain.process(samples, 0, samples.length);
+
+        assertArrayEquals(new short[] { 250, 500, 750, 1000, 1000, 1000 },
+                samples);
+        assertFalse(gain.isRamping());
+        assertEquals(1.0, gain.getGain(0), 0.0);
+    }
+
+    @Test
+    public void testDirectBuffer() {
+        ShortBuffer buffer = ByteBuffer.allocateDirect(8).asShortBuffer();
+        buffer.put(new short[] { 10, 20, 30, 40 });
+        buffer.position(2);
+
+        AudioGain gain = new AudioGain(2);
+        gain.setGain(2.0);
+        gain.process(buffer);
+
+        assertEquals(2, buffer.position());
+        assertEquals(20, buffer.get(0));
+        assertEquals(80, buffer.get(3));
+    }
+
+}
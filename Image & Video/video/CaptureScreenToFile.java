@@ -1,8 +1,5 @@
 package video;
 
-import java.awt.Rectangle;
-import java.awt.Robot;
-import java.awt.Toolkit;
 import java.awt.image.BufferedImage;
 import java.util.concurrent.TimeUnit;
 
@@ -35,12 +32,9 @@ public class CaptureScreenToFile {
                 outFile = args[0];
             else
                 outFile = "output.mp4";
-            // This is the robot for taking a snapshot of the
-            // screen.  It's part of Java AWT
-            final Robot robot = new Robot();
-            final Toolkit toolkit = Toolkit.getDefaultToolkit();
-            final Rectangle screenBounds = new Rectangle(
-                    toolkit.getScreenSize());
+            // This is the source taking snapshots of the entire screen with
+            // a robot, which is part of Java AWT
+            final RobotFrameSource source = new RobotFrameSource();
 
             // First, let's make a IMediaWriter to write the file.
             final IMediaWriter writer = ToolFactory.makeWriter(outFile);
@@ -48,33 +42,46 @@ public class CaptureScreenToFile {
             // We tell it we're going to add one video stream, with id 0,
             // at position 0, and that it will have a fixed frame rate of
             // FRAME_RATE.
-            writer.addVideoStream(0, 0, FRAME_RATE, screenBounds.width,
-                    screenBounds.height);
-
-            // Now, we're going to loop
-            long startTime = System.nanoTime();
-            for (int index = 0; index < SECONDS_TO_RUN_FOR
-                    * FRAME_RATE.getDouble(); index++) {
-                // take the screen shot
-                BufferedImage screen = robot.createScreenCapture(screenBounds);
-
-                // convert to the right image type
-                BufferedImage bgrScreen = convertToType(screen,
-                        BufferedImage.TYPE_3BYTE_BGR);
-
-                // encode the image
-                writer.encodeVideo(0, bgrScreen, System.nanoTime() - startTime,
-                        TimeUnit.NANOSECONDS);
-
-                System.out.println("encoded image: " + index);
-
-                // sleep for framerate milliseconds
-                Thread.sleep((long) (1000 / FRAME_RATE.getDouble()));
-
+            writer.addVideoStream(0, 0, FRAME_RATE, source.getWidth(),
+                    source.getHeight());
+
+            // converts the captures into a reused BGR image, using one band
+            // of rows per core
+            final FrameConverter converter = new FrameConverter(
+                    source.getWidth(), source.getHeight(),
+                    BufferedImage.TYPE_3BYTE_BGR, 1, Runtime.getRuntime()
+                            .availableProcessors());
+
+            // The engine captures on one thread and encodes on another, with
+            // up to a second of frames waiting for the encoder in between.
+            ScreenCaptureEngine engine = new ScreenCaptureEngine(source,
+                    new ScreenCaptureEngine.FrameSink() {
+                        @Override
+                        public void encode(BufferedImage frame,
+                                long timeStamp, TimeUnit unit) {
+                            writer.encodeVideo(0, frame, timeStamp, unit);
+                        }
+                    }, FRAME_RATE.getDouble(), (int) Math.ceil(FRAME_RATE
+                            .getDouble()));
+            engine.setConverter(converter);
+
+            // Frames where nothing changed on screen are not encoded at all,
+            // except for one a second so that players keep up.
+            engine.setDirtyRegionDetector(new DirtyRegionDetector(source
+                    .getWidth(), source.getHeight()));
+            engine.setKeepAlive(1, TimeUnit.SECONDS);
+
+            // Now, we're going to capture for a while
+            try {
+                engine.run(SECONDS_TO_RUN_FOR, TimeUnit.SECONDS);
+            } finally {
+                System.out.println(engine);
+
+                // Finally we tell the writer to close and write the trailer
+                // if needed
+                writer.close();
+                converter.close();
             }
-            // Finally we tell the writer to close and write the trailer if
-            // needed
-            writer.close();
         } catch (Throwable e) {
             System.err.println("an error occurred: " + e.getMessage());
         }
@@ -1,6 +1,8 @@
 package video;
 
 import java.io.File;
+import java.util.Arrays;
+import java.util.List;
 
 import com.xuggle.mediatool.IMediaReader;
 import com.xuggle.mediatool.IMediaViewer;
@@ -17,6 +19,9 @@ import com.xuggle.mediatool.event.IOpenEvent;
 import com.xuggle.mediatool.event.IVideoPictureEvent;
 import com.xuggle.mediatool.event.VideoPictureEvent;
 import com.xuggle.xuggler.IAudioSamples;
+import com.xuggle.xuggler.ICodec;
+import com.xuggle.xuggler.IContainer;
+import com.xuggle.xuggler.IStreamCoder;
 import com.xuggle.xuggler.IVideoPicture;
 
 import static java.lang.System.out;
@@ -29,36 +34,32 @@ import static java.lang.System.exit;
 
 public class ConcatenateAudioAndVideo {
     /**
-     * Concatenate two files.
+     * Concatenate files.
      * 
-     * @param args 3 strings; an input file 1, input file 2, and an output file.
+     * @param args at least 3 strings; the input files, in order, and an
+     *        output file.
      */
 
     public static void main(String[] args) {
         if (args.length < 3) {
-            out.println("Concatent two files.  The destination "
+            out.println("Concatent files.  The destination "
                     + "format will be guessed from the file extention.");
             out.println("");
-            out.println("   ConcatentateTwoFiles <source-file1> <source-file2> <destination-file>");
+            out.println("   ConcatentateFiles <source-file1> <source-file2> [...] <destination-file>");
             out.println("");
             out.println("The destination type will be guess from the supplied file extsion.");
             exit(0);
         }
 
-        File source1 = new File(args[0]);
-        File source2 = new File(args[1]);
-
-        if (!source1.exists()) {
-            out.println("Source file does not exist: " + source1);
-            exit(0);
-        }
-
-        if (!source2.exists()) {
-            out.println("Source file does not exist: " + source2);
-            exit(0);
+        List<String> sources = Arrays.asList(args).subList(0, args.length - 1);
+        for (String source : sources) {
+            if (!new File(source).exists()) {
+                out.println("Source file does not exist: " + source);
+                exit(0);
+            }
         }
 
-        concatenate(args[0], args[1], args[2]);
+        concatenate(sources, args[args.length - 1]);
     }
 
     /**
@@ -67,79 +68,173 @@ public class ConcatenateAudioAndVideo {
      * @param sourceUrl1 the file which will appear first in the output
      * @param sourceUrl2 the file which will appear second in the output
      * @param destinationUrl the file which will be produced
+     * @see #concatenate(List, String)
      */
 
     public static void concatenate(String sourceUrl1, String sourceUrl2,
             String destinationUrl) {
-        out.printf("transcode %s + %s -> %s\n", sourceUrl1, sourceUrl2,
-                destinationUrl);
-
-        //////////////////////////////////////////////////////////////////////
-        //                                                                  //
-        // NOTE: be sure that the audio and video parameters match those of //
-        // your input media                                                 //
-        //                                                                  //
-        //////////////////////////////////////////////////////////////////////
-
-        // video parameters
-
-        final int videoStreamIndex = 0;
-        final int videoStreamId = 0;
-        final int width = 1920;
-        final int height = 1080;
-
-        // audio parameters
-
-        final int audioStreamIndex = 1;
-        final int audioStreamId = 0;
-        final int channelCount = 2;
-        final int sampleRate = 48000; // Hz
-
-        // create the first media reader
-
-        IMediaReader reader1 = ToolFactory.makeReader(sourceUrl1);
-
-        // create the second media reader
-
-        IMediaReader reader2 = ToolFactory.makeReader(sourceUrl2);
-
-        // create the media concatenator
-
-        MediaConcatenator concatenator = new MediaConcatenator(
-                audioStreamIndex, videoStreamIndex);
-
-        // concatenator listens to both readers
-
-        reader1.addListener(concatenator);
-        reader2.addListener(concatenator);
-
-        // create the media writer which listens to the concatenator
-
-        IMediaWriter writer = ToolFactory.makeWriter(destinationUrl);
-        concatenator.addListener(writer);
+        concatenate(Arrays.asList(sourceUrl1, sourceUrl2), destinationUrl);
+    }
 
-        // add the video stream
+    /**
+     * Concatenate source files into one destination file. When all files
+     * have the same codec parameters their packets are copied as they are,
+     * otherwise they are decoded and encoded again. The parameters of each
+     * file are checked when the copy reaches it, so that compatible files
+     * are only opened once, and an incompatible file starts the whole
+     * concatenation over as a transcode.
+     * 
+     * @param sourceUrls the files, in the order they appear in the output
+     * @param destinationUrl the file which will be produced
+     * @throws RuntimeException if a file could not be read or the output
+     *         could not be written, which is not retried
+     */
 
-        writer.addVideoStream(videoStreamIndex, videoStreamId, width, height);
+    public static void concatenate(List<String> sourceUrls,
+            String destinationUrl) {
+        out.printf("stream copy %s -> %s\n", sourceUrls, destinationUrl);
+        try {
+            StreamCopier.concatenate(sourceUrls, destinationUrl);
+            return;
+        } catch (StreamCopier.IncompatibleStreamsException e) {
+            out.println("stream copy failed, transcoding instead: "
+                    + e.getMessage());
+        }
 
-        // add the audio stream
+        transcode(sourceUrls, destinationUrl);
+    }
 
-        writer.addAudioStream(audioStreamIndex, audioStreamId, channelCount,
-                sampleRate);
+    /**
+     * Concatenate source files into one destination file, decoding and
+     * encoding all of their media. The picture size, channel count and sample
+     * rate of the output are those of the first file, the other files must
+     * match them. Each file is opened while the one before it is transcoded.
+     * 
+     * @param sourceUrls the files, in the order they appear in the output
+     * @param destinationUrl the file which will be produced
+     */
 
-        // read packets from the first source file until done
+    public static void transcode(List<String> sourceUrls,
+            String destinationUrl) {
+        out.printf("transcode %s -> %s\n", sourceUrls, destinationUrl);
+
+        MediaPrefetcher inputs = new MediaPrefetcher(sourceUrls);
+        IMediaWriter writer = null;
+        IContainer container = null;
+        try {
+            container = inputs.next();
+
+            // the first video and audio streams of the first file give the
+            // parameters of the output
+
+            IStreamCoder video = findCoder(container,
+                    ICodec.Type.CODEC_TYPE_VIDEO);
+            IStreamCoder audio = findCoder(container,
+                    ICodec.Type.CODEC_TYPE_AUDIO);
+            if (video == null && audio == null)
+                throw new RuntimeException("no audio or video in "
+                        + sourceUrls.get(0));
+
+            // the parameters are kept, as closing the file resets its coders
+
+            final int width = video == null ? 0 : video.getWidth();
+            final int height = video == null ? 0 : video.getHeight();
+            final int channels = audio == null ? 0 : audio.getChannels();
+            final int sampleRate = audio == null ? 0 : audio.getSampleRate();
+
+            // video first, then audio
+
+            final int videoStreamIndex = 0;
+            final int videoStreamId = 0;
+            final int audioStreamIndex = video == null ? 0 : 1;
+            final int audioStreamId = 0;
+
+            // create the media concatenator
+
+            MediaConcatenator concatenator = new MediaConcatenator(
+                    audioStreamIndex, videoStreamIndex);
+
+            // create the media writer which listens to the concatenator
+
+            writer = ToolFactory.makeWriter(destinationUrl);
+            concatenator.addListener(writer);
+
+            // add the video and audio streams
+
+            if (video != null)
+                writer.addVideoStream(videoStreamIndex, videoStreamId, width,
+                        height);
+            if (audio != null)
+                writer.addAudioStream(audioStreamIndex, audioStreamId,
+                        channels, sampleRate);
+
+            // read packets from each source file until done, while the next
+            // one is opened in the background
+
+            while (true) {
+                try {
+                    checkParameters(container, width, height, channels,
+                            sampleRate);
+
+                    IMediaReader reader = ToolFactory.makeReader(container);
+                    reader.addListener(concatenator);
+                    while (reader.readPacket() == null)
+                        ;
+                } finally {
+                    container.close();
+                    container = null;
+                }
+
+                if (!inputs.hasNext())
+                    break;
+                container = inputs.next();
+            }
+        } finally {
+            // the file being read, the prefetcher only closes those it did
+            // not hand out
+            if (container != null)
+                container.close();
+            inputs.close();
 
-        while (reader1.readPacket() == null)
-            ;
+            // close the writer
 
-        // read packets from the second source file until done
+            if (writer != null)
+                writer.close();
+        }
+    }
 
-        while (reader2.readPacket() == null)
-            ;
+    // the coder of the first stream of a type, or null
 
-        // close the writer
+    private static IStreamCoder findCoder(IContainer container,
+            ICodec.Type type) {
+        for (int i = 0; i < container.getNumStreams(); i++) {
+            IStreamCoder coder = container.getStream(i).getStreamCoder();
+            if (coder.getCodecType() == type)
+                return coder;
+        }
+        return null;
+    }
 
-        writer.close();
+    // make sure that a file can go into the output streams, whose picture
+    // size is 0 without video, and channel count 0 without audio
+
+    private static void checkParameters(IContainer container, int width,
+            int height, int channels, int sampleRate) {
+        IStreamCoder v = findCoder(container, ICodec.Type.CODEC_TYPE_VIDEO);
+        if (width > 0 && v != null
+                && (v.getWidth() != width || v.getHeight() != height))
+            throw new RuntimeException(container.getURL() + " has "
+                    + v.getWidth() + "x" + v.getHeight()
+                    + " video, expected " + width + "x" + height);
+
+        IStreamCoder a = findCoder(container, ICodec.Type.CODEC_TYPE_AUDIO);
+        if (channels > 0 && a != null
+                && (a.getChannels() != channels
+                        || a.getSampleRate() != sampleRate))
+            throw new RuntimeException(container.getURL() + " has "
+                    + a.getChannels() + " channels at " + a.getSampleRate()
+                    + " Hz, expected " + channels + " channels at "
+                    + sampleRate + " Hz");
     }
 
     static class MediaConcatenator extends MediaToolAdapter {
@@ -185,9 +280,10 @@ public class ConcatenateAudioAndVideo {
 
             // keep track of predicted time of the next audio samples, if the end
             // of the media file is encountered, then the offset will be adjusted
-            // to this time.
+            // to this time. It includes the current offset, so that the
+            // offsets keep adding up over any number of files.
 
-            mNextAudio = samples.getNextPts();
+            mNextAudio = samples.getNextPts() + mOffset;
 
             // set the new timestamp on audio samples
 
@@ -221,7 +317,7 @@ public class ConcatenateAudioAndVideo {
             // increasing time stamps), is that the next video timestamp
             // should be at least one tick ahead.  So, we fake it.
 
-            mNextVideo = originalTimeStamp + 1;
+            mNextVideo = newTimeStamp + 1;
 
             // set the new timestamp on video samples
 
@@ -0,0 +1,87 @@
+package video;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Benchmark of {@link CaptureScreenToFile#convertToType(BufferedImage, int)}
+ * and {@link FrameConverter} from the usual screen capture types to the type
+ * encoded by the writer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ConvertToTypeBenchmark {
+
+    @Param({ "TYPE_INT_RGB", "TYPE_INT_ARGB", "TYPE_INT_BGR",
+            "TYPE_3BYTE_BGR" })
+    public String sourceType;
+
+    // 720p, 1080p and 4K frames
+    @Param({ "1280", "1920", "3840" })
+    public int width;
+
+    @Param({ "1", "4" })
+    public int bands;
+
+    private BufferedImage source;
+    private FrameConverter converter;
+
+    @Setup
+    public void setUp() throws ReflectiveOperationException {
+        int type = BufferedImage.class.getField(sourceType).getInt(null);
+        source = new BufferedImage(width, width * 9 / 16, type);
+        for (int y = 0; y < source.getHeight(); y++) {
+            for (int x = 0; x < source.getWidth(); x++) {
+                source.setRGB(x, y, x * 31 + y * 17);
+            }
+        }
+        converter = new FrameConverter(source.getWidth(), source.getHeight(),
+                BufferedImage.TYPE_3BYTE_BGR, 1, bands);
+    }
+
+    @TearDown
+    public void tearDown() {
+        converter.close();
+    }
+
+    @Benchmark
+    public BufferedImage convertToBgr() {
+        return CaptureScreenToFile.convertToType(source,
+                BufferedImage.TYPE_3BYTE_BGR);
+    }
+
+    @Benchmark
+    public BufferedImage pooledConverter() throws InterruptedException {
+        BufferedImage image = converter.convert(source);
+        converter.release(image);
+        return image;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(ConvertToTypeBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class).build()).run();
+    }
+
+}
@@ -0,0 +1,186 @@
+package video;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Finds the parts of a frame which changed since the previous one.
+ *
+ * Frames are divided into square tiles, and each tile is reduced to a 64 bit
+ * hash of its pixels. A tile whose hash differs from the one of the previous
+ * frame is dirty. The dirty tiles of a row are merged into rectangles, so a
+ * typical change like a moving window gives a handful of regions.
+ *
+ * Hashing reads every pixel once, in raster order, which costs a fraction of
+ * converting or encoding the frame.
+ */
+public class DirtyRegionDetector {
+    // multiplier of the tile hashes, from the 64 bit golden ratio
+
+    private static final long PRIME = 0x9E3779B97F4A7C15L;
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int mTileSize;
+    private final int mColumns;
+    private final int mRows;
+
+    // hashes of the previous frame, and of the frame being detected
+
+    private long[] mHashes;
+    private long[] mNext;
+    private boolean mFirst = true;
+
+    // a row of pixels of sources which are not int packed
+
+    private int[] mRow;
+
+    /**
+     * Create a detector with 32 pixel tiles.
+     *
+     * @param width width of the frames
+     * @param height height of the frames
+     */
+
+    public DirtyRegionDetector(int width, int height) {
+        this(width, height, 32);
+    }
+
+    /**
+     * Create a detector.
+     *
+     * @param width width of the frames
+     * @param height height of the frames
+     * @param tileSize width and height of a tile
+     */
+
+    public DirtyRegionDetector(int width, int height, int tileSize) {
+        if (width < 1 || height < 1 || tileSize < 1)
+            throw new IllegalArgumentException("invalid size " + width + "x"
+                    + height + " or tile size " + tileSize);
+
+        mWidth = width;
+        mHeight = height;
+        mTileSize = tileSize;
+        mColumns = (width + tileSize - 1) / tileSize;
+        mRows = (height + tileSize - 1) / tileSize;
+        mHashes = new long[mColumns * mRows];
+        mNext = new long[mColumns * mRows];
+    }
+
+    /**
+     * Compare a frame with the previous one. The whole first frame, and the
+     * first frame after {@link #reset()}, is dirty.
+     *
+     * @param frame a frame of the size given to the constructor
+     * @return the changed regions, empty if nothing changed
+     */
+
+    public List<Rectangle> detect(BufferedImage frame) {
+        if (frame.getWidth() != mWidth || frame.getHeight() != mHeight)
+            throw new IllegalArgumentException("expected a " + mWidth + "x"
+                    + mHeight + " frame, got " + frame.getWidth() + "x"
+                    + frame.getHeight());
+
+        hash(frame, mNext);
+
+        List<Rectangle> regions = new ArrayList<Rectangle>();
+        for (int ty = 0; ty < mRows; ty++) {
+            int tx = 0;
+            while (tx < mColumns) {
+                if (!mFirst && mNext[ty * mColumns + tx] == mHashes[ty
+                        * mColumns + tx]) {
+                    tx++;
+                    continue;
+                }
+
+                // merge the run of dirty tiles starting here
+                int start = tx;
+                while (tx < mColumns
+                        && (mFirst || mNext[ty * mColumns + tx] != mHashes[ty
+                                * mColumns + tx]))
+                    tx++;
+                int x = start * mTileSize;
+                int y = ty * mTileSize;
+                regions.add(new Rectangle(x, y, Math.min(tx * mTileSize,
+                        mWidth) - x, Math.min(y + mTileSize, mHeight) - y));
+            }
+        }
+
+        long[] swap = mHashes;
+        mHashes = mNext;
+        mNext = swap;
+        mFirst = false;
+        return Collections.unmodifiableList(regions);
+    }
+
+    /** Consider the whole next frame dirty. */
+
+    public void reset() {
+        mFirst = true;
+    }
+
+    /** The bounding box of some regions, or null if there are none. */
+
+    public static Rectangle getBounds(List<Rectangle> regions) {
+        Rectangle bounds = null;
+        for (Rectangle region : regions) {
+            if (bounds == null)
+                bounds = new Rectangle(region);
+            else
+                bounds.add(region);
+        }
+        return bounds;
+    }
+
+    // hash every tile, a row of pixels at a time
+
+    private void hash(BufferedImage frame, long[] hashes) {
+        for (int i = 0; i < hashes.length; i++)
+            hashes[i] = 1;
+
+        Raster raster = frame.getRaster();
+        int[] data = null;
+        int offset = 0;
+        int stride = 0;
+        if (raster.getDataBuffer() instanceof DataBufferInt
+                && raster.getSampleModel() instanceof SinglePixelPackedSampleModel
+                && raster.getDataBuffer().getNumBanks() == 1) {
+            SinglePixelPackedSampleModel model =
+                    (SinglePixelPackedSampleModel) raster.getSampleModel();
+            data = ((DataBufferInt) raster.getDataBuffer()).getData();
+            stride = model.getScanlineStride();
+            offset = raster.getDataBuffer().getOffset()
+                    + model.getOffset(-raster.getSampleModelTranslateX(),
+                            -raster.getSampleModelTranslateY());
+        } else if (mRow == null) {
+            mRow = new int[mWidth];
+        }
+
+        for (int y = 0; y < mHeight; y++) {
+            int[] row = data;
+            int start = offset + y * stride;
+            if (row == null) {
+                frame.getRGB(0, y, mWidth, 1, mRow, 0, mWidth);
+                row = mRow;
+                start = 0;
+            }
+
+            int tile = (y / mTileSize) * mColumns;
+            for (int x = 0; x < mWidth; x += mTileSize, tile++) {
+                long h = hashes[tile];
+                int end = start + Math.min(mTileSize, mWidth - x);
+                for (int i = start; i < end; i++)
+                    h = (h ^ row[i]) * PRIME;
+                hashes[tile] = h;
+                start = end;
+            }
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package video;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class DirtyRegionDetectorTest {
+
+    // not a multiple of the tile size, to have partial tiles
+
+    private static final int WIDTH = 100;
+    private static final int HEIGHT = 70;
+
+    @Test
+    public void testUnchangedFrame() {
+        DirtyRegionDetector detector = new DirtyRegionDetector(WIDTH, HEIGHT);
+        BufferedImage frame = new BufferedImage(WIDTH, HEIGHT,
+                BufferedImage.TYPE_INT_RGB);
+
+        // the first frame is dirty as a whole
+        List<Rectangle> regions = detector.detect(frame);
+        assertEquals(new Rectangle(0, 0, WIDTH, HEIGHT),
+                DirtyRegionDetector.getBounds(regions));
+
+        assertTrue(detector.detect(frame).isEmpty());
+        assertTrue(detector.detect(copy(frame)).isEmpty());
+        assertNull(DirtyRegionDetector.getBounds(detector.detect(frame)));
+
+        detector.reset();
+        assertEquals(3, detector.detect(frame).size());
+    }
+
+    @Test
+    public void testChangedTiles() {
+        DirtyRegionDetector detector = new DirtyRegionDetector(WIDTH, HEIGHT);
+        BufferedImage frame = new BufferedImage(WIDTH, HEIGHT,
+                BufferedImage.TYPE_INT_RGB);
+        detector.detect(frame);
+
+        frame.setRGB(40, 10, 0xffffff);
+        assertEquals(Arrays.asList(new Rectangle(32, 0, 32, 32)),
+                detector.detect(frame));
+
+        // adjacent tiles of a row are merged, partial tiles are clipped
+        frame.setRGB(70, 65, 0x123456);
+        frame.setRGB(99, 69, 0x654321);
+        frame.setRGB(5, 40, 0x010101);
+        List<Rectangle> regions = detector.detect(frame);
+        assertEquals(Arrays.asList(new Rectangle(0, 32, 32, 32),
+                new Rectangle(64, 64, 36, 6)), regions);
+        assertEquals(new Rectangle(0, 32, 100, 38),
+                DirtyRegionDetector.getBounds(regions));
+    }
+
+    @Test
+    public void testOtherImageType() {
+        DirtyRegionDetector detector = new DirtyRegionDetector(WIDTH, HEIGHT,
+                16);
+        BufferedImage frame = new BufferedImage(WIDTH, HEIGHT,
+                BufferedImage.TYPE_3BYTE_BGR);
+        detector.detect(frame);
+        assertTrue(detector.detect(frame).isEmpty());
+
+        frame.setRGB(17, 17, 0xff0000);
+        assertEquals(Arrays.asList(new Rectangle(16, 16, 16, 16)),
+                detector.detect(frame));
+    }
+
+    private static BufferedImage copy(BufferedImage image) {
+        BufferedImage copy = new BufferedImage(image.getWidth(),
+                image.getHeight(), image.getType());
+        copy.setData(image.getRaster());
+        return copy;
+    }
+
+}
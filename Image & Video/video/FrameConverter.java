@@ -0,0 +1,342 @@
+package video;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+
+/**
+ * Converts captured frames to the image type expected by the encoder, like
+ * {@link CaptureScreenToFile#convertToType(BufferedImage, int)}, but into a
+ * fixed pool of target images instead of a new image per frame.
+ *
+ * The usual conversions to {@link BufferedImage#TYPE_3BYTE_BGR} (from
+ * TYPE_INT_RGB, TYPE_INT_ARGB and TYPE_INT_BGR) copy the pixels directly
+ * between the rasters. Other conversions fall back to drawing the source. The
+ * rows of a frame can be split into bands converted in parallel.
+ *
+ * A converted image must be handed back with {@link #release(BufferedImage)}
+ * once it has been encoded; {@link #convert(BufferedImage)} waits for one to
+ * be released when the whole pool is in use.
+ */
+public class FrameConverter {
+    private final int mWidth;
+    private final int mHeight;
+    private final int mTargetType;
+
+    private final BlockingQueue<BufferedImage> mFree;
+    private final Set<BufferedImage> mPooled = Collections
+            .newSetFromMap(new IdentityHashMap<BufferedImage, Boolean>());
+
+    // band workers, the calling thread converts the first band itself
+
+    private final Thread[] mWorkers;
+    private final CyclicBarrier mStart;
+    private final CyclicBarrier mDone;
+    private volatile BufferedImage mSource;
+    private volatile BufferedImage mTarget;
+    private volatile boolean mClosed = false;
+
+    // the first failure of a band of the current frame, the bands still
+    // reach both barriers so that the workers stay in step
+
+    private Throwable mFailure;
+
+    /**
+     * Create a converter converting on the calling thread only.
+     *
+     * @param width width of the frames
+     * @param height height of the frames
+     * @param targetType the {@link BufferedImage} type to convert to
+     * @param poolSize number of target images
+     */
+
+    public FrameConverter(int width, int height, int targetType, int poolSize) {
+        this(width, height, targetType, poolSize, 1);
+    }
+
+    /**
+     * Create a converter.
+     *
+     * @param width width of the frames
+     * @param height height of the frames
+     * @param targetType the {@link BufferedImage} type to convert to
+     * @param poolSize number of target images
+     * @param bands number of row bands converted in parallel, 1 converts on
+     *        the calling thread only
+     */
+
+    public FrameConverter(int width, int height, int targetType,
+            int poolSize, int bands) {
+        if (poolSize < 1 || bands < 1)
+            throw new IllegalArgumentException("invalid pool size " + poolSize
+                    + " or band count " + bands);
+
+        mWidth = width;
+        mHeight = height;
+        mTargetType = targetType;
+
+        mFree = new ArrayBlockingQueue<BufferedImage>(poolSize);
+        for (int i = 0; i < poolSize; i++) {
+            BufferedImage image = new BufferedImage(width, height, targetType);
+            mPooled.add(image);
+            mFree.add(image);
+        }
+
+        bands = Math.min(bands, height);
+        mWorkers = new Thread[bands - 1];
+        mStart = new CyclicBarrier(bands);
+        mDone = new CyclicBarrier(bands);
+        for (int i = 0; i < mWorkers.length; i++) {
+            final int band = i + 1;
+            mWorkers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runBand(band);
+                }
+            }, "frame-converter-" + band);
+            mWorkers[i].setDaemon(true);
+            mWorkers[i].start();
+        }
+    }
+
+    /**
+     * Convert a frame. A frame which already has the target type is returned
+     * as it is, otherwise it is converted into a free pooled image.
+     *
+     * @param source a frame of the size given to the constructor
+     * @return the converted frame
+     * @throws InterruptedException if interrupted while waiting for a free
+     *         image
+     */
+
+    public BufferedImage convert(BufferedImage source)
+            throws InterruptedException {
+        if (source.getType() == mTargetType)
+            return source;
+        if (source.getWidth() != mWidth || source.getHeight() != mHeight)
+            throw new IllegalArgumentException("expected a " + mWidth + "x"
+                    + mHeight + " frame, got " + source.getWidth() + "x"
+                    + source.getHeight());
+        if (mClosed)
+            throw new IllegalStateException("converter is closed");
+
+        BufferedImage target = mFree.take();
+        if (!isDirect(source.getType())) {
+            draw(source, target);
+            return target;
+        }
+
+        if (mWorkers.length == 0) {
+            convertRows(source, target, 0, mHeight);
+            return target;
+        }
+
+        mSource = source;
+        mTarget = target;
+        Throwable failure;
+        try {
+            mStart.await();
+            runRows(0);
+            mDone.await();
+            synchronized (this) {
+                failure = mFailure;
+                mFailure = null;
+            }
+        } catch (BrokenBarrierException e) {
+            release(target);
+            throw new IllegalStateException("band worker failed", e);
+        } catch (InterruptedException e) {
+            release(target);
+            throw e;
+        } finally {
+            mSource = null;
+            mTarget = null;
+        }
+
+        if (failure != null) {
+            release(target);
+            if (failure instanceof RuntimeException)
+                throw (RuntimeException) failure;
+            if (failure instanceof Error)
+                throw (Error) failure;
+            throw new IllegalStateException("band conversion failed", failure);
+        }
+        return target;
+    }
+
+    /**
+     * Hand a converted frame back to the pool. Frames which are not from the
+     * pool, i.e. were returned unconverted, are ignored.
+     */
+
+    public void release(BufferedImage image) {
+        if (mPooled.contains(image))
+            mFree.offer(image);
+    }
+
+    /** Stop the band workers. */
+
+    public void close() {
+        mClosed = true;
+        for (Thread worker : mWorkers)
+            worker.interrupt();
+    }
+
+    private void runBand(int band) {
+        try {
+            while (!mClosed) {
+                mStart.await();
+                runRows(band);
+                mDone.await();
+            }
+        } catch (InterruptedException e) {
+            // closed
+        } catch (BrokenBarrierException e) {
+            // another party was interrupted, give up as well
+        }
+    }
+
+    // convert a band, a failure is kept for the calling thread to report
+
+    private void runRows(int band) {
+        int bands = mWorkers.length + 1;
+        int from = mHeight * band / bands;
+        int to = mHeight * (band + 1) / bands;
+        try {
+            convertRows(mSource, mTarget, from, to);
+        } catch (Throwable t) {
+            synchronized (this) {
+                if (mFailure == null)
+                    mFailure = t;
+            }
+        }
+    }
+
+    private boolean isDirect(int sourceType) {
+        return mTargetType == BufferedImage.TYPE_3BYTE_BGR
+                && (sourceType == BufferedImage.TYPE_INT_RGB
+                        || sourceType == BufferedImage.TYPE_INT_ARGB
+                        || sourceType == BufferedImage.TYPE_INT_BGR);
+    }
+
+    // copy the rows [from, to) of an int packed source into a BGR target
+
+    private void convertRows(BufferedImage source, BufferedImage target,
+            int from, int to) {
+        Raster raster = source.getRaster();
+        SinglePixelPackedSampleModel model =
+                (SinglePixelPackedSampleModel) raster.getSampleModel();
+        int[] src = ((DataBufferInt) raster.getDataBuffer()).getData();
+        int srcStride = model.getScanlineStride();
+        int srcOffset = raster.getDataBuffer().getOffset()
+                + model.getOffset(-raster.getSampleModelTranslateX(),
+                        -raster.getSampleModelTranslateY());
+
+        byte[] dst = ((DataBufferByte) target.getRaster().getDataBuffer())
+                .getData();
+        int dstStride = mWidth * 3;
+
+        switch (source.getType()) {
+        case BufferedImage.TYPE_INT_RGB:
+            for (int y = from; y < to; y++)
+                packedRow(src, srcOffset + y * srcStride, dst, y * dstStride,
+                        mWidth, 0, 16);
+            break;
+
+        case BufferedImage.TYPE_INT_BGR:
+            for (int y = from; y < to; y++)
+                packedRow(src, srcOffset + y * srcStride, dst, y * dstStride,
+                        mWidth, 16, 0);
+            break;
+
+        case BufferedImage.TYPE_INT_ARGB:
+            // same result as drawing over the black of a new image
+            for (int y = from; y < to; y++) {
+                int s = srcOffset + y * srcStride;
+                int d = y * dstStride;
+                for (int x = 0; x < mWidth; x++, d += 3) {
+                    int p = src[s + x];
+                    int a = p >>> 24;
+                    if (a == 0xff) {
+                        dst[d] = (byte) p;
+                        dst[d + 1] = (byte) (p >> 8);
+                        dst[d + 2] = (byte) (p >> 16);
+                    } else {
+                        dst[d] = (byte) mul8(p & 0xff, a);
+                        dst[d + 1] = (byte) mul8((p >> 8) & 0xff, a);
+                        dst[d + 2] = (byte) mul8((p >> 16) & 0xff, a);
+                    }
+                }
+            }
+            break;
+
+        default:
+            throw new IllegalArgumentException(
+                    "no direct conversion from type " + source.getType());
+        }
+    }
+
+    // Copy a row of opaque int pixels into BGR bytes, blue and red being at
+    // the given shifts of the int. Unrolled by four pixels, which the JIT
+    // turns into far fewer bounds checks than the plain loop.
+
+    private static void packedRow(int[] src, int s, byte[] dst, int d,
+            int width, int blueShift, int redShift) {
+        int end = s + width;
+        for (; s + 3 < end; s += 4, d += 12) {
+            int p0 = src[s], p1 = src[s + 1], p2 = src[s + 2], p3 = src[s + 3];
+            dst[d + 11] = (byte) (p3 >> redShift);
+            dst[d] = (byte) (p0 >> blueShift);
+            dst[d + 1] = (byte) (p0 >> 8);
+            dst[d + 2] = (byte) (p0 >> redShift);
+            dst[d + 3] = (byte) (p1 >> blueShift);
+            dst[d + 4] = (byte) (p1 >> 8);
+            dst[d + 5] = (byte) (p1 >> redShift);
+            dst[d + 6] = (byte) (p2 >> blueShift);
+            dst[d + 7] = (byte) (p2 >> 8);
+            dst[d + 8] = (byte) (p2 >> redShift);
+            dst[d + 9] = (byte) (p3 >> blueShift);
+            dst[d + 10] = (byte) (p3 >> 8);
+        }
+        for (; s < end; s++, d += 3) {
+            int p = src[s];
+            dst[d] = (byte) (p >> blueShift);
+            dst[d + 1] = (byte) (p >> 8);
+            dst[d + 2] = (byte) (p >> redShift);
+        }
+    }
+
+    // a color component scaled by an alpha value, both from 0 to 255
+
+    private static int mul8(int c, int a) {
+        return (c * a + 127) / 255;
+    }
+
+    // the generic path, clear the reused target so that translucent sources
+    // end up like on a new image
+
+    private static void draw(BufferedImage source, BufferedImage target) {
+        Graphics2D g = target.createGraphics();
+        try {
+            if (source.getColorModel().hasAlpha()) {
+                g.setComposite(AlphaComposite.Clear);
+                g.fillRect(0, 0, target.getWidth(), target.getHeight());
+                g.setComposite(AlphaComposite.SrcOver);
+            }
+            g.drawImage(source, 0, 0, null);
+        } finally {
+            g.dispose();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package video;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.WritableRaster;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class FrameConverterTest {
+
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+
+    @Test
+    public void testSameAsConvertToType() throws InterruptedException {
+        int[] types = { BufferedImage.TYPE_INT_RGB,
+                BufferedImage.TYPE_INT_BGR, BufferedImage.TYPE_INT_ARGB,
+                BufferedImage.TYPE_USHORT_565_RGB };
+
+        FrameConverter converter = new FrameConverter(WIDTH, HEIGHT,
+                BufferedImage.TYPE_3BYTE_BGR, 2, 3);
+        try {
+            for (int type : types) {
+                BufferedImage source = randomImage(type);
+                BufferedImage expected = CaptureScreenToFile.convertToType(
+                        source, BufferedImage.TYPE_3BYTE_BGR);
+
+                BufferedImage actual = converter.convert(source);
+                assertEquals(BufferedImage.TYPE_3BYTE_BGR, actual.getType());
+                assertArrayEquals(bytes(expected), bytes(actual));
+                converter.release(actual);
+            }
+        } finally {
+            converter.close();
+        }
+    }
+
+    @Test
+    public void testPoolIsReused() throws InterruptedException {
+        FrameConverter converter = new FrameConverter(WIDTH, HEIGHT,
+                BufferedImage.TYPE_3BYTE_BGR, 1);
+        BufferedImage source = randomImage(BufferedImage.TYPE_INT_RGB);
+
+        BufferedImage first = converter.convert(source);
+        converter.release(first);
+        assertSame(first, converter.convert(source));
+    }
+
+    @Test
+    public void testTargetTypeIsReturnedAsItIs() throws InterruptedException {
+        FrameConverter converter = new FrameConverter(WIDTH, HEIGHT,
+                BufferedImage.TYPE_3BYTE_BGR, 1);
+        BufferedImage source = randomImage(BufferedImage.TYPE_3BYTE_BGR);
+
+        assertSame(source, converter.convert(source));
+    }
+
+    @Test
+    public void testBandFailureIsReported() throws Exception {
+        // a single pooled image, which must be released after a failure
+        final FrameConverter converter = new FrameConverter(WIDTH, HEIGHT,
+                BufferedImage.TYPE_3BYTE_BGR, 1, 3);
+        final BufferedImage source = randomImage(BufferedImage.TYPE_INT_RGB);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            // failing on a band worker, then on the calling thread
+            for (final boolean onWorker : new boolean[] { true, false }) {
+                final BufferedImage broken = new BufferedImage(WIDTH, HEIGHT,
+                        BufferedImage.TYPE_INT_RGB) {
+                    @Override
+                    public WritableRaster getRaster() {
+                        if (Thread.currentThread().getName().startsWith(
+                                "frame-converter-") == onWorker)
+                            throw new IllegalStateException("broken");
+                        return super.getRaster();
+                    }
+                };
+
+                // the converter must not hang on the next frame
+                BufferedImage converted = executor.submit(
+                        new Callable<BufferedImage>() {
+                            @Override
+                            public BufferedImage call() throws Exception {
+                                try {
+                                    converter.convert(broken);
+                                    fail("the failure was not reported");
+                                } catch (IllegalStateException e) {
+                                    assertEquals("broken", e.getMessage());
+                                }
+                                return converter.convert(source);
+                            }
+                        }).get(5, TimeUnit.SECONDS);
+                assertArrayEquals(bytes(CaptureScreenToFile.convertToType(
+                        source, BufferedImage.TYPE_3BYTE_BGR)),
+                        bytes(converted));
+                converter.release(converted);
+            }
+        } finally {
+            executor.shutdownNow();
+            converter.close();
+        }
+    }
+
+    private static BufferedImage randomImage(int type) {
+        Random random = new Random(type);
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, type);
+        for (int y = 0; y < HEIGHT; y++)
+            for (int x = 0; x < WIDTH; x++)
+                image.setRGB(x, y, random.nextInt() | 0xff000000);
+        return image;
+    }
+
+    private static byte[] bytes(BufferedImage image) {
+        return ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+    }
+
+}
@@ -0,0 +1,28 @@
+package video;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Something frames can be captured from, like the screen.
+ *
+ * @see ScreenCaptureEngine
+ */
+public interface FrameSource {
+
+    /** Width of the captured frames. */
+
+    int getWidth();
+
+    /** Height of the captured frames. */
+
+    int getHeight();
+
+    /**
+     * Capture a frame. The returned image is handed over to the caller and is
+     * not modified by the source afterwards.
+     *
+     * @throws Exception if the frame could not be captured
+     */
+
+    BufferedImage capture() throws Exception;
+}
@@ -0,0 +1,313 @@
+package video;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.util.Arrays;
+
+/**
+ * Blends a translucent image, such as a logo, over video frames.
+ *
+ * The overlay is rendered once, for the type of the frames, into
+ * premultiplied pixels in the channel order of the frame rasters, cropped to
+ * its pixels which are not fully transparent, along with the spans of
+ * opaque and translucent pixels of each row. Each frame then only gets a
+ * copy of the opaque spans and a blend of the translucent ones into its
+ * raster, with no {@link Graphics2D}. Frames
+ * of type {@link BufferedImage#TYPE_3BYTE_BGR}, as generated by the media
+ * reader, {@link BufferedImage#TYPE_INT_RGB} and
+ * {@link BufferedImage#TYPE_INT_BGR} are blended directly; other types fall
+ * back to drawing the overlay.
+ */
+public class ImageOverlay {
+    private final BufferedImage mImage;
+    private int mX;
+    private int mY;
+    private float mOpacity = 1;
+
+    // the frame type the overlay is rendered for, -1 when it must be
+    // rendered again
+
+    private int mType = -1;
+
+    // the rendered part of the overlay, in overlay coordinates
+
+    private int mLeft;
+    private int mTop;
+    private int mWidth;
+    private int mHeight;
+
+    // premultiplied colors, packed in the order of the frame channels with
+    // 256 minus the alpha scaled to 0..256 in the high byte, row by row, and
+    // the colors as bytes for byte frames; the high byte is 0 for opaque
+    // pixels, and only used for translucent ones, for which it is 1..255
+
+    private int[] mColors;
+    private byte[] mBytes;
+
+    // the spans of opaque or translucent pixels of each row, as start, end
+    // and whether they are opaque, the spans of row y being from
+    // mRowSpans[y] to mRowSpans[y + 1]
+
+    private int[] mSpans;
+    private int[] mRowSpans;
+
+    // the overlay with the opacity applied, for the generic path
+
+    private BufferedImage mDrawn;
+
+    /**
+     * Create an overlay, at the top left corner and opaque.
+     *
+     * @param image the overlay, with or without alpha
+     */
+
+    public ImageOverlay(BufferedImage image) {
+        mImage = image;
+    }
+
+    /** Where the top left corner of the overlay goes in the frames. */
+
+    public void setPosition(int x, int y) {
+        mX = x;
+        mY = y;
+    }
+
+    /** The opacity of the overlay, from 0 to 1, multiplied with its alpha. */
+
+    public void setOpacity(float opacity) {
+        if (opacity < 0 || opacity > 1)
+            throw new IllegalArgumentException("invalid opacity " + opacity);
+        mOpacity = opacity;
+        mType = -1;
+    }
+
+    /**
+     * The area of the frames the overlay changes, before clipping to the
+     * frames. Empty if the overlay is fully transparent.
+     */
+
+    public Rectangle getBounds() {
+        if (mType == -1)
+            render(BufferedImage.TYPE_3BYTE_BGR);
+        return new Rectangle(mX + mLeft, mY + mTop, mWidth, mHeight);
+    }
+
+    /**
+     * Blend the overlay into a frame.
+     *
+     * @param frame the frame, changed in place
+     */
+
+    public void apply(BufferedImage frame) {
+        if (frame.getType() != mType)
+            render(frame.getType());
+
+        // the part of the rendered overlay inside the frame
+        Rectangle area = new Rectangle(mX + mLeft, mY + mTop, mWidth, mHeight)
+                .intersection(new Rectangle(frame.getWidth(), frame
+                        .getHeight()));
+        if (area.isEmpty())
+            return;
+
+        switch (frame.getType()) {
+        case BufferedImage.TYPE_3BYTE_BGR:
+            blendBytes(frame.getRaster(), area);
+            break;
+
+        case BufferedImage.TYPE_INT_RGB:
+        case BufferedImage.TYPE_INT_BGR:
+            blendInts(frame.getRaster(), area);
+            break;
+
+        default:
+            Graphics2D g = frame.createGraphics();
+            try {
+                g.drawImage(mDrawn, mX, mY, null);
+            } finally {
+                g.dispose();
+            }
+        }
+    }
+
+    // render the overlay for a frame type
+
+    private void render(int type) {
+        int width = mImage.getWidth();
+        int height = mImage.getHeight();
+        int[] argb = mImage.getRGB(0, 0, width, height, null, 0, width);
+
+        // crop to the pixels which are not transparent once the opacity is
+        // applied
+        int left = width, top = height, right = -1, bottom = -1;
+        for (int i = 0; i < argb.length; i++) {
+            int a = Math.round((argb[i] >>> 24) * mOpacity);
+            argb[i] = a << 24 | (argb[i] & 0xffffff);
+            if (a != 0) {
+                int x = i % width, y = i / width;
+                left = Math.min(left, x);
+                right = Math.max(right, x);
+                top = Math.min(top, y);
+                bottom = Math.max(bottom, y);
+            }
+        }
+        if (right < 0) {
+            left = top = 0;
+            right = bottom = -1;
+        }
+        mLeft = left;
+        mTop = top;
+        mWidth = right - left + 1;
+        mHeight = bottom - top + 1;
+
+        // the lowest channel is blue for BGR bytes and RGB ints, red for BGR
+        // ints
+        int lowShift = type == BufferedImage.TYPE_INT_BGR ? 16 : 0;
+        int highShift = 16 - lowShift;
+        mColors = new int[mWidth * mHeight];
+        mBytes = new byte[mWidth * mHeight * 3];
+        mRowSpans = new int[mHeight + 1];
+        int[] spans = new int[3 * 16];
+        int count = 0;
+        for (int y = 0; y < mHeight; y++) {
+            mRowSpans[y] = count;
+            for (int x = 0; x < mWidth; x++) {
+                int p = argb[(top + y) * width + left + x];
+                int a = p >>> 24;
+                int i = y * mWidth + x;
+                int c = mul8((p >> lowShift) & 0xff, a)
+                        | mul8((p >> 8) & 0xff, a) << 8
+                        | mul8((p >> highShift) & 0xff, a) << 16;
+                mColors[i] = (256 - (a + (a >> 7))) % 256 << 24 | c;
+                mBytes[3 * i] = (byte) c;
+                mBytes[3 * i + 1] = (byte) (c >> 8);
+                mBytes[3 * i + 2] = (byte) (c >> 16);
+
+                if (a == 0)
+                    continue;
+                int opaque = a == 0xff ? 1 : 0;
+                if (count > mRowSpans[y] && spans[3 * count - 2] == x
+                        && spans[3 * count - 1] == opaque) {
+                    spans[3 * count - 2] = x + 1;
+                } else {
+                    if (3 * count == spans.length)
+                        spans = Arrays.copyOf(spans, 2 * spans.length);
+                    spans[3 * count] = x;
+                    spans[3 * count + 1] = x + 1;
+                    spans[3 * count + 2] = opaque;
+                    count++;
+                }
+            }
+        }
+        mRowSpans[mHeight] = count;
+        mSpans = Arrays.copyOf(spans, 3 * count);
+
+        mDrawn = new BufferedImage(width, height,
+                BufferedImage.TYPE_INT_ARGB_PRE);
+        Graphics2D g = mDrawn.createGraphics();
+        try {
+            g.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER,
+                    mOpacity));
+            g.drawImage(mImage, 0, 0, null);
+        } finally {
+            g.dispose();
+        }
+        mType = type;
+    }
+
+    // blend into three bytes per pixel, the lowest channel first
+
+    private void blendBytes(Raster raster, Rectangle area) {
+        ComponentSampleModel model = (ComponentSampleModel) raster
+                .getSampleModel();
+        byte[] dst = ((DataBufferByte) raster.getDataBuffer()).getData();
+        int stride = model.getScanlineStride();
+        // the offset of the first pixel rather than of its first band, red
+        int offset = raster.getDataBuffer().getOffset()
+                + model.getOffset(-raster.getSampleModelTranslateX(),
+                        -raster.getSampleModelTranslateY())
+                - model.getBandOffsets()[0];
+
+        int left = mX + mLeft;
+        for (int y = area.y; y < area.y + area.height; y++) {
+            int row = y - mY - mTop;
+            for (int k = mRowSpans[row]; k < mRowSpans[row + 1]; k++) {
+                int from = Math.max(left + mSpans[3 * k], area.x);
+                int to = Math.min(left + mSpans[3 * k + 1], area.x
+                        + area.width);
+                if (from >= to)
+                    continue;
+
+                int s = row * mWidth + from - left;
+                int d = offset + y * stride + from * 3;
+                if (mSpans[3 * k + 2] != 0) {
+                    System.arraycopy(mBytes, 3 * s, dst, d, 3 * (to - from));
+                    continue;
+                }
+                for (int end = s + to - from; s < end; s++, d += 3) {
+                    int p = (dst[d] & 0xff) | (dst[d + 1] & 0xff) << 8
+                            | (dst[d + 2] & 0xff) << 16;
+                    p = blend(mColors[s], p);
+                    dst[d] = (byte) p;
+                    dst[d + 1] = (byte) (p >> 8);
+                    dst[d + 2] = (byte) (p >> 16);
+                }
+            }
+        }
+    }
+
+    // blend into packed ints
+
+    private void blendInts(Raster raster, Rectangle area) {
+        SinglePixelPackedSampleModel model =
+                (SinglePixelPackedSampleModel) raster.getSampleModel();
+        int[] dst = ((DataBufferInt) raster.getDataBuffer()).getData();
+        int stride = model.getScanlineStride();
+        int offset = raster.getDataBuffer().getOffset()
+                + model.getOffset(-raster.getSampleModelTranslateX(),
+                        -raster.getSampleModelTranslateY());
+
+        int left = mX + mLeft;
+        for (int y = area.y; y < area.y + area.height; y++) {
+            int row = y - mY - mTop;
+            for (int k = mRowSpans[row]; k < mRowSpans[row + 1]; k++) {
+                int from = Math.max(left + mSpans[3 * k], area.x);
+                int to = Math.min(left + mSpans[3 * k + 1], area.x
+                        + area.width);
+                if (from >= to)
+                    continue;
+
+                int s = row * mWidth + from - left;
+                int d = offset + y * stride + from;
+                if (mSpans[3 * k + 2] != 0) {
+                    System.arraycopy(mColors, s, dst, d, to - from);
+                    continue;
+                }
+                for (int end = s + to - from; s < end; s++, d++)
+                    dst[d] = blend(mColors[s], dst[d]);
+            }
+        }
+    }
+
+    // a premultiplied color over a packed pixel, the outer channels and the
+    // middle one in two multiplications
+
+    private static int blend(int color, int p) {
+        int inverse = color >>> 24;
+        return (color & 0xffffff)
+                + (((p & 0xff00ff) * inverse >> 8) & 0xff00ff)
+                + (((p & 0x00ff00) * inverse >> 8) & 0x00ff00);
+    }
+
+    // a color component scaled by an alpha value, both from 0 to 255
+
+    private static int mul8(int c, int a) {
+        return (c * a + 127) / 255;
+    }
+}
@@ -0,0 +1,94 @@
+package video;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Benchmark of burning a logo into a frame, drawn per frame as the logo tool
+ * of {@link XuggleTest} used to do, and blended by an {@link ImageOverlay}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ImageOverlayBenchmark {
+
+    // 1080p and 4K frames
+    @Param({ "1920", "3840" })
+    public int width;
+
+    @Param({ "1", "0.6" })
+    public float opacity;
+
+    private BufferedImage frame;
+    private BufferedImage logo;
+    private ImageOverlay overlay;
+
+    @Setup
+    public void setUp() {
+        frame = new BufferedImage(width, width * 9 / 16,
+                BufferedImage.TYPE_3BYTE_BGR);
+        // an anti-aliased logo, with transparent corners
+        logo = new BufferedImage(320, 120, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = logo.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                RenderingHints.VALUE_ANTIALIAS_ON);
+        g.setColor(Color.WHITE);
+        g.fillRoundRect(4, 4, 312, 112, 30, 30);
+        g.setColor(Color.RED);
+        g.setFont(new Font(Font.SANS_SERIF, Font.BOLD, 60));
+        g.drawString("LOGO", 40, 90);
+        g.dispose();
+
+        overlay = new ImageOverlay(logo);
+        overlay.setOpacity(opacity);
+        overlay.setPosition(logo.getWidth(), logo.getHeight());
+    }
+
+    @Benchmark
+    public BufferedImage drawPerFrame() {
+        Graphics2D g = frame.createGraphics();
+        Rectangle2D bounds = new Rectangle2D.Float(0, 0, logo.getWidth(),
+                logo.getHeight());
+        g.translate(logo.getWidth(), logo.getHeight());
+        g.setColor(Color.WHITE);
+        g.fill(bounds);
+        g.drawImage(logo, 0, 0, null);
+        g.dispose();
+        return frame;
+    }
+
+    @Benchmark
+    public BufferedImage overlay() {
+        overlay.apply(frame);
+        return frame;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(
+                ImageOverlayBenchmark.class.getSimpleName()).build()).run();
+    }
+
+}
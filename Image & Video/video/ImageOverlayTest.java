@@ -0,0 +1,109 @@
+package video;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ImageOverlayTest {
+
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+
+    @Test
+    public void testSameAsDrawing() {
+        int[] types = { BufferedImage.TYPE_3BYTE_BGR,
+                BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_BGR,
+                BufferedImage.TYPE_USHORT_565_RGB };
+        BufferedImage logo = logo();
+
+        for (int type : types) {
+            for (float opacity : new float[] { 1, 0.5f }) {
+                // partly outside the frame
+                for (int[] position : new int[][] { { 10, 7 }, { -5, 40 },
+                        { 50, -3 } }) {
+                    BufferedImage frame = randomImage(type);
+                    BufferedImage expected = randomImage(type);
+                    Graphics2D g = expected.createGraphics();
+                    g.setComposite(AlphaComposite.getInstance(
+                            AlphaComposite.SRC_OVER, opacity));
+                    g.drawImage(logo, position[0], position[1], null);
+                    g.dispose();
+
+                    ImageOverlay overlay = new ImageOverlay(logo);
+                    overlay.setOpacity(opacity);
+                    overlay.setPosition(position[0], position[1]);
+                    overlay.apply(frame);
+
+                    assertClose(type + " at " + position[0] + ","
+                            + position[1], expected, frame);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testBoundsAreCroppedToVisiblePixels() {
+        BufferedImage logo = logo();
+        ImageOverlay overlay = new ImageOverlay(logo);
+        overlay.setPosition(100, 200);
+        assertEquals(new Rectangle(102, 201, 16, 10), overlay.getBounds());
+
+        overlay.setOpacity(0);
+        assertTrue(overlay.getBounds().isEmpty());
+        BufferedImage frame = randomImage(BufferedImage.TYPE_3BYTE_BGR);
+        BufferedImage expected = randomImage(BufferedImage.TYPE_3BYTE_BGR);
+        overlay.setPosition(0, 0);
+        overlay.apply(frame);
+        assertClose("transparent", expected, frame);
+    }
+
+    // a 20x12 overlay with a transparent border, and translucent and opaque
+    // pixels inside
+
+    private static BufferedImage logo() {
+        BufferedImage logo = new BufferedImage(20, 12,
+                BufferedImage.TYPE_INT_ARGB);
+        Random random = new Random(7);
+        for (int y = 1; y < 11; y++)
+            for (int x = 2; x < 18; x++)
+                logo.setRGB(x, y, (x < 10 ? 0xff000000 : random.nextInt(256)
+                        << 24)
+                        | random.nextInt(0x1000000));
+        return logo;
+    }
+
+    // the same pseudo random pixels for each call
+
+    private static BufferedImage randomImage(int type) {
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, type);
+        Random random = new Random(42);
+        for (int y = 0; y < HEIGHT; y++)
+            for (int x = 0; x < WIDTH; x++)
+                image.setRGB(x, y, random.nextInt());
+        return image;
+    }
+
+    private static void assertClose(String message, BufferedImage expected,
+            BufferedImage actual) {
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int e = expected.getRGB(x, y);
+                int a = actual.getRGB(x, y);
+                for (int shift = 0; shift < 24; shift += 8)
+                    assertTrue(message + " at " + x + "," + y + ": "
+                            + Integer.toHexString(e) + " != "
+                            + Integer.toHexString(a), Math.abs((e >> shift
+                            & 0xff)
+                            - (a >> shift & 0xff)) <= 2);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,380 @@
+package video;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.xuggle.mediatool.IMediaTool;
+import com.xuggle.mediatool.MediaListenerAdapter;
+import com.xuggle.mediatool.MediaToolAdapter;
+import com.xuggle.mediatool.event.IAddStreamEvent;
+import com.xuggle.mediatool.event.IAudioSamplesEvent;
+import com.xuggle.mediatool.event.ICloseCoderEvent;
+import com.xuggle.mediatool.event.ICloseEvent;
+import com.xuggle.mediatool.event.IFlushEvent;
+import com.xuggle.mediatool.event.IOpenCoderEvent;
+import com.xuggle.mediatool.event.IOpenEvent;
+import com.xuggle.mediatool.event.IReadPacketEvent;
+import com.xuggle.mediatool.event.IVideoPictureEvent;
+import com.xuggle.mediatool.event.IWriteHeaderEvent;
+import com.xuggle.mediatool.event.IWritePacketEvent;
+import com.xuggle.mediatool.event.IWriteTrailerEvent;
+import com.xuggle.xuggler.IMediaData;
+
+/**
+ * Measures a tool of a chain, such as the time stamp or volume tools of
+ * {@link ModifyVideoAndAudio}. It takes the place of the tool in the chain:
+ * events are passed to the tool, and what the tool passes on goes to the
+ * listeners of this one.
+ *
+ * The time each video picture and audio samples event spends in the tool is
+ * recorded in a {@link LatencyHistogram}, not counting the time spent by the
+ * tools after it, which run within its callback. The events and the bytes of
+ * their media are counted too. All this is a few clock reads and atomic
+ * increments per event, small next to decoding or encoding one.
+ *
+ * The numbers are exposed as a {@link InstrumentedMediaToolMXBean}, see
+ * {@link PipelineMonitor}.
+ */
+public class InstrumentedMediaTool extends MediaToolAdapter implements
+        InstrumentedMediaToolMXBean {
+
+    private final String mName;
+
+    private final IMediaTool mTool;
+
+    private final LatencyHistogram mVideoLatency = new LatencyHistogram();
+
+    private final LatencyHistogram mAudioLatency = new LatencyHistogram();
+
+    private final AtomicLong mBytes = new AtomicLong();
+
+    // when the first picture was seen, 0 before
+
+    private final AtomicLong mFirstPicture = new AtomicLong();
+
+    // the time spent after the tool by the current event of each thread
+
+    private final ThreadLocal<long[]> mDownstream = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[1];
+        }
+    };
+
+    /**
+     * Wrap a tool. The tool must not have listeners of its own, add them to
+     * this one instead.
+     *
+     * @param name the name of the tool in logs and JMX
+     * @param tool the tool
+     */
+
+    public InstrumentedMediaTool(String name, IMediaTool tool) {
+        mName = name;
+        mTool = tool;
+        tool.addListener(new Exit());
+    }
+
+    /** The tool measured. */
+
+    public IMediaTool getTool() {
+        return mTool;
+    }
+
+    /** The times of the video picture events, in nanoseconds. */
+
+    public LatencyHistogram getVideoLatency() {
+        return mVideoLatency;
+    }
+
+    /** The times of the audio samples events, in nanoseconds. */
+
+    public LatencyHistogram getAudioLatency() {
+        return mAudioLatency;
+    }
+
+    /** {@inheritDoc} */
+
+    @Override
+    public void onVideoPicture(IVideoPictureEvent event) {
+        long[] downstream = mDownstream.get();
+        long outer = downstream[0];
+        downstream[0] = 0;
+        long start = System.nanoTime();
+        try {
+            mTool.onVideoPicture(event);
+        } finally {
+            long end = System.nanoTime();
+            mVideoLatency.record(end - start - downstream[0]);
+            downstream[0] = outer;
+            mFirstPicture.compareAndSet(0, start);
+            count(event.getMediaData());
+        }
+    }
+
+    /** {@inheritDoc} */
+
+    @Override
+    public void onAudioSamples(IAudioSamplesEvent event) {
+        long[] downstream = mDownstream.get();
+        long outer = downstream[0];
+        downstream[0] = 0;
+        long start = System.nanoTime();
+        try {
+            mTool.onAudioSamples(event);
+        } finally {
+            mAudioLatency.record(System.nanoTime() - start - downstream[0]);
+            downstream[0] = outer;
+            count(event.getMediaData());
+        }
+    }
+
+    /** {@inheritDoc} */
+
+    @Override
+    public void onOpen(IOpenEvent event) {
+        mTool.onOpen(event);
+    }
+
+    /** {@inheritDoc} */
+
+    @Override
+    public void onClose(ICloseEvent event) {
+        mTool.onClose(event);
+    }
+
+    /** {@inheritDoc} */
+
+    @Override
+    public void onAddStream(IAddStreamEvent event) {
+        mTool.onAddStream(event);
+    }
+
+    /** {@inheritDoc} */
+
+    @Override
+    public void onOpenCoder(IOpenCoderEvent event) {
+        mTool.onOpenCoder(event);
+    }
+
+    /** {@inheritDoc} */
+
+    @Override
+    public void onCloseCoder(ICloseCoderEvent event) {
+        mTool.onCloseCoder(event);
+    }
+
+    /** {@inheritDoc} */
+
+    @Override
+    public void onReadPacket(IReadPacketEvent event) {
+        mTool.onReadPacket(event);
+    }
+
+    /** {@inheritDoc} */
+
+    @Override
+    public void onWritePacket(IWritePacketEvent event) {
+        mTool.onWritePacket(event);
+    }
+
+    /** {@inheritDoc} */
+
+    @Override
+    public void onWriteHeader(IWriteHeaderEvent event) {
+        mTool.onWriteHeader(event);
+    }
+
+    /** {@inheritDoc} */
+
+    @Override
+    public void onFlush(IFlushEvent event) {
+        mTool.onFlush(event);
+    }
+
+    /** {@inheritDoc} */
+
+    @Override
+    public void onWriteTrailer(IWriteTrailerEvent event) {
+        mTool.onWriteTrailer(event);
+    }
+
+    /** {@inheritDoc} */
+
+    @Override
+    public String getName() {
+        return mName;
+    }
+
+    /** {@inheritDoc} */
+
+    @Override
+    public long getVideoPictures() {
+        return mVideoLatency.getCount();
+    }
+
+    /** {@inheritDoc} */
+
+    @Override
+    public long getAudioSamples() {
+        return mAudioLatency.getCount();
+    }
+
+    /** {@inheritDoc} */
+
+    @Override
+    public long getBytes() {
+        return mBytes.get();
+    }
+
+    /** {@inheritDoc} */
+
+    @Override
+    public double getFramesPerSecond() {
+        long first = mFirstPicture.get();
+        long elapsed = System.nanoTime() - first;
+        return first == 0 || elapsed <= 0 ? 0 : getVideoPictures()
+                * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+    }
+
+    /** {@inheritDoc} */
+
+    @Override
+    public double getVideoLatencyMean() {
+        return mVideoLatency.getMean() / 1000;
+    }
+
+    /** {@inheritDoc} */
+
+    @Override
+    public double getVideoLatency50thPercentile() {
+        return mVideoLatency.getPercentile(50) / 1000.0;
+    }
+
+    /** {@inheritDoc} */
+
+    @Override
+    public double getVideoLatency99thPercentile() {
+        return mVideoLatency.getPercentile(99) / 1000.0;
+    }
+
+    /** {@inheritDoc} */
+
+    @Override
+    public double getVideoLatencyMax() {
+        return mVideoLatency.getMax() / 1000.0;
+    }
+
+    /** {@inheritDoc} */
+
+    @Override
+    public double getAudioLatencyMean() {
+        return mAudioLatency.getMean() / 1000;
+    }
+
+    /** {@inheritDoc} */
+
+    @Override
+    public double getAudioLatency50thPercentile() {
+        return mAudioLatency.getPercentile(50) / 1000.0;
+    }
+
+    /** {@inheritDoc} */
+
+    @Override
+    public double getAudioLatency99thPercentile() {
+        return mAudioLatency.getPercentile(99) / 1000.0;
+    }
+
+    /** {@inheritDoc} */
+
+    @Override
+    public double getAudioLatencyMax() {
+        return mAudioLatency.getMax() / 1000.0;
+    }
+
+    @Override
+    public String toString() {
+        return mName;
+    }
+
+    private void count(IMediaData data) {
+        if (data != null)
+            mBytes.addAndGet(data.getSize());
+    }
+
+    // what the tool passes on, to the listeners of this tool, timing the
+    // media events
+
+    private class Exit extends MediaListenerAdapter {
+        @Override
+        public void onVideoPicture(IVideoPictureEvent event) {
+            long start = System.nanoTime();
+            try {
+                InstrumentedMediaTool.super.onVideoPicture(event);
+            } finally {
+                mDownstream.get()[0] += System.nanoTime() - start;
+            }
+        }
+
+        @Override
+        public void onAudioSamples(IAudioSamplesEvent event) {
+            long start = System.nanoTime();
+            try {
+                InstrumentedMediaTool.super.onAudioSamples(event);
+            } finally {
+                mDownstream.get()[0] += System.nanoTime() - start;
+            }
+        }
+
+        @Override
+        public void onOpen(IOpenEvent event) {
+            InstrumentedMediaTool.super.onOpen(event);
+        }
+
+        @Override
+        public void onClose(ICloseEvent event) {
+            InstrumentedMediaTool.super.onClose(event);
+        }
+
+        @Override
+        public void onAddStream(IAddStreamEvent event) {
+            InstrumentedMediaTool.super.onAddStream(event);
+        }
+
+        @Override
+        public void onOpenCoder(IOpenCoderEvent event) {
+            InstrumentedMediaTool.super.onOpenCoder(event);
+        }
+
+        @Override
+        public void onCloseCoder(ICloseCoderEvent event) {
+            InstrumentedMediaTool.super.onCloseCoder(event);
+        }
+
+        @Override
+        public void onReadPacket(IReadPacketEvent event) {
+            InstrumentedMediaTool.super.onReadPacket(event);
+        }
+
+        @Override
+        public void onWritePacket(IWritePacketEvent event) {
+            InstrumentedMediaTool.super.onWritePacket(event);
+        }
+
+        @Override
+        public void onWriteHeader(IWriteHeaderEvent event) {
+            InstrumentedMediaTool.super.onWriteHeader(event);
+        }
+
+        @Override
+        public void onFlush(IFlushEvent event) {
+            InstrumentedMediaTool.super.onFlush(event);
+        }
+
+        @Override
+        public void onWriteTrailer(IWriteTrailerEvent event) {
+            InstrumentedMediaTool.super.onWriteTrailer(event);
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package video;
+
+/**
+ * The numbers of an {@link InstrumentedMediaTool}, as read through JMX, times
+ * in microseconds.
+ */
+public interface InstrumentedMediaToolMXBean {
+
+    String getName();
+
+    long getVideoPictures();
+
+    long getAudioSamples();
+
+    long getBytes();
+
+    /** Video pictures per second since the first one. */
+
+    double getFramesPerSecond();
+
+    double getVideoLatencyMean();
+
+    double getVideoLatency50thPercentile();
+
+    double getVideoLatency99thPercentile();
+
+    double getVideoLatencyMax();
+
+    double getAudioLatencyMean();
+
+    double getAudioLatency50thPercentile();
+
+    double getAudioLatency99thPercentile();
+
+    double getAudioLatencyMax();
+}
@@ -0,0 +1,118 @@
+package video;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+import com.xuggle.mediatool.MediaListenerAdapter;
+import com.xuggle.mediatool.MediaToolAdapter;
+import com.xuggle.mediatool.event.AudioSamplesEvent;
+import com.xuggle.mediatool.event.IAudioSamplesEvent;
+import com.xuggle.mediatool.event.IVideoPictureEvent;
+import com.xuggle.mediatool.event.VideoPictureEvent;
+
+public class InstrumentedMediaToolTest {
+
+    @Test
+    public void testLatencyOfToolOnly() {
+        final AtomicInteger pictures = new AtomicInteger();
+        final AtomicInteger samples = new AtomicInteger();
+        InstrumentedMediaTool stage = new InstrumentedMediaTool("slow",
+                new SleepingTool(5));
+
+        // a slower tool after it, not counted
+        SleepingTool next = new SleepingTool(20);
+        stage.addListener(next);
+        next.addListener(new MediaListenerAdapter() {
+            @Override
+            public void onVideoPicture(IVideoPictureEvent event) {
+                pictures.incrementAndGet();
+            }
+
+            @Override
+            public void onAudioSamples(IAudioSamplesEvent event) {
+                samples.incrementAndGet();
+            }
+        });
+
+        for (int i = 0; i < 4; i++)
+            stage.onVideoPicture(new VideoPictureEvent(this, null, 0));
+        stage.onAudioSamples(new AudioSamplesEvent(this, null, 1));
+
+        assertEquals(4, pictures.get());
+        assertEquals(1, samples.get());
+        assertEquals(4, stage.getVideoPictures());
+        assertEquals(1, stage.getAudioSamples());
+        long p50 = TimeUnit.NANOSECONDS.toMillis(stage.getVideoLatency()
+                .getPercentile(50));
+        assertTrue("latency " + p50 + " ms", p50 >= 4 && p50 < 15);
+        assertTrue(stage.getAudioLatencyMax() >= 4000
+                && stage.getAudioLatencyMax() < 15000);
+        assertTrue(stage.getFramesPerSecond() > 0);
+    }
+
+    @Test
+    public void testMonitor() throws Exception {
+        InstrumentedMediaTool stage = new InstrumentedMediaTool("monitored",
+                new SleepingTool(1));
+        PipelineMonitor monitor = new PipelineMonitor(stage);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(
+                "video:type=InstrumentedMediaTool,name=\"monitored\"");
+        monitor.start(0, TimeUnit.SECONDS);
+        try {
+            stage.onVideoPicture(new VideoPictureEvent(this, null, 0));
+            assertEquals(1L, server.getAttribute(name, "VideoPictures"));
+
+            List<String> lines = monitor.report();
+            assertEquals(1, lines.size());
+            assertTrue(lines.get(0), lines.get(0).startsWith("monitored: "));
+            assertTrue(lines.get(0), lines.get(0).endsWith("audio -"));
+
+            // nothing since the last report
+            assertTrue(monitor.report().get(0).contains("video -"));
+        } finally {
+            monitor.close();
+        }
+        assertTrue(!server.isRegistered(name));
+    }
+
+    // a tool which takes some time for each event
+
+    private static class SleepingTool extends MediaToolAdapter {
+        private final long mMillis;
+
+        SleepingTool(long millis) {
+            mMillis = millis;
+        }
+
+        @Override
+        public void onVideoPicture(IVideoPictureEvent event) {
+            sleep();
+            super.onVideoPicture(event);
+        }
+
+        @Override
+        public void onAudioSamples(IAudioSamplesEvent event) {
+            sleep();
+            super.onAudioSamples(event);
+        }
+
+        private void sleep() {
+            try {
+                Thread.sleep(mMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
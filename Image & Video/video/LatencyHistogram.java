@@ -0,0 +1,152 @@
+package video;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations in nanoseconds, cheap enough to record every
+ * event of a media pipeline.
+ *
+ * Durations are counted in buckets of 8 per power of two, so percentiles
+ * are within 1/8 of the actual value, from 1 nanosecond to centuries, in a
+ * fixed array of a few hundred counts. Recording takes a few uncontended
+ * atomic increments and no allocation. Reads while recording may be off by
+ * the events being recorded.
+ */
+public class LatencyHistogram {
+    // 8 buckets per power of two
+
+    private static final int SUB_BITS = 3;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+
+    private final AtomicLong mCount = new AtomicLong();
+
+    private final AtomicLong mSum = new AtomicLong();
+
+    private final AtomicLong mMax = new AtomicLong();
+
+    /**
+     * Record a duration.
+     *
+     * @param nanos the duration in nanoseconds, negative ones count as 0
+     */
+
+    public void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+        mCounts.incrementAndGet(bucket(nanos));
+        mCount.incrementAndGet();
+        mSum.addAndGet(nanos);
+
+        long max = mMax.get();
+        while (nanos > max && !mMax.compareAndSet(max, nanos))
+            max = mMax.get();
+    }
+
+    /** The number of durations recorded. */
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    /** The mean duration in nanoseconds, 0 if there is none. */
+
+    public double getMean() {
+        long count = mCount.get();
+        return count == 0 ? 0 : (double) mSum.get() / count;
+    }
+
+    /** The longest duration in nanoseconds, 0 if there is none. */
+
+    public long getMax() {
+        return mMax.get();
+    }
+
+    /**
+     * A percentile of the durations.
+     *
+     * @param percentile from 0 to 100
+     * @return the duration in nanoseconds, the middle of the bucket it fell
+     *         in, 0 if there is none
+     */
+
+    public long getPercentile(double percentile) {
+        long count = 0;
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++)
+            count += counts[i] = mCounts.get(i);
+        if (count == 0)
+            return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        for (int i = 0; i < BUCKETS; i++) {
+            rank -= counts[i];
+            if (rank <= 0)
+                return Math.min(lowest(i) + (lowest(i + 1) - lowest(i)) / 2,
+                        getMax());
+        }
+        return getMax();
+    }
+
+    /** A copy of the histogram as it is now. */
+
+    public LatencyHistogram snapshot() {
+        LatencyHistogram copy = new LatencyHistogram();
+        for (int i = 0; i < BUCKETS; i++)
+            copy.mCounts.set(i, mCounts.get(i));
+        copy.mCount.set(mCount.get());
+        copy.mSum.set(mSum.get());
+        copy.mMax.set(mMax.get());
+        return copy;
+    }
+
+    /**
+     * The durations recorded since a snapshot. The maximum is only known to
+     * the bucket, and is the highest duration of its bucket.
+     *
+     * @param earlier a snapshot of this histogram
+     */
+
+    public LatencyHistogram since(LatencyHistogram earlier) {
+        LatencyHistogram difference = new LatencyHistogram();
+        int highest = -1;
+        for (int i = 0; i < BUCKETS; i++) {
+            long count = mCounts.get(i) - earlier.mCounts.get(i);
+            difference.mCounts.set(i, count);
+            if (count > 0)
+                highest = i;
+        }
+        difference.mCount.set(mCount.get() - earlier.mCount.get());
+        difference.mSum.set(mSum.get() - earlier.mSum.get());
+        if (highest >= 0)
+            difference.mMax.set(Math.min(lowest(highest + 1) - 1, mMax.get()));
+        return difference;
+    }
+
+    // the bucket of a duration, exact below 8, then 8 per power of two
+
+    static int bucket(long nanos) {
+        if (nanos < SUB_BUCKETS)
+            return (int) nanos;
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS
+                + (int) (nanos >>> (exponent - SUB_BITS)) - SUB_BUCKETS;
+    }
+
+    // the lowest duration of a bucket
+
+    static long lowest(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+        if (bucket >= BUCKETS)
+            return Long.MAX_VALUE;
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << exponent
+                - SUB_BITS;
+    }
+}
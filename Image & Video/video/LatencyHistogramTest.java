@@ -0,0 +1,64 @@
+package video;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testBuckets() {
+        // each duration is in the bucket starting at or below it
+        long previous = 0;
+        for (int i = 1; i < 400; i++) {
+            long lowest = LatencyHistogram.lowest(i);
+            assertTrue("bucket " + i, lowest > previous);
+            assertEquals("bucket " + i, i, LatencyHistogram.bucket(lowest));
+            assertEquals("bucket " + i, i - 1, LatencyHistogram
+                    .bucket(lowest - 1));
+            previous = lowest;
+        }
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.lowest(
+                LatencyHistogram.bucket(Long.MAX_VALUE) + 1));
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(50));
+        for (int i = 1; i <= 1000; i++)
+            histogram.record(i * 1000L);
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500500, histogram.getMean(), 1e-6);
+        assertEquals(1000000, histogram.getMax());
+        assertNear(500000, histogram.getPercentile(50));
+        assertNear(990000, histogram.getPercentile(99));
+        assertEquals(1000000, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void testSince() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 100; i++)
+            histogram.record(1000000);
+        LatencyHistogram before = histogram.snapshot();
+        for (int i = 0; i < 10; i++)
+            histogram.record(2000);
+
+        LatencyHistogram since = histogram.since(before);
+        assertEquals(10, since.getCount());
+        assertEquals(2000, since.getMean(), 1e-6);
+        assertNear(2000, since.getPercentile(99));
+        assertNear(2000, since.getMax());
+        assertEquals(110, histogram.getCount());
+    }
+
+    // within the 1/8 of the buckets
+
+    private static void assertNear(long expected, long actual) {
+        assertTrue(expected + " but was " + actual, Math.abs(actual - expected)
+                <= expected / 8);
+    }
+}
@@ -0,0 +1,257 @@
+package video;
+
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+/**
+ * Measures the sample peak, the RMS level and the integrated loudness of
+ * interleaved signed 16 bit audio, fed buffer by buffer.
+ *
+ * The loudness is measured as in ITU-R BS.1770-4 and EBU R 128: the samples
+ * are K-weighted, their mean square is taken over blocks of 400 ms
+ * overlapping by 300 ms, summed over the channels, and blocks quieter than
+ * -70 LUFS, then than 10 LU below the loudness of the remaining ones, are
+ * left out. Only the energy of each block is kept, a few bytes per 100 ms.
+ *
+ * In six channel audio, the fourth channel, low frequency effects, is left
+ * out and the surround ones weigh 1.41, as in the standard; other layouts
+ * weigh all channels the same.
+ */
+public class LoudnessMeter {
+    /** The level of silence, in dB or LUFS. */
+
+    public static final double SILENCE = Double.NEGATIVE_INFINITY;
+
+    private static final double ABSOLUTE_GATE = -70;
+
+    private static final double RELATIVE_GATE = -10;
+
+    // sample frames copied out of a direct buffer at a time
+
+    private static final int CHUNK_FRAMES = 2048;
+
+    private final int mChannels;
+
+    private final double[] mWeights;
+
+    // the K-weighting filters, a high shelf then a high pass, as biquads
+    // with their state per channel
+
+    private final double[] mShelfB = new double[3];
+    private final double[] mShelfA = new double[3];
+    private final double[] mPassB = new double[3];
+    private final double[] mPassA = new double[3];
+    private final double[][] mState;
+
+    // the weighted sum of squares of the current sub block of 100 ms, of
+    // the last four ones, and the frames left in the current one
+
+    private final int mSubBlockFrames;
+    private double mSubBlock;
+    private final double[] mSubBlocks = new double[4];
+    private int mSubBlockCount;
+    private int mFramesLeft;
+
+    // the mean square of each block of 400 ms
+
+    private double[] mBlocks = new double[64];
+    private int mBlockCount;
+
+    private long mFrames;
+    private int mPeak;
+    private double mSumOfSquares;
+
+    private final short[] mScratch;
+
+    /**
+     * Create a meter.
+     *
+     * @param sampleRate the sample rate of the audio
+     * @param channels the number of interleaved channels
+     */
+
+    public LoudnessMeter(int sampleRate, int channels) {
+        if (sampleRate <= 0)
+            throw new IllegalArgumentException("invalid sample rate "
+                    + sampleRate);
+        if (channels < 1)
+            throw new IllegalArgumentException("invalid channel count: "
+                    + channels);
+        mChannels = channels;
+        mWeights = new double[channels];
+        Arrays.fill(mWeights, 1);
+        if (channels == 6) {
+            mWeights[3] = 0;
+            mWeights[4] = 1.41;
+            mWeights[5] = 1.41;
+        }
+        mState = new double[channels][4];
+        mSubBlockFrames = Math.max(1, sampleRate / 10);
+        mFramesLeft = mSubBlockFrames;
+        mScratch = new short[CHUNK_FRAMES * channels];
+
+        // the filters of the standard, for 48 kHz, as designed for any rate
+        double k = Math.tan(Math.PI * 1681.974450955533 / sampleRate);
+        double q = 0.7071752369554196;
+        double vh = Math.pow(10, 3.999843853973347 / 20);
+        double vb = Math.pow(vh, 0.4996667741545416);
+        double a0 = 1 + k / q + k * k;
+        mShelfB[0] = (vh + vb * k / q + k * k) / a0;
+        mShelfB[1] = 2 * (k * k - vh) / a0;
+        mShelfB[2] = (vh - vb * k / q + k * k) / a0;
+        mShelfA[1] = 2 * (k * k - 1) / a0;
+        mShelfA[2] = (1 - k / q + k * k) / a0;
+
+        k = Math.tan(Math.PI * 38.13547087602444 / sampleRate);
+        q = 0.5003270373238773;
+        a0 = 1 + k / q + k * k;
+        mPassB[0] = 1;
+        mPassB[1] = -2;
+        mPassB[2] = 1;
+        mPassA[1] = 2 * (k * k - 1) / a0;
+        mPassA[2] = (1 - k / q + k * k) / a0;
+    }
+
+    public int getChannels() {
+        return mChannels;
+    }
+
+    /**
+     * Measure every sample from 0 to the limit of the buffer. The position
+     * of the buffer is not changed.
+     */
+
+    public void process(ShortBuffer buffer) {
+        int length = buffer.limit();
+        if (buffer.hasArray()) {
+            process(buffer.array(), buffer.arrayOffset(), length);
+            return;
+        }
+
+        int chunk = CHUNK_FRAMES * mChannels;
+        ShortBuffer in = buffer.duplicate();
+        in.clear().limit(length);
+        while (in.hasRemaining()) {
+            int n = Math.min(chunk, in.remaining());
+            in.get(mScratch, 0, n);
+            process(mScratch, 0, n);
+        }
+    }
+
+    /**
+     * Measure interleaved samples, starting with the first channel at
+     * offset, a whole number of sample frames.
+     */
+
+    public void process(short[] samples, int offset, int length) {
+        int end = offset + length - length % mChannels;
+        for (int i = offset; i < end; i += mChannels) {
+            double frame = 0;
+            for (int c = 0; c < mChannels; c++) {
+                int s = samples[i + c];
+                mPeak = Math.max(mPeak, Math.abs(s));
+                double x = s / 32768.0;
+                mSumOfSquares += x * x;
+
+                // direct form II transposed, the shelf then the high pass
+                double[] z = mState[c];
+                double y = mShelfB[0] * x + z[0];
+                z[0] = mShelfB[1] * x - mShelfA[1] * y + z[1];
+                z[1] = mShelfB[2] * x - mShelfA[2] * y;
+                double w = mPassB[0] * y + z[2];
+                z[2] = mPassB[1] * y - mPassA[1] * w + z[3];
+                z[3] = mPassB[2] * y - mPassA[2] * w;
+                frame += mWeights[c] * w * w;
+            }
+            mSubBlock += frame;
+            mFrames++;
+            if (--mFramesLeft == 0)
+                endSubBlock();
+        }
+    }
+
+    /** The number of sample frames measured. */
+
+    public long getFrames() {
+        return mFrames;
+    }
+
+    /** The highest absolute sample, from 0 to 1. */
+
+    public double getPeak() {
+        return mPeak / 32768.0;
+    }
+
+    /** The highest absolute sample in dB below full scale. */
+
+    public double getPeakDb() {
+        return toDb(getPeak());
+    }
+
+    /** The root mean square of all the samples, from 0 to 1. */
+
+    public double getRms() {
+        return mFrames == 0 ? 0 : Math.sqrt(mSumOfSquares / (mFrames
+                * mChannels));
+    }
+
+    /** The root mean square of all the samples in dB below full scale. */
+
+    public double getRmsDb() {
+        return toDb(getRms());
+    }
+
+    /**
+     * The gated loudness of the whole audio, in LUFS, {@link #SILENCE} if
+     * it is shorter than 400 ms or quieter than -70 LUFS.
+     */
+
+    public double getIntegratedLoudness() {
+        double threshold = gatedMean(ABSOLUTE_GATE);
+        if (threshold == 0)
+            return SILENCE;
+        double mean = gatedMean(loudness(threshold) + RELATIVE_GATE);
+        return mean == 0 ? SILENCE : loudness(mean);
+    }
+
+    // the mean square of the blocks louder than a threshold, in LUFS, 0 for
+    // none
+
+    private double gatedMean(double threshold) {
+        double sum = 0;
+        int count = 0;
+        for (int i = 0; i < mBlockCount; i++) {
+            if (loudness(mBlocks[i]) > threshold) {
+                sum += mBlocks[i];
+                count++;
+            }
+        }
+        return count == 0 ? 0 : sum / count;
+    }
+
+    // a block ends with every sub block once there are four
+
+    private void endSubBlock() {
+        mSubBlocks[mSubBlockCount % 4] = mSubBlock;
+        mSubBlockCount++;
+        mSubBlock = 0;
+        mFramesLeft = mSubBlockFrames;
+        if (mSubBlockCount < 4)
+            return;
+
+        if (mBlockCount == mBlocks.length)
+            mBlocks = Arrays.copyOf(mBlocks, 2 * mBlocks.length);
+        mBlocks[mBlockCount++] = (mSubBlocks[0] + mSubBlocks[1]
+                + mSubBlocks[2] + mSubBlocks[3])
+                / (4.0 * mSubBlockFrames);
+    }
+
+    private static double loudness(double meanSquare) {
+        return meanSquare <= 0 ? SILENCE : -0.691 + 10
+                * Math.log10(meanSquare);
+    }
+
+    private static double toDb(double level) {
+        return level <= 0 ? SILENCE : 20 * Math.log10(level);
+    }
+}
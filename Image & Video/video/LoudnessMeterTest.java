@@ -0,0 +1,82 @@
+package video;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+
+import org.junit.Test;
+
+public class LoudnessMeterTest {
+
+    private static final int RATE = 48000;
+
+    @Test
+    public void testSine() {
+        // EBU Tech 3341 case 1: 1 kHz at -23 dBFS in both channels reads
+        // -23 LUFS
+        LoudnessMeter meter = new LoudnessMeter(RATE, 2);
+        short[] samples = sine(-23, 1000, 20 * RATE, 2);
+        meter.process(samples, 0, samples.length);
+
+        assertEquals(-23, meter.getIntegratedLoudness(), 0.1);
+        assertEquals(-23, meter.getPeakDb(), 0.01);
+        assertEquals(-23 - 3.01, meter.getRmsDb(), 0.01);
+        assertEquals(20 * RATE, meter.getFrames());
+    }
+
+    @Test
+    public void testGating() {
+        // silence and a much quieter passage do not lower the loudness
+        short[] loud = sine(-20, 1000, 10 * RATE, 2);
+        short[] quiet = sine(-50, 1000, 10 * RATE, 2);
+        short[] silence = new short[2 * 10 * RATE];
+
+        LoudnessMeter meter = new LoudnessMeter(RATE, 2);
+        meter.process(silence, 0, silence.length);
+        meter.process(loud, 0, loud.length);
+        meter.process(quiet, 0, quiet.length);
+        assertEquals(-20, meter.getIntegratedLoudness(), 0.2);
+
+        LoudnessMeter silent = new LoudnessMeter(RATE, 2);
+        silent.process(silence, 0, silence.length);
+        assertEquals(LoudnessMeter.SILENCE, silent.getIntegratedLoudness(),
+                0);
+        assertEquals(LoudnessMeter.SILENCE, silent.getPeakDb(), 0);
+    }
+
+    @Test
+    public void testDirectBuffersInPieces() {
+        short[] samples = sine(-30, 440, 5 * RATE, 1);
+        LoudnessMeter whole = new LoudnessMeter(44100, 1);
+        whole.process(samples, 0, samples.length);
+
+        // in odd sized direct buffers, as decoded
+        LoudnessMeter pieces = new LoudnessMeter(44100, 1);
+        for (int i = 0; i < samples.length; i += 1153) {
+            int n = Math.min(1153, samples.length - i);
+            ShortBuffer buffer = ByteBuffer.allocateDirect(2 * n)
+                    .asShortBuffer();
+            buffer.put(samples, i, n);
+            pieces.process(buffer);
+        }
+
+        assertEquals(whole.getIntegratedLoudness(), pieces
+                .getIntegratedLoudness(), 1e-9);
+        assertEquals(whole.getRms(), pieces.getRms(), 1e-12);
+        assertEquals(whole.getPeak(), pieces.getPeak(), 0);
+    }
+
+    // a sine with a peak in dB below full scale, the same in every channel
+
+    static short[] sine(double peakDb, double frequency, int frames,
+            int channels) {
+        double amplitude = 32768 * Math.pow(10, peakDb / 20);
+        short[] samples = new short[frames * channels];
+        for (int i = 0; i < frames; i++)
+            for (int c = 0; c < channels; c++)
+                samples[i * channels + c] = (short) Math.round(amplitude
+                        * Math.sin(2 * Math.PI * frequency * i / RATE));
+        return samples;
+    }
+}
@@ -0,0 +1,205 @@
+package video;
+
+import java.nio.ShortBuffer;
+
+import com.xuggle.xuggler.IAudioSamples;
+import com.xuggle.xuggler.ICodec;
+import com.xuggle.xuggler.IContainer;
+import com.xuggle.xuggler.IPacket;
+import com.xuggle.xuggler.IStreamCoder;
+
+/**
+ * Normalizes the loudness of media files in two passes, instead of a gain
+ * guessed per file like the 1/10th of {@link ModifyVideoAndAudio}.
+ *
+ * The analysis pass demuxes the file and decodes only its audio stream,
+ * into a {@link LoudnessMeter}: the packets of the other streams are
+ * dropped as they are read, and their decoders are never opened, so video
+ * of any size costs no more than reading it from the disk. The apply pass
+ * transcodes the file with the gain reaching the target loudness, limited
+ * so that the peak stays under a ceiling.
+ */
+public class LoudnessNormalizer {
+    /** The target loudness of EBU R 128, in LUFS. */
+
+    public static final double EBU_R128 = -23;
+
+    /** The default highest sample peak after the gain, in dBFS. */
+
+    public static final double DEFAULT_CEILING = -1;
+
+    /**
+     * Measure the first audio stream of a file.
+     *
+     * @param url the file
+     * @return the meter, having measured the whole stream
+     */
+
+    public static LoudnessMeter analyze(String url) {
+        IContainer container = StreamCopier.open(url);
+        try {
+            int audio = findAudioStream(container);
+            if (audio < 0)
+                throw new RuntimeException("could not find audio in " + url);
+            return analyze(container, audio);
+        } finally {
+            container.close();
+        }
+    }
+
+    /**
+     * The gain bringing the first audio stream of a file to a loudness,
+     * unless it makes the peak higher than a ceiling.
+     *
+     * @param url the file
+     * @param target the loudness to reach, in LUFS
+     * @param ceiling the highest peak, in dBFS
+     * @return the gain, 1 if the file has no audio
+     * @see #gain(LoudnessMeter, double, double)
+     */
+
+    public static double gain(String url, double target, double ceiling) {
+        IContainer container = StreamCopier.open(url);
+        try {
+            int audio = findAudioStream(container);
+            return audio < 0 ? 1 : gain(analyze(container, audio), target,
+                    ceiling);
+        } finally {
+            container.close();
+        }
+    }
+
+    /**
+     * Measure an audio stream of an open container, reading it to the end.
+     *
+     * @param container the container, left open
+     * @param streamIndex the index of the audio stream
+     * @return the meter, having measured the whole stream
+     */
+
+    public static LoudnessMeter analyze(IContainer container, int streamIndex) {
+        IStreamCoder decoder = container.getStream(streamIndex)
+                .getStreamCoder();
+        if (decoder.open(null, null) < 0)
+            throw new RuntimeException("could not open decoder of "
+                    + container.getURL());
+
+        // the meter reads 16 bit samples, which the decoder must produce
+        if (decoder.getSampleFormat() != IAudioSamples.Format.FMT_S16) {
+            decoder.close();
+            throw new RuntimeException("could not measure "
+                    + decoder.getSampleFormat() + " samples of "
+                    + container.getURL());
+        }
+
+        IPacket packet = IPacket.make();
+        IAudioSamples samples = IAudioSamples.make(1024, decoder
+                .getChannels());
+        try {
+            LoudnessMeter meter = new LoudnessMeter(decoder.getSampleRate(),
+                    decoder.getChannels());
+            while (container.readNextPacket(packet) >= 0) {
+                // the other streams are not decoded
+                if (packet.getStreamIndex() != streamIndex)
+                    continue;
+
+                int offset = 0;
+                while (offset < packet.getSize()) {
+                    int decoded = decoder.decodeAudio(samples, packet, offset);
+                    if (decoded < 0)
+                        throw new RuntimeException("could not decode "
+                                + container.getURL());
+                    offset += decoded;
+                    if (samples.isComplete()) {
+                        ShortBuffer buffer = samples.getByteBuffer()
+                                .asShortBuffer();
+                        buffer.limit((int) samples.getNumSamples()
+                                * samples.getChannels());
+                        meter.process(buffer);
+                    }
+                }
+            }
+            return meter;
+        } finally {
+            samples.delete();
+            packet.delete();
+            decoder.close();
+        }
+    }
+
+    /**
+     * The gain bringing measured audio to a loudness, unless it makes the
+     * peak higher than a ceiling.
+     *
+     * @param meter the measured audio
+     * @param target the loudness to reach, in LUFS
+     * @param ceiling the highest peak, in dBFS
+     * @return the gain, up to {@link AudioGain#MAX_GAIN}, 1 for silence
+     */
+
+    public static double gain(LoudnessMeter meter, double target,
+            double ceiling) {
+        double loudness = meter.getIntegratedLoudness();
+        if (loudness == LoudnessMeter.SILENCE)
+            return 1;
+        double db = Math.min(target - loudness, ceiling - meter.getPeakDb());
+        return Math.min(Math.pow(10, db / 20), AudioGain.MAX_GAIN);
+    }
+
+    // the index of the first audio stream, or -1
+
+    private static int findAudioStream(IContainer container) {
+        for (int i = 0; i < container.getNumStreams(); i++)
+            if (container.getStream(i).getStreamCoder().getCodecType() ==
+                    ICodec.Type.CODEC_TYPE_AUDIO)
+                return i;
+        return -1;
+    }
+
+    /**
+     * Normalize the loudness of a file into another, peaks limited to
+     * {@link #DEFAULT_CEILING}.
+     *
+     * @param sourceUrl the file to normalize
+     * @param destinationUrl the file which will be produced
+     * @param target the loudness to reach, in LUFS
+     * @return the gain applied, 1 if the file has no audio
+     */
+
+    public static double normalize(String sourceUrl, String destinationUrl,
+            double target) {
+        double gain = gain(sourceUrl, target, DEFAULT_CEILING);
+        MediaPipeline.read(sourceUrl).gain(gain).write(destinationUrl).build()
+                .run();
+        return gain;
+    }
+
+    /**
+     * Measure a file and print its levels, or normalize it to EBU R 128 or a
+     * given loudness.
+     */
+
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.out
+                    .println("Usage: LoudnessNormalizer <inputFileName> [<outputFileName> [<targetLufs>]]");
+            System.exit(-1);
+        }
+
+        long start = System.nanoTime();
+        LoudnessMeter meter = analyze(args[0]);
+        System.out.printf("%s: %.1f LUFS, RMS %.1f dBFS, peak %.1f dBFS, "
+                + "analyzed in %d ms%n", args[0], meter
+                .getIntegratedLoudness(), meter.getRmsDb(), meter.getPeakDb(),
+                (System.nanoTime() - start) / 1000000);
+
+        if (args.length > 1) {
+            double target = args.length > 2 ? Double.parseDouble(args[2])
+                    : EBU_R128;
+            double gain = gain(meter, target, DEFAULT_CEILING);
+            MediaPipeline.read(args[0]).gain(gain).write(args[1]).build()
+                    .run();
+            System.out.printf("%s: gain %.2f%n", args[1], gain);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package video;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class LoudnessNormalizerTest {
+
+    private static final int RATE = 48000;
+
+    private static LoudnessMeter measure(double peakDb) {
+        LoudnessMeter meter = new LoudnessMeter(RATE, 2);
+        short[] samples = LoudnessMeterTest.sine(peakDb, 1000, 5 * RATE, 2);
+        meter.process(samples, 0, samples.length);
+        return meter;
+    }
+
+    @Test
+    public void testGainToTarget() {
+        // -33 LUFS is brought up 10 dB, its peak staying at -23 dBFS
+        double gain = LoudnessNormalizer.gain(measure(-33),
+                LoudnessNormalizer.EBU_R128, LoudnessNormalizer.DEFAULT_CEILING);
+        assertEquals(10, 20 * Math.log10(gain), 0.1);
+
+        // and -13 LUFS down 10 dB
+        gain = LoudnessNormalizer.gain(measure(-13),
+                LoudnessNormalizer.EBU_R128, LoudnessNormalizer.DEFAULT_CEILING);
+        assertEquals(-10, 20 * Math.log10(gain), 0.1);
+    }
+
+    @Test
+    public void testGainLimitedByPeak() {
+        // reaching 0 LUFS would clip: the peak stops at the ceiling
+        LoudnessMeter meter = measure(-12);
+        double gain = LoudnessNormalizer.gain(meter, 0, -1);
+        assertEquals(-1, meter.getPeakDb() + 20 * Math.log10(gain), 0.01);
+    }
+
+    @Test
+    public void testGainLimits() {
+        // silence is left alone, and very quiet audio gets the highest gain
+        LoudnessMeter silence = new LoudnessMeter(RATE, 2);
+        silence.process(new short[2 * RATE], 0, 2 * RATE);
+        assertEquals(1, LoudnessNormalizer.gain(silence, -23, -1), 0);
+
+        assertEquals(AudioGain.MAX_GAIN, LoudnessNormalizer.gain(
+                measure(-60), -23, -1), 0);
+    }
+}
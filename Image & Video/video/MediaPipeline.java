@@ -0,0 +1,479 @@
+package video;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import com.xuggle.mediatool.IMediaListener;
+import com.xuggle.mediatool.IMediaReader;
+import com.xuggle.mediatool.IMediaTool;
+import com.xuggle.mediatool.MediaToolAdapter;
+import com.xuggle.mediatool.ToolFactory;
+import com.xuggle.mediatool.event.IAudioSamplesEvent;
+import com.xuggle.mediatool.event.IVideoPictureEvent;
+import com.xuggle.xuggler.IAudioSamples;
+
+/**
+ * A reader, filters and sinks, declared with a {@link Builder} rather than
+ * wired by hand as in {@link ModifyVideoAndAudio}:
+ *
+ * <pre>
+ * MediaPipeline.read(&quot;in.mp4&quot;)
+ *         .timeStamp(new TimecodeBurner())
+ *         .overlay(logo, 16, 16)
+ *         .gain(0.1)
+ *         .fadeIn(0, 2, TimeUnit.SECONDS)
+ *         .write(&quot;out.mp4&quot;)
+ *         .build().run();
+ * </pre>
+ *
+ * Adjacent built-in filters are fused into a single tool, so a picture or
+ * a buffer of samples goes through one event dispatch and as few passes
+ * as possible: overlays next to each other are composited into one
+ * overlay once, gains and fades are multiplied into one gain envelope
+ * applied in one pass over the samples, and the pictures are filtered in
+ * their YUV planes with no {@link BufferedImage} per picture. A tool added
+ * with {@link Builder#filter(IMediaTool)} ends the fused filters before it.
+ *
+ * Sinks are only those declared, the writers and the viewer being
+ * optional.
+ */
+public class MediaPipeline {
+    private final IMediaReader mReader;
+
+    private final List<IMediaTool> mTools;
+
+    private MediaPipeline(IMediaReader reader, List<IMediaTool> tools) {
+        mReader = reader;
+        mTools = tools;
+    }
+
+    /**
+     * Start declaring a pipeline reading a file.
+     *
+     * @param url the file or URL to read
+     */
+
+    public static Builder read(String url) {
+        return new Builder(ToolFactory.makeReader(url));
+    }
+
+    /**
+     * Start declaring a pipeline from a reader. The filters work on the
+     * pictures, so the reader need not generate images.
+     *
+     * @param reader the reader
+     */
+
+    public static Builder read(IMediaReader reader) {
+        return new Builder(reader);
+    }
+
+    public IMediaReader getReader() {
+        return mReader;
+    }
+
+    /** The tools between the reader and the sinks, after fusion. */
+
+    public List<IMediaTool> getTools() {
+        return mTools;
+    }
+
+    /** Read, filter and write until the end of the input. */
+
+    public void run() {
+        while (mReader.readPacket() == null)
+            do {
+            } while (false);
+    }
+
+    /**
+     * Declares the filters and sinks of a pipeline, in the order they
+     * apply.
+     */
+
+    public static class Builder {
+        private final IMediaReader mReader;
+
+        // the filters: Overlay, TimecodeBurner, Gain, Fade or IMediaTool
+
+        private final List<Object> mFilters = new ArrayList<Object>();
+
+        private final List<String> mOutputs = new ArrayList<String>();
+
+        private final List<IMediaListener> mSinks =
+                new ArrayList<IMediaListener>();
+
+        private Builder(IMediaReader reader) {
+            mReader = reader;
+        }
+
+        /** Blend an image at a position of the pictures. */
+
+        public Builder overlay(BufferedImage image, int x, int y) {
+            return overlay(image, x, y, 1);
+        }
+
+        /**
+         * Blend an image at a position of the pictures.
+         *
+         * @param image the image, with or without alpha
+         * @param x where its left edge goes
+         * @param y where its top edge goes
+         * @param opacity from 0 to 1, multiplied with its alpha
+         */
+
+        public Builder overlay(BufferedImage image, int x, int y, float opacity) {
+            if (opacity < 0 || opacity > 1)
+                throw new IllegalArgumentException("invalid opacity " + opacity);
+            mFilters.add(new Overlay(image, x, y, opacity));
+            return this;
+        }
+
+        /** Burn the time stamps of the pictures with a burner. */
+
+        public Builder timeStamp(TimecodeBurner burner) {
+            mFilters.add(burner);
+            return this;
+        }
+
+        /**
+         * Multiply the audio by a gain, up to {@link AudioGain#MAX_GAIN}
+         * with the other gains.
+         */
+
+        public Builder gain(double gain) {
+            if (gain < 0)
+                throw new IllegalArgumentException("invalid gain " + gain);
+            mFilters.add(new Gain(gain));
+            return this;
+        }
+
+        /**
+         * Fade the audio in linearly, silent before the start.
+         *
+         * @param start when the fade starts
+         * @param duration how long it takes
+         * @param unit the unit of the start and duration
+         */
+
+        public Builder fadeIn(long start, long duration, TimeUnit unit) {
+            mFilters.add(new Fade(unit.toMicros(start), unit.toMicros(duration),
+                    true));
+            return this;
+        }
+
+        /**
+         * Fade the audio out linearly, silent after the end.
+         *
+         * @param start when the fade starts
+         * @param duration how long it takes
+         * @param unit the unit of the start and duration
+         */
+
+        public Builder fadeOut(long start, long duration, TimeUnit unit) {
+            mFilters.add(new Fade(unit.toMicros(start), unit.toMicros(duration),
+                    false));
+            return this;
+        }
+
+        /** Pass the media through a tool, between the fused filters. */
+
+        public Builder filter(IMediaTool tool) {
+            mFilters.add(tool);
+            return this;
+        }
+
+        /** Encode the filtered media to a file, as the input is encoded. */
+
+        public Builder write(String url) {
+            mOutputs.add(url);
+            return this;
+        }
+
+        /** Show the filtered media. */
+
+        public Builder view() {
+            return to(ToolFactory.makeViewer());
+        }
+
+        /** Pass the filtered media to a listener. */
+
+        public Builder to(IMediaListener sink) {
+            mSinks.add(sink);
+            return this;
+        }
+
+        /** Fuse the filters and chain them from the reader to the sinks. */
+
+        public MediaPipeline build() {
+            List<IMediaTool> tools = fuse();
+
+            IMediaTool last = null;
+            for (IMediaTool tool : tools) {
+                if (last == null)
+                    mReader.addListener(tool);
+                else
+                    last.addListener(tool);
+                last = tool;
+            }
+
+            List<IMediaListener> sinks = new ArrayList<IMediaListener>();
+            for (String url : mOutputs)
+                sinks.add(ToolFactory.makeWriter(url, mReader));
+            sinks.addAll(mSinks);
+            for (IMediaListener sink : sinks) {
+                if (last == null)
+                    mReader.addListener(sink);
+                else
+                    last.addListener(sink);
+            }
+            return new MediaPipeline(mReader, Collections
+                    .unmodifiableList(tools));
+        }
+
+        // group the built-in filters between the tools into fused tools
+
+        List<IMediaTool> fuse() {
+            List<IMediaTool> tools = new ArrayList<IMediaTool>();
+            FusedTool fused = null;
+            List<Overlay> overlays = new ArrayList<Overlay>();
+            for (Object filter : mFilters) {
+                if (filter instanceof IMediaTool) {
+                    if (fused != null)
+                        fused.addOverlays(overlays);
+                    fused = null;
+                    tools.add((IMediaTool) filter);
+                    continue;
+                }
+
+                if (fused == null) {
+                    fused = new FusedTool();
+                    tools.add(fused);
+                }
+                if (filter instanceof Overlay) {
+                    overlays.add((Overlay) filter);
+                } else if (filter instanceof TimecodeBurner) {
+                    fused.addOverlays(overlays);
+                    fused.mVideo.add(filter);
+                } else if (filter instanceof Gain) {
+                    fused.mEnvelope.mGain *= ((Gain) filter).mGain;
+                } else {
+                    fused.mEnvelope.mFades.add((Fade) filter);
+                }
+            }
+            if (fused != null)
+                fused.addOverlays(overlays);
+            return tools;
+        }
+    }
+
+    // an image at a position
+
+    static class Overlay {
+        final BufferedImage mImage;
+        final int mX;
+        final int mY;
+        final float mOpacity;
+
+        Overlay(BufferedImage image, int x, int y, float opacity) {
+            mImage = image;
+            mX = x;
+            mY = y;
+            mOpacity = opacity;
+        }
+    }
+
+    private static class Gain {
+        final double mGain;
+
+        Gain(double gain) {
+            mGain = gain;
+        }
+    }
+
+    private static class Fade {
+        final long mStart;
+        final long mDuration;
+        final boolean mIn;
+
+        Fade(long start, long duration, boolean in) {
+            mStart = start;
+            mDuration = duration;
+            mIn = in;
+        }
+    }
+
+    /**
+     * Composite overlays into one, each drawn over the ones before it.
+     *
+     * @param overlays the overlays, at least one
+     * @return the composite, at the top left corner of the union of the
+     *         overlays
+     */
+
+    static YuvOverlay composite(List<Overlay> overlays) {
+        if (overlays.size() == 1) {
+            Overlay overlay = overlays.get(0);
+            YuvOverlay single = new YuvOverlay(overlay.mImage);
+            single.setPosition(overlay.mX, overlay.mY);
+            single.setOpacity(overlay.mOpacity);
+            return single;
+        }
+
+        Rectangle union = null;
+        for (Overlay overlay : overlays) {
+            Rectangle bounds = new Rectangle(overlay.mX, overlay.mY,
+                    overlay.mImage.getWidth(), overlay.mImage.getHeight());
+            union = union == null ? bounds : union.union(bounds);
+        }
+        BufferedImage image = new BufferedImage(union.width, union.height,
+                BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = image.createGraphics();
+        try {
+            for (Overlay overlay : overlays) {
+                g.setComposite(AlphaComposite.getInstance(
+                        AlphaComposite.SRC_OVER, overlay.mOpacity));
+                g.drawImage(overlay.mImage, overlay.mX - union.x, overlay.mY
+                        - union.y, null);
+            }
+        } finally {
+            g.dispose();
+        }
+        YuvOverlay composite = new YuvOverlay(image);
+        composite.setPosition(union.x, union.y);
+        return composite;
+    }
+
+    // the product of gains and fades
+
+    static class Envelope {
+        double mGain = 1;
+
+        final List<Fade> mFades = new ArrayList<Fade>();
+
+        /** Whether the envelope changes nothing. */
+
+        boolean isUnity() {
+            return mGain == 1 && mFades.isEmpty();
+        }
+
+        /** The gain at a time, in microseconds. */
+
+        double at(long micros) {
+            double gain = mGain;
+            for (Fade fade : mFades) {
+                double done = fade.mDuration <= 0 ? (micros < fade.mStart ? 0
+                        : 1) : (double) (micros - fade.mStart) / fade.mDuration;
+                done = Math.max(0, Math.min(1, done));
+                gain *= fade.mIn ? done : 1 - done;
+            }
+            return Math.min(gain, AudioGain.MAX_GAIN);
+        }
+    }
+
+    /**
+     * The filters between two tools, applied in one event dispatch: the
+     * video filters in their order on the planes of each picture, and the
+     * envelope of the audio filters ramped over each buffer of samples.
+     */
+
+    static class FusedTool extends MediaToolAdapter {
+        // YuvOverlay or TimecodeBurner
+
+        final List<Object> mVideo = new ArrayList<Object>();
+
+        final Envelope mEnvelope = new Envelope();
+
+        private final YuvPlanes mPlanes = new YuvPlanes();
+
+        private AudioGain mGain;
+
+        // the end of the last buffer of samples, to ramp on from there
+
+        private long mNextMicros = Long.MIN_VALUE;
+
+        // composite the overlays seen since the last filter, and clear them
+
+        void addOverlays(List<Overlay> overlays) {
+            if (overlays.isEmpty())
+                return;
+            mVideo.add(composite(overlays));
+            overlays.clear();
+        }
+
+        /** {@inheritDoc} */
+
+        @Override
+        public void onVideoPicture(IVideoPictureEvent event) {
+            if (!mVideo.isEmpty()) {
+                mPlanes.set(event.getPicture());
+                long timeStamp = event.getTimeStamp();
+                for (Object filter : mVideo) {
+                    if (filter instanceof YuvOverlay)
+                        ((YuvOverlay) filter).apply(mPlanes);
+                    else
+                        ((TimecodeBurner) filter).burn(mPlanes, timeStamp,
+                                event.getTimeUnit());
+                }
+            }
+            super.onVideoPicture(event);
+        }
+
+        /** {@inheritDoc} */
+
+        @Override
+        public void onAudioSamples(IAudioSamplesEvent event) {
+            if (!mEnvelope.isUnity()) {
+                IAudioSamples samples = event.getAudioSamples();
+                int channels = samples.getChannels();
+                long start = event.getTimeUnit().toMicros(event.getTimeStamp());
+                if (mGain == null || mGain.getChannels() != channels) {
+                    mGain = new AudioGain(channels);
+                    mNextMicros = Long.MIN_VALUE;
+                }
+                if (start != mNextMicros)
+                    mGain.setGain(mEnvelope.at(start));
+
+                // ramp to the gain at the end of the buffer as it is applied
+                int frames = (int) samples.getNumSamples();
+                mNextMicros = start + frames * 1000000L
+                        / samples.getSampleRate();
+                mGain.rampTo(mEnvelope.at(mNextMicros), frames);
+                ShortBuffer buffer = samples.getByteBuffer().asShortBuffer();
+                buffer.limit(frames * channels);
+                mGain.process(buffer);
+            }
+            super.onAudioSamples(event);
+        }
+    }
+
+    /**
+     * Burn time stamps, reduce the volume to 1/10th with a two seconds fade
+     * in, and optionally blend a logo at the top left corner.
+     */
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out
+                    .println("Usage: MediaPipeline <inputFileName> <outputFileName> [<logo>]");
+            System.exit(-1);
+        }
+
+        Builder builder = read(args[0]).timeStamp(new TimecodeBurner());
+        if (args.length > 2)
+            builder.overlay(ImageIO.read(new File(args[2])), 16, 16);
+        builder.gain(0.1).fadeIn(0, 2, TimeUnit.SECONDS).write(args[1])
+                .build().run();
+    }
+}
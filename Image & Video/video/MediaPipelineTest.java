@@ -0,0 +1,121 @@
+package video;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.xuggle.mediatool.IMediaReader;
+import com.xuggle.mediatool.IMediaTool;
+import com.xuggle.mediatool.MediaToolAdapter;
+
+public class MediaPipelineTest {
+
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+
+    @Test
+    public void testFusion() {
+        IMediaTool custom = new MediaToolAdapter();
+        List<IMediaTool> tools = MediaPipeline.read((IMediaReader) null)
+                .overlay(logo(Color.RED), 4, 4)
+                .gain(0.5)
+                .overlay(logo(Color.BLUE), 10, 6, 0.5f)
+                .fadeIn(0, 1, TimeUnit.SECONDS)
+                .timeStamp(new TimecodeBurner())
+                .overlay(logo(Color.GREEN), 20, 20)
+                .filter(custom)
+                .gain(2)
+                .fuse();
+
+        assertEquals(3, tools.size());
+        MediaPipeline.FusedTool first = (MediaPipeline.FusedTool) tools.get(0);
+        assertSame(custom, tools.get(1));
+        MediaPipeline.FusedTool last = (MediaPipeline.FusedTool) tools.get(2);
+
+        // the two first overlays in one, the time stamp, then the last
+        assertEquals(3, first.mVideo.size());
+        assertTrue(first.mVideo.get(0) instanceof YuvOverlay);
+        assertTrue(first.mVideo.get(1) instanceof TimecodeBurner);
+        assertEquals(0.25, first.mEnvelope.at(500000), 1e-9);
+        assertTrue(last.mVideo.isEmpty());
+        assertEquals(2, last.mEnvelope.at(0), 1e-9);
+    }
+
+    @Test
+    public void testEnvelope() {
+        MediaPipeline.Envelope envelope = new MediaPipeline.Envelope();
+        assertTrue(envelope.isUnity());
+
+        List<IMediaTool> tools = MediaPipeline.read((IMediaReader) null).gain(0.5)
+                .fadeIn(1, 2, TimeUnit.SECONDS)
+                .fadeOut(10, 1, TimeUnit.SECONDS).fuse();
+        envelope = ((MediaPipeline.FusedTool) tools.get(0)).mEnvelope;
+        assertEquals(0, envelope.at(0), 1e-9);
+        assertEquals(0.25, envelope.at(2000000), 1e-9);
+        assertEquals(0.5, envelope.at(5000000), 1e-9);
+        assertEquals(0.25, envelope.at(10500000), 1e-9);
+        assertEquals(0, envelope.at(12000000), 1e-9);
+    }
+
+    @Test
+    public void testCompositeSameAsOverlaysInTurn() {
+        MediaPipeline.Overlay red = new MediaPipeline.Overlay(logo(Color.RED),
+                3, 5, 1);
+        MediaPipeline.Overlay blue = new MediaPipeline.Overlay(
+                logo(Color.BLUE), 11, 8, 0.6f);
+
+        YuvPlanes composited = planes();
+        MediaPipeline.composite(Arrays.asList(red, blue)).apply(composited);
+
+        YuvPlanes inTurn = planes();
+        for (MediaPipeline.Overlay overlay : Arrays.asList(red, blue)) {
+            YuvOverlay single = new YuvOverlay(overlay.mImage);
+            single.setPosition(overlay.mX, overlay.mY);
+            single.setOpacity(overlay.mOpacity);
+            single.apply(inTurn);
+        }
+
+        // the same but for rounding
+        for (int y = 0; y < HEIGHT; y++)
+            for (int x = 0; x < WIDTH; x++)
+                assertEquals(x + "," + y, inTurn.get(0, x, y), composited.get(
+                        0, x, y), 2);
+        for (int y = 0; y < HEIGHT / 2; y++)
+            for (int x = 0; x < WIDTH / 2; x++)
+                assertEquals(x + "," + y, inTurn.get(1, x, y), composited.get(
+                        1, x, y), 3);
+    }
+
+    // a disc over a translucent square
+
+    private static BufferedImage logo(Color color) {
+        BufferedImage logo = new BufferedImage(16, 12,
+                BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = logo.createGraphics();
+        g.setColor(new Color(255, 255, 255, 128));
+        g.fillRect(0, 0, 16, 12);
+        g.setColor(color);
+        g.fillOval(2, 1, 10, 10);
+        g.dispose();
+        return logo;
+    }
+
+    private static YuvPlanes planes() {
+        ByteBuffer data = ByteBuffer.allocate(WIDTH * HEIGHT * 3 / 2);
+        for (int i = 0; i < data.capacity(); i++)
+            data.put(i, (byte) (i < WIDTH * HEIGHT ? 60 + i % 50 : 128));
+        YuvPlanes planes = new YuvPlanes();
+        planes.set(data, WIDTH, HEIGHT, WIDTH, WIDTH / 2, WIDTH / 2);
+        return planes;
+    }
+}
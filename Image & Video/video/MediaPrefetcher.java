@@ -0,0 +1,133 @@
+package video;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import com.xuggle.xuggler.IContainer;
+
+/**
+ * Opens a list of media files one after the other, always opening and
+ * probing the next file on a background thread while the current one is in
+ * use. Opening a container and finding its stream parameters can take longer
+ * than processing a short clip, so this hides most of that latency when
+ * going through many files.
+ *
+ * The containers returned by {@link #next()} belong to the caller, who has
+ * to close them.
+ */
+public class MediaPrefetcher implements Iterator<IContainer>, Closeable {
+
+    private final Iterator<String> mUrls;
+
+    private final ExecutorService mExecutor;
+
+    // the file being opened in the background, null when there is none left
+
+    private Future<IContainer> mNext;
+
+    /**
+     * Create a prefetcher, which starts opening the first file right away.
+     *
+     * @param urls the files, in the order they are used
+     */
+
+    public MediaPrefetcher(List<String> urls) {
+        mUrls = urls.iterator();
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "media-prefetcher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        prefetch();
+    }
+
+    /** {@inheritDoc} */
+
+    @Override
+    public boolean hasNext() {
+        return mNext != null;
+    }
+
+    /**
+     * The next file, opened and probed. Waits for it if it is not open yet,
+     * and starts opening the file after it.
+     *
+     * @throws RuntimeException if the file could not be opened
+     */
+
+    @Override
+    public IContainer next() {
+        if (mNext == null)
+            throw new NoSuchElementException();
+
+        Future<IContainer> next = mNext;
+        prefetch();
+        return get(next);
+    }
+
+    /** {@inheritDoc} */
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /** Close a file still being prefetched, and stop the background thread. */
+
+    @Override
+    public void close() {
+        if (mNext != null) {
+            try {
+                get(mNext).close();
+            } catch (RuntimeException e) {
+                // it could not be opened, so nothing to close
+            }
+            mNext = null;
+        }
+        mExecutor.shutdown();
+    }
+
+    private void prefetch() {
+        if (!mUrls.hasNext()) {
+            mNext = null;
+            return;
+        }
+
+        final String url = mUrls.next();
+        mNext = mExecutor.submit(new Callable<IContainer>() {
+            @Override
+            public IContainer call() {
+                IContainer container = StreamCopier.open(url);
+                if (container.queryStreamMetaData() < 0) {
+                    container.close();
+                    throw new RuntimeException("could not probe " + url);
+                }
+                return container;
+            }
+        });
+    }
+
+    private static IContainer get(Future<IContainer> future) {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("interrupted while opening media", e);
+        }
+    }
+}
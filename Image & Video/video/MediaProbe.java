@@ -0,0 +1,574 @@
+package video;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.reflect.Method;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.xuggle.xuggler.ICodec;
+import com.xuggle.xuggler.IContainer;
+import com.xuggle.xuggler.IStream;
+import com.xuggle.xuggler.IStreamCoder;
+
+/**
+ * Reads the container and stream parameters of media files, as printed by
+ * {@link XuggleTest#testBasicInfo()}, from their headers only.
+ *
+ * Many files are probed in parallel, on virtual threads when the runtime
+ * has them. The results are kept in an index file, by path, size and
+ * modification time, so that probing the files of a library again only
+ * needs their attributes for the files which did not change. Files which
+ * could not be probed are kept in the index too, and not tried again until
+ * they change.
+ */
+public class MediaProbe implements Closeable {
+
+    /** The parameters of a media file. */
+
+    public static final class MediaInfo implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String mUrl;
+
+        private final long mFileSize;
+
+        private final long mDuration;
+
+        private final long mStartTime;
+
+        private final long mBitRate;
+
+        private final List<StreamInfo> mStreams;
+
+        MediaInfo(String url, long fileSize, long duration, long startTime,
+                long bitRate, List<StreamInfo> streams) {
+            mUrl = url;
+            mFileSize = fileSize;
+            mDuration = duration;
+            mStartTime = startTime;
+            mBitRate = bitRate;
+            mStreams = Collections.unmodifiableList(new ArrayList<StreamInfo>(
+                    streams));
+        }
+
+        public String getUrl() {
+            return mUrl;
+        }
+
+        public long getFileSize() {
+            return mFileSize;
+        }
+
+        /** The duration in microseconds. */
+
+        public long getDuration() {
+            return mDuration;
+        }
+
+        /** The start time in microseconds. */
+
+        public long getStartTime() {
+            return mStartTime;
+        }
+
+        public long getBitRate() {
+            return mBitRate;
+        }
+
+        public List<StreamInfo> getStreams() {
+            return mStreams;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder s = new StringBuilder();
+            s.append(mUrl).append(": ").append(mStreams.size())
+                    .append(" streams; duration: ").append(mDuration)
+                    .append("; start time: ").append(mStartTime)
+                    .append("; file size: ").append(mFileSize)
+                    .append("; bit rate: ").append(mBitRate);
+            for (StreamInfo stream : mStreams)
+                s.append('\n').append(stream);
+            return s.toString();
+        }
+    }
+
+    /**
+     * The parameters of a stream. The Xuggler enums are kept by name, as
+     * loading them needs the native library, which reading the index should
+     * not.
+     */
+
+    public static final class StreamInfo implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final int mIndex;
+
+        private final String mCodecType;
+
+        private final String mCodecId;
+
+        private final long mDuration;
+
+        private final int mTimeBaseNumerator;
+
+        private final int mTimeBaseDenominator;
+
+        private final int mSampleRate;
+
+        private final int mChannels;
+
+        private final String mSampleFormat;
+
+        private final int mWidth;
+
+        private final int mHeight;
+
+        private final String mPixelFormat;
+
+        private final double mFrameRate;
+
+        StreamInfo(IStream stream) {
+            IStreamCoder coder = stream.getStreamCoder();
+            boolean audio = coder.getCodecType() == ICodec.Type.CODEC_TYPE_AUDIO;
+            boolean video = coder.getCodecType() == ICodec.Type.CODEC_TYPE_VIDEO;
+
+            mIndex = stream.getIndex();
+            mCodecType = String.valueOf(coder.getCodecType());
+            mCodecId = String.valueOf(coder.getCodecID());
+            mDuration = stream.getDuration();
+            mTimeBaseNumerator = stream.getTimeBase().getNumerator();
+            mTimeBaseDenominator = stream.getTimeBase().getDenominator();
+            mSampleRate = audio ? coder.getSampleRate() : 0;
+            mChannels = audio ? coder.getChannels() : 0;
+            mSampleFormat = audio ? String.valueOf(coder.getSampleFormat())
+                    : null;
+            mWidth = video ? coder.getWidth() : 0;
+            mHeight = video ? coder.getHeight() : 0;
+            mPixelFormat = video ? String.valueOf(coder.getPixelType()) : null;
+            mFrameRate = video && coder.getFrameRate() != null ? coder
+                    .getFrameRate().getDouble() : 0;
+        }
+
+        public int getIndex() {
+            return mIndex;
+        }
+
+        /** The name of the {@link ICodec.Type}. */
+
+        public String getCodecType() {
+            return mCodecType;
+        }
+
+        /** The name of the {@link ICodec.ID}. */
+
+        public String getCodecId() {
+            return mCodecId;
+        }
+
+        /** The duration in time base units. */
+
+        public long getDuration() {
+            return mDuration;
+        }
+
+        public int getTimeBaseNumerator() {
+            return mTimeBaseNumerator;
+        }
+
+        public int getTimeBaseDenominator() {
+            return mTimeBaseDenominator;
+        }
+
+        /** The sample rate of an audio stream, 0 for others. */
+
+        public int getSampleRate() {
+            return mSampleRate;
+        }
+
+        /** The channels of an audio stream, 0 for others. */
+
+        public int getChannels() {
+            return mChannels;
+        }
+
+        /** The name of the sample format of an audio stream, null for others. */
+
+        public String getSampleFormat() {
+            return mSampleFormat;
+        }
+
+        /** The width of a video stream, 0 for others. */
+
+        public int getWidth() {
+            return mWidth;
+        }
+
+        /** The height of a video stream, 0 for others. */
+
+        public int getHeight() {
+            return mHeight;
+        }
+
+        /** The name of the pixel format of a video stream, null for others. */
+
+        public String getPixelFormat() {
+            return mPixelFormat;
+        }
+
+        /** The frame rate of a video stream, 0 for others. */
+
+        public double getFrameRate() {
+            return mFrameRate;
+        }
+
+        @Override
+        public String toString() {
+            String s = String.format(
+                    "stream %d: type: %s; codec: %s; duration: %d; "
+                            + "timebase: %d/%d", mIndex, mCodecType, mCodecId,
+                    mDuration, mTimeBaseNumerator, mTimeBaseDenominator);
+            if (mSampleFormat != null)
+                s += String.format("; sample rate: %d; channels: %d; "
+                        + "format: %s", mSampleRate, mChannels, mSampleFormat);
+            if (mPixelFormat != null)
+                s += String.format("; width: %d; height: %d; format: %s; "
+                        + "frame-rate: %5.2f", mWidth, mHeight, mPixelFormat,
+                        mFrameRate);
+            return s;
+        }
+    }
+
+    // what the index knows of a file, a null info if it could not be probed
+
+    private static final class Entry implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final long mSize;
+
+        final long mModified;
+
+        final MediaInfo mInfo;
+
+        Entry(long size, long modified, MediaInfo info) {
+            mSize = size;
+            mModified = modified;
+            mInfo = info;
+        }
+    }
+
+    private final File mIndexFile;
+
+    // entries by absolute path
+
+    private final Map<String, Entry> mIndex = new ConcurrentHashMap<String, Entry>();
+
+    private volatile boolean mChanged;
+
+    private int mParallelism = 4 * Runtime.getRuntime().availableProcessors();
+
+    private final AtomicInteger mProbes = new AtomicInteger();
+
+    private final AtomicInteger mIndexHits = new AtomicInteger();
+
+    /**
+     * Create a probe, reading the index if there is one. An index which
+     * cannot be read is ignored, as if it was empty.
+     *
+     * @param indexFile where the index is kept
+     */
+
+    @SuppressWarnings("unchecked")
+    public MediaProbe(File indexFile) {
+        mIndexFile = indexFile;
+        if (!indexFile.exists())
+            return;
+
+        try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(
+                indexFile))) {
+            mIndex.putAll((Map<String, Entry>) in.readObject());
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            // probed again
+            mIndex.clear();
+            mChanged = true;
+        }
+    }
+
+    /**
+     * The number of files probed at the same time, 4 per processor by
+     * default. Virtual threads are pinned to their carrier while in the
+     * native library, so on virtual threads the probes themselves are also
+     * limited by the number of processors, but the file attributes and index
+     * lookups are not.
+     */
+
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("invalid parallelism "
+                    + parallelism);
+        mParallelism = parallelism;
+    }
+
+    /** The number of files probed, rather than found in the index. */
+
+    public int getProbeCount() {
+        return mProbes.get();
+    }
+
+    /** The number of files found unchanged in the index. */
+
+    public int getIndexHits() {
+        return mIndexHits.get();
+    }
+
+    /**
+     * Probe a file, without the index.
+     *
+     * @param url the file
+     * @return its parameters
+     * @throws RuntimeException if the file could not be opened
+     */
+
+    public static MediaInfo probe(String url) {
+        // opening a container for reading also finds its stream parameters
+        IContainer container = StreamCopier.open(url);
+        try {
+            List<StreamInfo> streams = new ArrayList<StreamInfo>();
+            for (int i = 0; i < container.getNumStreams(); i++)
+                streams.add(new StreamInfo(container.getStream(i)));
+            return new MediaInfo(url, container.getFileSize(), container
+                    .getDuration(), container.getStartTime(), container
+                    .getBitRate(), streams);
+        } finally {
+            container.close();
+        }
+    }
+
+    /**
+     * Probe files, or find them in the index if they did not change.
+     *
+     * @param files the files
+     * @return the parameters of the files which could be probed, in the
+     *         order of the files
+     * @throws InterruptedException if interrupted while waiting for the
+     *         probes
+     */
+
+    public Map<File, MediaInfo> probe(Collection<File> files)
+            throws InterruptedException {
+        List<Callable<MediaInfo>> lookups = new ArrayList<Callable<MediaInfo>>();
+        final Semaphore permits = new Semaphore(mParallelism);
+        for (final File file : files)
+            lookups.add(new Callable<MediaInfo>() {
+                @Override
+                public MediaInfo call() throws InterruptedException {
+                    // a missing file has no modification time
+                    long modified = file.lastModified();
+                    if (modified == 0) {
+                        if (mIndex.remove(file.getAbsolutePath()) != null)
+                            mChanged = true;
+                        return null;
+                    }
+                    return lookup(file, file.length(), modified, permits);
+                }
+            });
+        return run(new ArrayList<File>(files), lookups);
+    }
+
+    /**
+     * Probe the files in a directory and its subdirectories, or find them in
+     * the index if they did not change, and drop the files which are gone
+     * from the index.
+     *
+     * @param directory the directory
+     * @return the parameters of the files which could be probed
+     * @throws IOException if the directory could not be listed
+     * @throws InterruptedException if interrupted while waiting for the
+     *         probes
+     */
+
+    public Map<File, MediaInfo> probeTree(File directory) throws IOException,
+            InterruptedException {
+        final List<File> files = new ArrayList<File>();
+        final List<Callable<MediaInfo>> lookups = new ArrayList<Callable<MediaInfo>>();
+        final Semaphore permits = new Semaphore(mParallelism);
+
+        // the walk reads the attributes anyway, so they are not read again
+        Files.walkFileTree(directory.toPath(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path path,
+                    final BasicFileAttributes attributes) {
+                if (attributes.isRegularFile()) {
+                    final File file = path.toFile();
+                    files.add(file);
+                    lookups.add(new Callable<MediaInfo>() {
+                        @Override
+                        public MediaInfo call() throws InterruptedException {
+                            return lookup(file, attributes.size(), attributes
+                                    .lastModifiedTime().toMillis(), permits);
+                        }
+                    });
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        Set<String> paths = new HashSet<String>();
+        for (File file : files)
+            paths.add(file.getAbsolutePath());
+        String prefix = directory.getAbsolutePath() + File.separator;
+        for (Iterator<String> i = mIndex.keySet().iterator(); i.hasNext();) {
+            String path = i.next();
+            if (path.startsWith(prefix) && !paths.contains(path)) {
+                i.remove();
+                mChanged = true;
+            }
+        }
+
+        return run(files, lookups);
+    }
+
+    /**
+     * Write the index, if anything changed since it was read.
+     *
+     * @throws IOException if the index could not be written
+     */
+
+    public void save() throws IOException {
+        if (!mChanged)
+            return;
+        mChanged = false;
+
+        // written aside and moved, so that a crash leaves the old index; the
+        // flag is cleared first so that probes finishing meanwhile are saved
+        // next time, and set again if the index is not saved after all
+        File written = new File(mIndexFile.getPath() + ".tmp");
+        boolean saved = false;
+        try {
+            try (ObjectOutputStream out = new ObjectOutputStream(
+                    new FileOutputStream(written))) {
+                out.writeObject(new LinkedHashMap<String, Entry>(mIndex));
+            }
+            Files.move(written.toPath(), mIndexFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            saved = true;
+        } finally {
+            if (!saved)
+                mChanged = true;
+        }
+    }
+
+    /** Save the index. */
+
+    @Override
+    public void close() throws IOException {
+        save();
+    }
+
+    /**
+     * Read the parameters of a file, for files not in the index.
+     *
+     * @throws RuntimeException if the file could not be probed
+     */
+
+    MediaInfo probeFile(File file) {
+        return probe(file.getPath());
+    }
+
+    private MediaInfo lookup(File file, long size, long modified,
+            Semaphore permits) throws InterruptedException {
+        String path = file.getAbsolutePath();
+        Entry entry = mIndex.get(path);
+        if (entry != null && entry.mSize == size
+                && entry.mModified == modified) {
+            mIndexHits.incrementAndGet();
+            return entry.mInfo;
+        }
+
+        MediaInfo info;
+        permits.acquire();
+        try {
+            info = probeFile(file);
+        } catch (RuntimeException e) {
+            // not a media file, or a broken one
+            info = null;
+        } finally {
+            permits.release();
+        }
+        mProbes.incrementAndGet();
+        mIndex.put(path, new Entry(size, modified, info));
+        mChanged = true;
+        return info;
+    }
+
+    private Map<File, MediaInfo> run(List<File> files,
+            List<Callable<MediaInfo>> lookups) throws InterruptedException {
+        ExecutorService executor = newExecutor();
+        try {
+            List<Future<MediaInfo>> results = executor.invokeAll(lookups);
+            Map<File, MediaInfo> infos = new LinkedHashMap<File, MediaInfo>();
+            for (int i = 0; i < files.size(); i++) {
+                MediaInfo info = results.get(i).get();
+                if (info != null)
+                    infos.put(files.get(i), info);
+            }
+            return infos;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // a virtual thread per file when the runtime has them, else a pool
+
+    private ExecutorService newExecutor() {
+        try {
+            Method method = Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(mParallelism,
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "media-probe");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+    }
+}
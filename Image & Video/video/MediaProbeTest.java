@@ -0,0 +1,172 @@
+package video;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class MediaProbeTest {
+
+    // probes without the native library, the files ending with .txt fail
+
+    private static class FakeProbe extends MediaProbe {
+        FakeProbe(File indexFile) {
+            super(indexFile);
+        }
+
+        @Override
+        MediaInfo probeFile(File file) {
+            if (file.getName().endsWith(".txt"))
+                throw new RuntimeException("could not open " + file);
+            return new MediaInfo(file.getPath(), file.length(), 1000, 0, 64,
+                    Collections.<StreamInfo> emptyList());
+        }
+    }
+
+    private static void write(File file, int size) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[size]);
+        }
+    }
+
+    @Test
+    public void testUnchangedFilesAreNotProbedAgain() throws Exception {
+        File directory = Files.createTempDirectory("media-probe").toFile();
+        File index = new File(directory.getParentFile(), directory.getName()
+                + ".index");
+        File a = new File(directory, "a.mts");
+        File b = new File(directory, "b.mts");
+        File notes = new File(directory, "notes.txt");
+        try {
+            write(a, 10);
+            write(b, 20);
+            write(notes, 30);
+
+            MediaProbe probe = new FakeProbe(index);
+            Map<File, MediaProbe.MediaInfo> infos = probe.probe(Arrays
+                    .asList(a, b, notes));
+            probe.close();
+            assertEquals(Arrays.asList(a, b), Arrays.asList(infos.keySet()
+                    .toArray()));
+            assertEquals(20, infos.get(b).getFileSize());
+            assertEquals(3, probe.getProbeCount());
+
+            // a new probe reads the index, and probes only the changed file
+            write(b, 25);
+            probe = new FakeProbe(index);
+            infos = probe.probe(Arrays.asList(a, b, notes));
+            probe.close();
+            assertEquals(25, infos.get(b).getFileSize());
+            assertEquals(1, probe.getProbeCount());
+            assertEquals(2, probe.getIndexHits());
+            assertFalse(infos.containsKey(notes));
+        } finally {
+            a.delete();
+            b.delete();
+            notes.delete();
+            directory.delete();
+            index.delete();
+        }
+    }
+
+    @Test
+    public void testTreeDropsRemovedFiles() throws Exception {
+        File directory = Files.createTempDirectory("media-probe").toFile();
+        File index = new File(directory.getParentFile(), directory.getName()
+                + ".index");
+        File sub = new File(directory, "sub");
+        File a = new File(directory, "a.mts");
+        File b = new File(sub, "b.mts");
+        try {
+            assertTrue(sub.mkdir());
+            write(a, 10);
+            write(b, 20);
+
+            MediaProbe probe = new FakeProbe(index);
+            probe.setParallelism(1);
+            assertEquals(2, probe.probeTree(directory).size());
+            probe.close();
+
+            b.delete();
+            probe = new FakeProbe(index);
+            Map<File, MediaProbe.MediaInfo> infos = probe.probeTree(directory);
+            probe.close();
+            assertEquals(Collections.singleton(a), infos.keySet());
+            assertEquals(0, probe.getProbeCount());
+
+            // b is gone from the index, so it is probed when it is back
+            write(b, 20);
+            probe = new FakeProbe(index);
+            assertEquals(2, probe.probeTree(directory).size());
+            assertEquals(1, probe.getProbeCount());
+            probe.close();
+        } finally {
+            b.delete();
+            sub.delete();
+            a.delete();
+            directory.delete();
+            index.delete();
+        }
+    }
+
+    @Test
+    public void testFailedSaveIsRetried() throws Exception {
+        File directory = Files.createTempDirectory("media-probe").toFile();
+        File indexDirectory = new File(directory, "index");
+        File index = new File(indexDirectory, "probe.index");
+        File a = new File(directory, "a.mts");
+        try {
+            write(a, 10);
+            MediaProbe probe = new FakeProbe(index);
+            probe.probe(Collections.singleton(a));
+            try {
+                probe.save();
+                fail("the index was saved into a missing directory");
+            } catch (IOException e) {
+                // the directory is created below
+            }
+
+            assertTrue(indexDirectory.mkdir());
+            probe.close();
+            assertTrue(index.isFile());
+            probe = new FakeProbe(index);
+            probe.probe(Collections.singleton(a));
+            assertEquals(0, probe.getProbeCount());
+        } finally {
+            index.delete();
+            indexDirectory.delete();
+            a.delete();
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void testUnreadableIndexIsIgnored() throws Exception {
+        File index = File.createTempFile("media-probe", ".index");
+        File a = File.createTempFile("media-probe", ".mts");
+        try {
+            write(index, 100);
+            MediaProbe probe = new FakeProbe(index);
+            assertEquals(1, probe.probe(Collections.singleton(a)).size());
+            probe.close();
+
+            probe = new FakeProbe(index);
+            assertEquals(1, probe.probe(Collections.singleton(a)).size());
+            assertEquals(1, probe.getIndexHits());
+        } finally {
+            a.delete();
+            index.delete();
+        }
+    }
+
+}
@@ -0,0 +1,562 @@
+package video;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.xuggle.xuggler.Global;
+import com.xuggle.xuggler.ICodec;
+import com.xuggle.xuggler.IContainer;
+import com.xuggle.xuggler.IPacket;
+import com.xuggle.xuggler.IStreamCoder;
+import com.xuggle.xuggler.IVideoPicture;
+
+/**
+ * Cuts time ranges out of a media file without decoding it from the start.
+ *
+ * The container is seeked to the last key frame before a range, and from
+ * there the packets are read a group of pictures (GOP) at a time, from one
+ * video key frame to the next. GOPs entirely inside the range are copied as
+ * they are. The partial GOPs at the boundaries are either copied whole, so
+ * that the clip starts and ends on key frames, or, for a frame accurate cut,
+ * decoded and encoded again with the parameters of the source, keeping only
+ * the pictures inside the range. Either way the work depends on the length of
+ * the range, not on where it is in the file.
+ *
+ * Packets of the other streams, like audio, are copied when their time stamp
+ * is inside the clip.
+ *
+ * Any number of ranges, overlapping or not, can be cut in a single pass over
+ * the source with {@link #split(List)}, or the whole source can be cut into
+ * segments of a fixed duration with {@link #split(long, String)}. A file is
+ * open for each range from its first GOP to its last one only.
+ *
+ * Frame accurate cuts mix copied and encoded packets in one stream, which
+ * needs a codec repeating its parameters in the stream, like MPEG-4 part 2 or
+ * H.264 with in band SPS/PPS, as in MPEG-TS. When the video stream has its
+ * parameters in the container header instead, as H.264 in MP4 does, the
+ * encoder of the boundary GOPs would not reproduce them, and the clips are
+ * cut on key frames.
+ */
+public class MediaSplitter {
+
+    private final String mSourceUrl;
+
+    private boolean mFrameAccurate = false;
+
+    /**
+     * Create a splitter.
+     *
+     * @param sourceUrl the file to cut ranges from
+     */
+
+    public MediaSplitter(String sourceUrl) {
+        mSourceUrl = sourceUrl;
+    }
+
+    /**
+     * Extract a frame accurate clip of a file, or extended to the key frames
+     * around the range if the source cannot be cut frame accurately.
+     *
+     * @param sourceUrl the file to cut from
+     * @param start start of the clip, in microseconds
+     * @param end end of the clip, exclusive, in microseconds
+     * @param destinationUrl the file which will be produced
+     */
+
+    public static void extract(String sourceUrl, long start, long end,
+            String destinationUrl) {
+        MediaSplitter splitter = new MediaSplitter(sourceUrl);
+        splitter.setFrameAccurate(true);
+        splitter.extract(start, end, destinationUrl);
+    }
+
+    /**
+     * Re-encode the partial GOPs at the boundaries of the clips so that they
+     * start and end exactly at the requested times. Otherwise the clips are
+     * only copied, and extended to the key frames around the ranges. Only
+     * used for sources whose video stream has no codec extra data, as
+     * explained above. Defaults to false.
+     */
+
+    public void setFrameAccurate(boolean frameAccurate) {
+        mFrameAccurate = frameAccurate;
+    }
+
+    /** A time range to cut, and where to write it. */
+
+    public static class Segment {
+        private final long mStart;
+        private final long mEnd;
+        private final String mDestinationUrl;
+
+        /**
+         * Create a segment.
+         *
+         * @param start start of the range, in microseconds
+         * @param end end of the range, exclusive, in microseconds, may be
+         *        Long.MAX_VALUE for the end of the file
+         * @param destinationUrl the file which will be produced
+         */
+
+        public Segment(long start, long end, String destinationUrl) {
+            if (start < 0 || end <= start)
+                throw new IllegalArgumentException("invalid range [" + start
+                        + ", " + end + ")");
+            mStart = start;
+            mEnd = end;
+            mDestinationUrl = destinationUrl;
+        }
+
+        public long getStart() {
+            return mStart;
+        }
+
+        public long getEnd() {
+            return mEnd;
+        }
+
+        public String getDestinationUrl() {
+            return mDestinationUrl;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + mStart + ", " + mEnd + ") -> " + mDestinationUrl;
+        }
+    }
+
+    /**
+     * Extract a clip.
+     *
+     * @param start start of the clip, in microseconds
+     * @param end end of the clip, exclusive, in microseconds, may be
+     *        Long.MAX_VALUE for the end of the file
+     * @param destinationUrl the file which will be produced
+     */
+
+    public void extract(long start, long end, String destinationUrl) {
+        split(Collections.singletonList(new Segment(start, end,
+                destinationUrl)));
+    }
+
+    /**
+     * Cut any number of ranges, which may overlap, in one pass over the
+     * source. The source is read from the first range to the end of the last
+     * one.
+     *
+     * @param segments the ranges and their files
+     */
+
+    public void split(List<Segment> segments) {
+        IContainer input = StreamCopier.open(mSourceUrl);
+        try {
+            split(input, segments, false);
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Cut the whole source into consecutive segments. Without frame accuracy
+     * each GOP goes to the segment its key frame is in, so the segments
+     * start on key frames, do not overlap, and last about the given
+     * duration. A segment with no key frame, shorter than the GOP before it
+     * or past the last one, is left in that GOP's segment and not written.
+     *
+     * @param duration duration of the segments, in microseconds
+     * @param destinationPattern the files to write, a {@link String#format}
+     *        pattern given the number of the segment from 0, like
+     *        "segment-%05d.ts"
+     * @return the files written, in order, which may skip numbers
+     */
+
+    public List<String> split(long duration, String destinationPattern) {
+        if (duration <= 0)
+            throw new IllegalArgumentException("invalid duration " + duration);
+
+        IContainer input = StreamCopier.open(mSourceUrl);
+        try {
+            long total = input.getDuration();
+            if (total == Global.NO_PTS || total <= 0)
+                throw new RuntimeException("unknown duration of "
+                        + mSourceUrl);
+
+            // the last segment also gets whatever is past the announced
+            // duration
+            List<Segment> segments = new ArrayList<Segment>();
+            for (long start = 0; start < total; start += duration) {
+                String url = String.format(destinationPattern,
+                        segments.size());
+                long end = start + duration < total ? start + duration
+                        : Long.MAX_VALUE;
+                segments.add(new Segment(start, end, url));
+            }
+
+            return split(input, segments, true);
+        } finally {
+            input.close();
+        }
+    }
+
+    // returns the files written
+
+    private List<String> split(IContainer input, List<Segment> segments,
+            boolean aligned) {
+        int video = findVideoStream(input);
+
+        // an encoder would not reproduce parameters kept out of band, which
+        // the copied GOPs depend on
+        boolean frameAccurate = mFrameAccurate
+                && (video < 0 || input.getStream(video).getStreamCoder()
+                        .getExtraDataSize() == 0);
+
+        // the last key frame at or before the first range, in the default
+        // stream, which is the video one if there is one
+        long start = Long.MAX_VALUE;
+        for (Segment segment : segments)
+            start = Math.min(start, segment.getStart());
+        if (start > 0
+                && input.seekKeyFrame(-1, Long.MIN_VALUE, start, start, 0) < 0)
+            throw new RuntimeException("could not seek " + mSourceUrl
+                    + " to " + start);
+
+        List<Clip> clips = new ArrayList<Clip>();
+        try {
+            for (Segment segment : segments)
+                clips.add(new Clip(input, video, segment.getStart(), segment
+                        .getEnd(), frameAccurate, aligned, segment
+                        .getDestinationUrl()));
+            readGops(input, video, clips);
+
+            List<String> urls = new ArrayList<String>();
+            for (Clip clip : clips)
+                if (clip.isWritten())
+                    urls.add(clip.mDestinationUrl);
+            return urls;
+        } finally {
+            for (Clip clip : clips)
+                clip.close();
+        }
+    }
+
+    /**
+     * Read packets a GOP at a time and hand them to clips, until all of them
+     * are complete. Packets before the first video key frame cannot be used
+     * and are skipped. Without a video stream every packet is a GOP. Every
+     * GOP is read once, whatever the number of clips it goes to.
+     */
+
+    static void readGops(IContainer input, int video, List<Clip> clips) {
+        Gop gop = new Gop();
+        IPacket packet = IPacket.make();
+        try {
+            while (input.readNextPacket(packet) >= 0) {
+                boolean key = video < 0
+                        || (packet.getStreamIndex() == video && packet
+                                .isKeyPacket());
+                if (key) {
+                    long timeStamp = StreamCopier.timeStamp(packet);
+                    if (gop.start != Global.NO_PTS) {
+                        gop.end = timeStamp;
+                        if (!write(clips, gop))
+                            return;
+                    }
+                    gop.clear();
+                    gop.start = timeStamp;
+                }
+                if (gop.start != Global.NO_PTS)
+                    gop.packets.add(IPacket.make(packet, true));
+            }
+
+            if (gop.start != Global.NO_PTS) {
+                gop.end = Long.MAX_VALUE;
+                write(clips, gop);
+            }
+
+            // ranges going past the end of the file
+            for (Clip clip : clips)
+                if (!clip.isComplete())
+                    clip.complete();
+        } finally {
+            gop.clear();
+            packet.delete();
+        }
+    }
+
+    // returns false once all clips are complete
+
+    private static boolean write(List<Clip> clips, Gop gop) {
+        boolean more = false;
+        for (Clip clip : clips)
+            if (!clip.isComplete()) {
+                clip.write(gop);
+                more |= !clip.isComplete();
+            }
+        return more;
+    }
+
+    static int findVideoStream(IContainer container) {
+        for (int i = 0; i < container.getNumStreams(); i++) {
+            IStreamCoder coder = container.getStream(i).getStreamCoder();
+            if (coder.getCodecType() == ICodec.Type.CODEC_TYPE_VIDEO)
+                return i;
+        }
+        return -1;
+    }
+
+    /** The packets from one video key frame to the next. */
+
+    static class Gop {
+        // presentation time of the key frame and of the next one, in
+        // microseconds
+
+        long start = Global.NO_PTS;
+        long end;
+
+        final List<IPacket> packets = new ArrayList<IPacket>();
+
+        void clear() {
+            for (IPacket packet : packets)
+                packet.delete();
+            packets.clear();
+            start = Global.NO_PTS;
+        }
+    }
+
+    /** A time range being written to a file, fed a GOP at a time. */
+
+    static class Clip {
+        private final IContainer mInput;
+        private final int mVideo;
+        private final long mStart;
+        private final long mEnd;
+        private final boolean mFrameAccurate;
+        private final boolean mAligned;
+        private final String mDestinationUrl;
+
+        private IContainer mOutput;
+        private IStreamCoder[] mCoders;
+
+        // subtracted from the time stamps, in microseconds, known with the
+        // first GOP in the range
+
+        private long mOffset = Global.NO_PTS;
+
+        private boolean mComplete = false;
+
+        /**
+         * Create a clip, its file is opened with the first GOP in range.
+         *
+         * @param input the source
+         * @param video index of the video stream of the source, or -1
+         * @param start start of the range, in microseconds
+         * @param end end of the range, exclusive, in microseconds
+         * @param frameAccurate whether to re-encode partial GOPs
+         * @param aligned without frame accuracy, only write the GOPs whose
+         *        key frame is in the range, so that consecutive clips share
+         *        no GOP
+         * @param destinationUrl the file to write
+         */
+
+        Clip(IContainer input, int video, long start, long end,
+                boolean frameAccurate, boolean aligned, String destinationUrl) {
+            mInput = input;
+            mVideo = video;
+            mStart = start;
+            mEnd = end;
+            mFrameAccurate = frameAccurate;
+            mAligned = aligned && !frameAccurate;
+            mDestinationUrl = destinationUrl;
+        }
+
+        /** Whether all GOPs of the range were written. */
+
+        boolean isComplete() {
+            return mComplete;
+        }
+
+        /** Whether the file was opened, for a first GOP in the range. */
+
+        boolean isWritten() {
+            return mOffset != Global.NO_PTS;
+        }
+
+        /**
+         * Write the part of a GOP which is in the range, and complete the
+         * clip after its last GOP.
+         */
+
+        void write(Gop gop) {
+            if (gop.start >= mEnd) {
+                complete();
+                return;
+            }
+            if (mAligned ? gop.start < mStart : gop.end <= mStart)
+                return;
+
+            if (mOutput == null)
+                open(gop);
+
+            // the whole GOP is copied unless it is cut by a boundary
+            boolean partial = mVideo >= 0 && mFrameAccurate
+                    && (gop.start < mStart || gop.end > mEnd);
+            long from = mFrameAccurate ? mStart : mOffset;
+            long to = mFrameAccurate ? mEnd : Long.MAX_VALUE;
+
+            for (IPacket packet : gop.packets) {
+                if (packet.getStreamIndex() == mVideo) {
+                    if (!partial)
+                        copy(packet);
+                } else {
+                    long timeStamp = StreamCopier.timeStamp(packet);
+                    if (timeStamp >= from && timeStamp < to)
+                        copy(packet);
+                }
+            }
+            if (partial)
+                reencode(gop);
+
+            if (gop.end >= mEnd)
+                complete();
+        }
+
+        /**
+         * Write the trailer and close the file, once the range is written. An
+         * aligned clip with no key frame in its range has no file, its GOPs
+         * having gone to the clip before.
+         */
+
+        void complete() {
+            mComplete = true;
+            if (mOutput == null && mAligned)
+                return;
+            if (mOutput == null)
+                throw new RuntimeException("nothing of " + mInput.getURL()
+                        + " in [" + mStart + ", " + mEnd + ")");
+            if (mOutput.writeTrailer() < 0)
+                throw new RuntimeException("could not write trailer of "
+                        + mDestinationUrl);
+            close();
+        }
+
+        /** Close the file, whether the clip is complete or not. */
+
+        void close() {
+            if (mCoders != null)
+                for (IStreamCoder coder : mCoders)
+                    if (coder != null)
+                        coder.close();
+            mCoders = null;
+            if (mOutput != null)
+                mOutput.close();
+            mOutput = null;
+        }
+
+        private void open(Gop first) {
+            mOffset = mFrameAccurate ? mStart : first.start;
+
+            mOutput = IContainer.make();
+            if (mOutput.open(mDestinationUrl, IContainer.Type.WRITE, null) < 0)
+                throw new RuntimeException("could not open " + mDestinationUrl);
+            mCoders = StreamCopier.addStreams(mInput, mOutput);
+            if (mOutput.writeHeader() < 0)
+                throw new RuntimeException("could not write header of "
+                        + mDestinationUrl);
+        }
+
+        private void copy(IPacket packet) {
+            IPacket copy = IPacket.make(packet, false);
+            try {
+                StreamCopier.retime(copy, mCoders[copy.getStreamIndex()]
+                        .getTimeBase(), -mOffset);
+                write(copy);
+            } finally {
+                copy.delete();
+            }
+        }
+
+        private void write(IPacket packet) {
+            if (mOutput.writePacket(packet) < 0)
+                throw new RuntimeException("could not write packet to "
+                        + mDestinationUrl);
+        }
+
+        // Decode a GOP from its key frame and encode the pictures in the
+        // range. A decoder and an encoder are made for each GOP, both get
+        // flushed at its end.
+
+        private void reencode(Gop gop) {
+            IStreamCoder source = mInput.getStream(mVideo).getStreamCoder();
+            IStreamCoder decoder = IStreamCoder.make(
+                    IStreamCoder.Direction.DECODING, source);
+            IStreamCoder encoder = IStreamCoder.make(
+                    IStreamCoder.Direction.ENCODING, source);
+            if (decoder.open(null, null) < 0 || encoder.open(null, null) < 0)
+                throw new RuntimeException("could not open coders of "
+                        + mInput.getURL());
+
+            IVideoPicture picture = IVideoPicture.make(
+                    source.getPixelType(), source.getWidth(),
+                    source.getHeight());
+            IPacket encoded = IPacket.make();
+            IPacket empty = IPacket.make();
+            try {
+                for (IPacket packet : gop.packets) {
+                    if (packet.getStreamIndex() != mVideo)
+                        continue;
+                    int offset = 0;
+                    while (offset < packet.getSize()) {
+                        int decoded = decoder.decodeVideo(picture, packet,
+                                offset);
+                        if (decoded < 0)
+                            throw new RuntimeException("could not decode "
+                                    + mInput.getURL());
+                        offset += decoded;
+                        if (picture.isComplete())
+                            encode(encoder, picture, encoded);
+                    }
+                }
+
+                // the pictures still held back by the decoder, then the
+                // packets still held back by the encoder
+                do {
+                    decoder.decodeVideo(picture, empty, 0);
+                    if (picture.isComplete())
+                        encode(encoder, picture, encoded);
+                } while (picture.isComplete());
+                do {
+                    encoder.encodeVideo(encoded, null, 0);
+                    if (encoded.isComplete())
+                        writeEncoded(encoded);
+                } while (encoded.isComplete());
+            } finally {
+                empty.delete();
+                encoded.delete();
+                picture.delete();
+                encoder.close();
+                decoder.close();
+            }
+        }
+
+        private void encode(IStreamCoder encoder, IVideoPicture picture,
+                IPacket encoded) {
+            long timeStamp = picture.getTimeStamp();
+            if (timeStamp < mStart || timeStamp >= mEnd)
+                return;
+
+            picture.setTimeStamp(timeStamp - mOffset);
+            if (encoder.encodeVideo(encoded, picture, -1) < 0)
+                throw new RuntimeException("could not encode picture of "
+                        + mInput.getURL());
+            if (encoded.isComplete())
+                writeEncoded(encoded);
+        }
+
+        private void writeEncoded(IPacket encoded) {
+            encoded.setStreamIndex(mVideo);
+            StreamCopier.retime(encoded, mCoders[mVideo].getTimeBase(), 0);
+            write(encoded);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package video;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class MediaSplitterTest {
+
+    private static MediaSplitter.Gop gop(long start, long end) {
+        MediaSplitter.Gop gop = new MediaSplitter.Gop();
+        gop.start = start;
+        gop.end = end;
+        return gop;
+    }
+
+    @Test
+    public void testAlignedClipWithoutKeyFrame() {
+        // a 1 s segment inside a 4 s GOP, which goes to the segment it
+        // starts in, then the segment past the last key frame
+        List<MediaSplitter.Clip> clips = Arrays.asList(
+                new MediaSplitter.Clip(null, 0, 1000000, 2000000, false, true,
+                        "short.ts"),
+                new MediaSplitter.Clip(null, 0, 5000000, Long.MAX_VALUE,
+                        false, true, "last.ts"));
+        for (MediaSplitter.Clip clip : clips)
+            clip.write(gop(0, 4000000));
+        for (MediaSplitter.Clip clip : clips)
+            clip.write(gop(4000000, Long.MAX_VALUE));
+
+        MediaSplitter.Clip inside = clips.get(0);
+        assertTrue(inside.isComplete());
+        assertFalse(inside.isWritten());
+
+        MediaSplitter.Clip last = clips.get(1);
+        assertFalse(last.isComplete());
+        last.complete();
+        assertFalse(last.isWritten());
+    }
+
+    @Test
+    public void testUnalignedClipWithoutKeyFrame() {
+        // an extracted range must have something in it
+        MediaSplitter.Clip clip = new MediaSplitter.Clip(null, 0, 1000000,
+                2000000, false, false, "clip.ts");
+        try {
+            clip.write(gop(2000000, Long.MAX_VALUE));
+            fail("no failure");
+        } catch (RuntimeException e) {
+            assertTrue(clip.isComplete());
+        }
+    }
+}
@@ -4,20 +4,15 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
-import java.nio.ShortBuffer;
+import java.util.concurrent.TimeUnit;
 
-import java.awt.Color;
-import java.awt.Graphics2D;
-import java.awt.geom.Rectangle2D;
-import java.awt.image.BufferedImage;
-
-import com.xuggle.mediatool.IMediaTool;
 import com.xuggle.mediatool.ToolFactory;
 import com.xuggle.mediatool.IMediaReader;
 import com.xuggle.mediatool.IMediaWriter;
 import com.xuggle.mediatool.MediaToolAdapter;
 import com.xuggle.mediatool.event.IAudioSamplesEvent;
 import com.xuggle.mediatool.event.IVideoPictureEvent;
+import com.xuggle.xuggler.IAudioSamples;
 
 /**
  * Read and modify audio and video frames and use the {@link
@@ -58,10 +53,11 @@ public class ModifyVideoAndAudio {
 
         File outputFile = new File(args[1]);
 
-        // create a media reader and configure it to generate BufferImages
+        // create a media reader, which does not generate BufferImages: the
+        // time stamps are burnt into the decoded pictures, which are encoded
+        // with no conversion
 
         IMediaReader reader = ToolFactory.makeReader(inputFile.toString());
-        reader.setBufferedImageTypeToGenerate(BufferedImage.TYPE_3BYTE_BGR);
 
         // create a writer and configure it's parameters from the reader
 
@@ -70,18 +66,39 @@ public class ModifyVideoAndAudio {
 
         // create a tool which paints video time stamp into frame
 
-        IMediaTool addTimeStamp = new TimeStampTool();
+        InstrumentedMediaTool addTimeStamp = new InstrumentedMediaTool(
+                "timeStamp", new PictureTimeStampTool());
+
+        // create a tool which brings the audio to the loudness of EBU R 128,
+        // measured by a first pass decoding the audio only, if there is any
+
+        double gain = LoudnessNormalizer.gain(inputFile.toString(),
+                LoudnessNormalizer.EBU_R128, LoudnessNormalizer.DEFAULT_CEILING);
+        InstrumentedMediaTool reduceVolume = new InstrumentedMediaTool(
+                "reduceVolume", new VolumeAdjustTool(gain));
 
-        // create a tool which reduces audio volume to 1/10th original
+        // publish the latencies of both tools with JMX and log them every
+        // 10 seconds
 
-        IMediaTool reduceVolume = new VolumeAdjustTool(0.1);
+        PipelineMonitor monitor = new PipelineMonitor(addTimeStamp,
+                reduceVolume);
+        monitor.start(10, TimeUnit.SECONDS);
+
+        // run the tools and the writer on threads of their own, so that
+        // decoding, modifying and encoding use three cores
+
+        AsyncMediaToolStage decoded = new AsyncMediaToolStage("decoded");
+        AsyncMediaToolStage modified = new AsyncMediaToolStage("modified");
 
         // create a tool chain:
-        //   reader -> addTimeStamp -> reduceVolume -> writer
+        //   reader -> decoded -> addTimeStamp -> reduceVolume -> modified
+        //   -> writer
 
-        reader.addListener(addTimeStamp);
+        reader.addListener(decoded);
+        decoded.addListener(addTimeStamp);
         addTimeStamp.addListener(reduceVolume);
-        reduceVolume.addListener(writer);
+        reduceVolume.addListener(modified);
+        modified.addListener(writer);
 
         // add a viewer to the writer, to see media modified media
 
@@ -90,9 +107,15 @@ public class ModifyVideoAndAudio {
         // read and decode packets from the source file and
         // then encode and write out data to the output file
 
-        while (reader.readPacket() == null)
-            do {
-            } while (false);
+        try {
+            while (reader.readPacket() == null)
+                do {
+                } while (false);
+        } finally {
+            decoded.close();
+            modified.close();
+            monitor.close();
+        }
     }
 
     /** 
@@ -100,32 +123,45 @@ public class ModifyVideoAndAudio {
      */
 
     static class TimeStampTool extends MediaToolAdapter {
+        // the glyphs of the time stamps, drawn once
+
+        private final TimecodeBurner mBurner = new TimecodeBurner();
+
         /** {@inheritDoc} */
 
         @Override
         public void onVideoPicture(IVideoPictureEvent event) {
-            // get the graphics for the image
+            // copy a white box with the black time stamp into the image, at
+            // the bottom left corner
 
-            Graphics2D g = event.getImage().createGraphics();
+            mBurner.burn(event.getImage(), event.getTimeStamp(), event
+                    .getTimeUnit());
 
-            // establish the timestamp and how much space it will take
+            // call parent which will pass the video onto next tool in chain
 
-            String timeStampStr = event.getPicture().getFormattedTimeStamp();
-            Rectangle2D bounds = g.getFont().getStringBounds(timeStampStr,
-                    g.getFontRenderContext());
+            super.onVideoPicture(event);
+        }
+    }
+
+    /**
+     * Create a tool which adds a time stamp to the YUV planes of a video
+     * picture, for readers which do not generate images.
+     */
+
+    static class PictureTimeStampTool extends MediaToolAdapter {
+        // the glyphs of the time stamps, drawn once
 
-            // compute the amount to inset the time stamp and translate the
-            // image to that position
+        private final TimecodeBurner mBurner = new TimecodeBurner();
 
-            double inset = bounds.getHeight() / 2;
-            g.translate(inset, event.getImage().getHeight() - inset);
+        /** {@inheritDoc} */
 
-            // draw a white background and black timestamp text
+        @Override
+        public void onVideoPicture(IVideoPictureEvent event) {
+            // convert a white box with the black time stamp to YUV and copy
+            // it into the picture, at the bottom left corner
 
-            g.setColor(Color.WHITE);
-            g.fill(bounds);
-            g.setColor(Color.BLACK);
-            g.drawString(timeStampStr, 0, 0);
+            mBurner.burn(event.getPicture(), event.getTimeStamp(), event
+                    .getTimeUnit());
 
             // call parent which will pass the video onto next tool in chain
 
@@ -142,6 +178,10 @@ public class ModifyVideoAndAudio {
 
         private double mVolume;
 
+        // the gain stage, created once the channel count is known
+
+        private AudioGain mGain;
+
         /** 
          * Construct a volume adjustor.
          * 
@@ -159,10 +199,12 @@ public class ModifyVideoAndAudio {
         public void onAudioSamples(IAudioSamplesEvent event) {
             // get the raw audio byes and adjust it's value 
 
-            ShortBuffer buffer = event.getAudioSamples().getByteBuffer()
-                    .asShortBuffer();
-            for (int i = 0; i < buffer.limit(); ++i)
-                buffer.put(i, (short) (buffer.get(i) * mVolume));
+            IAudioSamples samples = event.getAudioSamples();
+            if (mGain == null || mGain.getChannels() != samples.getChannels()) {
+                mGain = new AudioGain(samples.getChannels());
+                mGain.setGain(mVolume);
+            }
+            mGain.process(samples.getByteBuffer().asShortBuffer());
 
             // call parent which will pass the audio onto next tool in chain
 
@@ -0,0 +1,510 @@
+package video;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.xuggle.mediatool.IMediaWriter;
+import com.xuggle.mediatool.ToolFactory;
+import com.xuggle.xuggler.Global;
+import com.xuggle.xuggler.ICodec;
+import com.xuggle.xuggler.IAudioSamples;
+import com.xuggle.xuggler.IContainer;
+import com.xuggle.xuggler.IPacket;
+import com.xuggle.xuggler.IRational;
+import com.xuggle.xuggler.IStreamCoder;
+import com.xuggle.xuggler.IVideoPicture;
+
+/**
+ * Transcodes a file on several cores, a chunk of its video per worker.
+ *
+ * The video stream is first scanned, without decoding it, for its key
+ * frames. It is split at key frames into chunks of at least a minimum
+ * duration, and the chunks are decoded and encoded concurrently, each by a
+ * worker with its own container and writer, into temporary files. The audio,
+ * which is cheap to transcode but would get a gap at every chunk boundary
+ * from the encoder delay, is transcoded in one piece by one more task.
+ * Finally the packets of the video chunks and of the audio are interleaved
+ * into the destination, each chunk at its original time, without decoding.
+ *
+ * The codecs are chosen by the writer from the destination extension, which
+ * the temporary files share.
+ */
+public class ParallelTranscoder {
+
+    private final int mWorkers;
+
+    private long mMinChunkDuration = 10 * 1000000;
+
+    private File mTempDirectory;
+
+    /**
+     * Create a transcoder.
+     *
+     * @param workers number of chunks transcoded at the same time
+     */
+
+    public ParallelTranscoder(int workers) {
+        if (workers < 1)
+            throw new IllegalArgumentException("invalid worker count "
+                    + workers);
+        mWorkers = workers;
+    }
+
+    /**
+     * Minimum duration of a chunk, in microseconds. Shorter chunks spread
+     * better over the workers, longer ones spend less time starting the
+     * coders. Defaults to 10 seconds.
+     */
+
+    public void setMinChunkDuration(long minChunkDuration) {
+        mMinChunkDuration = minChunkDuration;
+    }
+
+    /**
+     * Where the chunks are written before being joined, the default
+     * temporary directory by default.
+     */
+
+    public void setTempDirectory(File tempDirectory) {
+        mTempDirectory = tempDirectory;
+    }
+
+    /**
+     * Transcode a file.
+     *
+     * @param sourceUrl the file to read
+     * @param destinationUrl the file to write, its extension gives the format
+     *        and codecs
+     * @throws IOException if the temporary files could not be created
+     * @throws InterruptedException if interrupted while waiting for the
+     *         workers
+     */
+
+    public void transcode(String sourceUrl, String destinationUrl)
+            throws IOException, InterruptedException {
+        IContainer container = StreamCopier.open(sourceUrl);
+        int video;
+        int audio;
+        List<Long> keyFrames;
+        long duration;
+        try {
+            video = findStream(container, ICodec.Type.CODEC_TYPE_VIDEO);
+            audio = findStream(container, ICodec.Type.CODEC_TYPE_AUDIO);
+            if (video < 0)
+                throw new RuntimeException("no video in " + sourceUrl);
+            keyFrames = scanKeyFrames(container, video);
+            duration = container.getDuration();
+        } finally {
+            container.close();
+        }
+
+        // aim for a few chunks per worker, so that they finish together
+        long chunkDuration = mMinChunkDuration;
+        if (duration != Global.NO_PTS)
+            chunkDuration = Math.max(chunkDuration, duration / (4 * mWorkers));
+        List<Long> boundaries = chunkBoundaries(keyFrames, chunkDuration);
+
+        String suffix = destinationUrl.substring(destinationUrl
+                .lastIndexOf('.'));
+        List<File> files = new ArrayList<File>();
+        ExecutorService executor = Executors.newFixedThreadPool(mWorkers);
+        try {
+            // the audio first, it runs alongside the chunks
+            List<Future<?>> tasks = new ArrayList<Future<?>>();
+            File audioFile = null;
+            if (audio >= 0) {
+                audioFile = File.createTempFile("audio-", suffix,
+                        mTempDirectory);
+                files.add(audioFile);
+                tasks.add(executor.submit(new AudioTask(sourceUrl, audio,
+                        audioFile.getPath())));
+            }
+
+            List<String> chunkUrls = new ArrayList<String>();
+            for (int i = 0; i < boundaries.size(); i++) {
+                File chunk = File.createTempFile("chunk-" + i + "-", suffix,
+                        mTempDirectory);
+                files.add(chunk);
+                chunkUrls.add(chunk.getPath());
+                long end = i + 1 < boundaries.size() ? boundaries.get(i + 1)
+                        : Long.MAX_VALUE;
+                tasks.add(executor.submit(new ChunkTask(sourceUrl, video,
+                        boundaries.get(i), end, chunk.getPath())));
+            }
+
+            for (Future<?> task : tasks)
+                await(task);
+
+            join(chunkUrls, boundaries, audioFile == null ? null : audioFile
+                    .getPath(), destinationUrl);
+        } finally {
+            executor.shutdownNow();
+            for (File file : files)
+                file.delete();
+        }
+    }
+
+    /**
+     * Pick the key frames where chunks start: the first one, then each one
+     * at least the chunk duration after the previous boundary.
+     *
+     * @param keyFrames time stamps of the key frames, in order
+     * @param chunkDuration minimum duration of a chunk
+     * @return the start of each chunk, the first one starting at
+     *         Long.MIN_VALUE so that it includes anything before the first
+     *         key frame
+     */
+
+    static List<Long> chunkBoundaries(List<Long> keyFrames, long chunkDuration) {
+        List<Long> boundaries = new ArrayList<Long>();
+        boundaries.add(Long.MIN_VALUE);
+        long last = keyFrames.isEmpty() ? 0 : keyFrames.get(0);
+        for (long keyFrame : keyFrames) {
+            if (keyFrame - last >= chunkDuration) {
+                boundaries.add(keyFrame);
+                last = keyFrame;
+            }
+        }
+        return boundaries;
+    }
+
+    // the presentation times of the key frames, reading packets only
+
+    private static List<Long> scanKeyFrames(IContainer container, int video) {
+        List<Long> keyFrames = new ArrayList<Long>();
+        IPacket packet = IPacket.make();
+        try {
+            while (container.readNextPacket(packet) >= 0) {
+                if (packet.getStreamIndex() == video && packet.isKeyPacket()) {
+                    long timeStamp = StreamCopier.timeStamp(packet);
+                    if (timeStamp != Global.NO_PTS)
+                        keyFrames.add(timeStamp);
+                }
+            }
+        } finally {
+            packet.delete();
+        }
+        return keyFrames;
+    }
+
+    private static int findStream(IContainer container, ICodec.Type type) {
+        for (int i = 0; i < container.getNumStreams(); i++)
+            if (container.getStream(i).getStreamCoder().getCodecType() == type)
+                return i;
+        return -1;
+    }
+
+    private static void await(Future<?> task) throws InterruptedException {
+        try {
+            task.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /** Transcodes the video pictures of a time range into a file. */
+
+    private static class ChunkTask implements Callable<Void> {
+        private final String mSourceUrl;
+        private final int mVideo;
+        private final long mStart;
+        private final long mEnd;
+        private final String mDestinationUrl;
+
+        ChunkTask(String sourceUrl, int video, long start, long end,
+                String destinationUrl) {
+            mSourceUrl = sourceUrl;
+            mVideo = video;
+            mStart = start;
+            mEnd = end;
+            mDestinationUrl = destinationUrl;
+        }
+
+        @Override
+        public Void call() {
+            IContainer container = StreamCopier.open(mSourceUrl);
+            IStreamCoder decoder = container.getStream(mVideo)
+                    .getStreamCoder();
+            IMediaWriter writer = null;
+            try {
+                // the chunk starts on a key frame, so seeking lands on it
+                if (mStart != Long.MIN_VALUE
+                        && container.seekKeyFrame(-1, Long.MIN_VALUE, mStart,
+                                mStart, 0) < 0)
+                    throw new RuntimeException("could not seek "
+                            + mSourceUrl + " to " + mStart);
+                if (decoder.open(null, null) < 0)
+                    throw new RuntimeException("could not open decoder of "
+                            + mSourceUrl);
+
+                writer = ToolFactory.makeWriter(mDestinationUrl);
+                writer.addVideoStream(0, 0, decoder.getFrameRate(),
+                        decoder.getWidth(), decoder.getHeight());
+
+                IPacket packet = IPacket.make();
+                IVideoPicture picture = IVideoPicture.make(
+                        decoder.getPixelType(), decoder.getWidth(),
+                        decoder.getHeight());
+                try {
+                    boolean more = true;
+                    while (more && container.readNextPacket(packet) >= 0) {
+                        if (packet.getStreamIndex() != mVideo)
+                            continue;
+                        int offset = 0;
+                        while (more && offset < packet.getSize()) {
+                            int decoded = decoder.decodeVideo(picture, packet,
+                                    offset);
+                            if (decoded < 0)
+                                throw new RuntimeException(
+                                        "could not decode " + mSourceUrl);
+                            offset += decoded;
+                            if (picture.isComplete())
+                                more = encode(writer, picture);
+                        }
+                    }
+
+                    // the pictures still held back by the decoder
+                    IPacket empty = IPacket.make();
+                    try {
+                        while (more) {
+                            decoder.decodeVideo(picture, empty, 0);
+                            if (!picture.isComplete())
+                                break;
+                            more = encode(writer, picture);
+                        }
+                    } finally {
+                        empty.delete();
+                    }
+                } finally {
+                    picture.delete();
+                    packet.delete();
+                }
+            } finally {
+                if (writer != null)
+                    writer.close();
+                decoder.close();
+                container.close();
+            }
+            return null;
+        }
+
+        // Encode a picture of the chunk, with a time stamp relative to the
+        // chunk start. Returns false after the end of the chunk, the
+        // decoder returns the pictures in presentation order.
+
+        private boolean encode(IMediaWriter writer, IVideoPicture picture) {
+            long timeStamp = picture.getTimeStamp();
+            if (timeStamp >= mEnd)
+                return false;
+            if (timeStamp < mStart)
+                return true;
+
+            picture.setTimeStamp(timeStamp - shift(mStart));
+            writer.encodeVideo(0, picture);
+            return true;
+        }
+    }
+
+    /** Transcodes the audio of a whole file, without decoding the video. */
+
+    private static class AudioTask implements Callable<Void> {
+        private final String mSourceUrl;
+        private final int mAudio;
+        private final String mDestinationUrl;
+
+        AudioTask(String sourceUrl, int audio, String destinationUrl) {
+            mSourceUrl = sourceUrl;
+            mAudio = audio;
+            mDestinationUrl = destinationUrl;
+        }
+
+        @Override
+        public Void call() {
+            IContainer container = StreamCopier.open(mSourceUrl);
+            IStreamCoder decoder = container.getStream(mAudio)
+                    .getStreamCoder();
+            IMediaWriter writer = null;
+            try {
+                if (decoder.open(null, null) < 0)
+                    throw new RuntimeException("could not open decoder of "
+                            + mSourceUrl);
+
+                writer = ToolFactory.makeWriter(mDestinationUrl);
+                writer.addAudioStream(0, 0, decoder.getChannels(),
+                        decoder.getSampleRate());
+
+                IPacket packet = IPacket.make();
+                IAudioSamples samples = IAudioSamples.make(1024,
+                        decoder.getChannels());
+                try {
+                    while (container.readNextPacket(packet) >= 0) {
+                        if (packet.getStreamIndex() != mAudio)
+                            continue;
+                        int offset = 0;
+                        while (offset < packet.getSize()) {
+                            int decoded = decoder.decodeAudio(samples,
+                                    packet, offset);
+                            if (decoded < 0)
+                                throw new RuntimeException(
+                                        "could not decode " + mSourceUrl);
+                            offset += decoded;
+                            if (samples.isComplete())
+                                writer.encodeAudio(0, samples);
+                        }
+                    }
+                } finally {
+                    samples.delete();
+                    packet.delete();
+                }
+            } finally {
+                if (writer != null)
+                    writer.close();
+                decoder.close();
+                container.close();
+            }
+            return null;
+        }
+    }
+
+    // the time stamps of a chunk are relative to its start, the first one
+    // keeps the original ones
+
+    private static long shift(long start) {
+        return start == Long.MIN_VALUE ? 0 : start;
+    }
+
+    /**
+     * Interleave the packets of the video chunks, each put back at its
+     * original time, and of the audio into one file. The chunks are muxed
+     * into the stream of the first one, so each must have its
+     * {@link StreamCopier.StreamFormat}, and their decoding times must keep
+     * increasing across the boundaries.
+     */
+
+    private static void join(List<String> chunkUrls, List<Long> starts,
+            String audioUrl, String destinationUrl) {
+        IContainer output = IContainer.make();
+        if (output.open(destinationUrl, IContainer.Type.WRITE, null) < 0)
+            throw new RuntimeException("could not open " + destinationUrl);
+
+        MediaPrefetcher chunks = new MediaPrefetcher(chunkUrls);
+        IContainer chunk = null;
+        IContainer audio = null;
+        IStreamCoder videoCoder = null;
+        IStreamCoder audioCoder = null;
+        IPacket videoPacket = IPacket.make();
+        IPacket audioPacket = IPacket.make();
+        try {
+            chunk = chunks.next();
+            StreamCopier.StreamFormat[] formats = StreamCopier.formats(chunk);
+            videoCoder = StreamCopier.addStream(output, chunk.getStream(0)
+                    .getStreamCoder());
+            if (audioUrl != null) {
+                audio = StreamCopier.open(audioUrl);
+                audioCoder = StreamCopier.addStream(output, audio.getStream(0)
+                        .getStreamCoder());
+            }
+            if (output.writeHeader() < 0)
+                throw new RuntimeException("could not write header of "
+                        + destinationUrl);
+
+            IRational videoBase = videoCoder.getTimeBase();
+            long lastDts = Global.NO_PTS;
+            int index = 0;
+            boolean hasVideo = chunk.readNextPacket(videoPacket) >= 0;
+            boolean hasAudio = audio != null
+                    && audio.readNextPacket(audioPacket) >= 0;
+            while (hasVideo || hasAudio) {
+                // write whichever comes first, so that the muxer does not
+                // have to buffer one stream
+                if (hasVideo
+                        && (!hasAudio || StreamCopier.timeStamp(videoPacket)
+                                + shift(starts.get(index)) <= StreamCopier
+                                .timeStamp(audioPacket))) {
+                    StreamCopier.retime(videoPacket, videoBase,
+                            shift(starts.get(index)));
+                    videoPacket.setStreamIndex(0);
+                    lastDts = checkDts(lastDts, videoPacket.getDts(), chunk
+                            .getURL());
+                    write(output, videoPacket);
+
+                    hasVideo = chunk.readNextPacket(videoPacket) >= 0;
+                    while (!hasVideo && chunks.hasNext()) {
+                        chunk.close();
+                        chunk = chunks.next();
+                        index++;
+                        StreamCopier.StreamFormat[] other = StreamCopier
+                                .formats(chunk);
+                        if (!Arrays.equals(other, formats))
+                            throw new RuntimeException(chunk.getURL()
+                                    + " was not encoded like the first chunk: "
+                                    + Arrays.toString(other) + ", not "
+                                    + Arrays.toString(formats));
+                        hasVideo = chunk.readNextPacket(videoPacket) >= 0;
+                    }
+                } else {
+                    StreamCopier.retime(audioPacket, audioCoder.getTimeBase(),
+                            0);
+                    audioPacket.setStreamIndex(1);
+                    write(output, audioPacket);
+                    hasAudio = audio.readNextPacket(audioPacket) >= 0;
+                }
+            }
+
+            if (output.writeTrailer() < 0)
+                throw new RuntimeException("could not write trailer of "
+                        + destinationUrl);
+        } finally {
+            audioPacket.delete();
+            videoPacket.delete();
+            chunks.close();
+            if (chunk != null)
+                chunk.close();
+            if (audio != null)
+                audio.close();
+            if (videoCoder != null)
+                videoCoder.close();
+            if (audioCoder != null)
+                audioCoder.close();
+            output.close();
+        }
+    }
+
+    /**
+     * Check that the decoding time of a video packet is after the one of the
+     * packet before it, which the muxer requires.
+     *
+     * @param lastDts the decoding time of the packet before, or
+     *        {@link Global#NO_PTS}
+     * @param dts the decoding time of the packet, or {@link Global#NO_PTS}
+     * @param chunkUrl the chunk of the packet, for the error
+     * @return the decoding time of the packet, or lastDts if it has none
+     * @throws RuntimeException if the decoding time goes back
+     */
+
+    static long checkDts(long lastDts, long dts, String chunkUrl) {
+        if (dts == Global.NO_PTS)
+            return lastDts;
+        if (lastDts != Global.NO_PTS && dts <= lastDts)
+            throw new RuntimeException("decoding time " + dts + " of "
+                    + chunkUrl + " is not after " + lastDts
+                    + ", the chunks overlap");
+        return dts;
+    }
+
+    private static void write(IContainer output, IPacket packet) {
+        if (output.writePacket(packet) < 0)
+            throw new RuntimeException("could not write packet to "
+                    + output.getURL());
+    }
+}
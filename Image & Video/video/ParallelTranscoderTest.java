@@ -0,0 +1,54 @@
+package video;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import com.xuggle.xuggler.Global;
+
+public class ParallelTranscoderTest {
+
+    @Test
+    public void testChunkBoundaries() {
+        // a key frame every 2 seconds, plus an extra one at 9.5 s which is
+        // too close to the boundary at 8 s
+        assertEquals(Arrays.asList(Long.MIN_VALUE, 4000000L, 8000000L,
+                12000000L), ParallelTranscoder.chunkBoundaries(Arrays.asList(
+                0L, 2000000L, 4000000L, 6000000L, 8000000L, 9500000L,
+                10000000L, 12000000L, 14000000L), 4000000));
+    }
+
+    @Test
+    public void testChunkBoundariesOfShortFile() {
+        assertEquals(Arrays.asList(Long.MIN_VALUE),
+                ParallelTranscoder.chunkBoundaries(Arrays.asList(1000000L,
+                        3000000L), 10000000));
+        assertEquals(Arrays.asList(Long.MIN_VALUE),
+                ParallelTranscoder.chunkBoundaries(
+                        Collections.<Long> emptyList(), 10000000));
+    }
+
+    @Test
+    public void testDecodingTimesIncreaseAcrossChunks() {
+        long dts = ParallelTranscoder.checkDts(Global.NO_PTS, 0, "chunk-0");
+        dts = ParallelTranscoder.checkDts(dts, 1, "chunk-0");
+        // packets without a decoding time do not count
+        assertEquals(1, ParallelTranscoder.checkDts(dts, Global.NO_PTS,
+                "chunk-0"));
+        assertEquals(2, ParallelTranscoder.checkDts(dts, 2, "chunk-1"));
+
+        // a chunk starting back at the last packet of the one before
+        try {
+            ParallelTranscoder.checkDts(2, 2, "chunk-1");
+            fail("overlapping chunks were joined");
+        } catch (RuntimeException e) {
+            assertEquals("decoding time 2 of chunk-1 is not after 2, "
+                    + "the chunks overlap", e.getMessage());
+        }
+    }
+
+}
@@ -0,0 +1,52 @@
+package video;
+
+import java.awt.AWTException;
+import java.awt.Rectangle;
+import java.awt.Robot;
+import java.awt.Toolkit;
+import java.awt.image.BufferedImage;
+
+/**
+ * Captures an area of the screen with a {@link Robot}.
+ */
+public class RobotFrameSource implements FrameSource {
+    // the robot taking the snapshots, it's part of Java AWT
+
+    private final Robot mRobot;
+
+    private final Rectangle mBounds;
+
+    /** Capture the entire screen. */
+
+    public RobotFrameSource() throws AWTException {
+        this(new Rectangle(Toolkit.getDefaultToolkit().getScreenSize()));
+    }
+
+    /** Capture an area of the screen. */
+
+    public RobotFrameSource(Rectangle bounds) throws AWTException {
+        mRobot = new Robot();
+        mBounds = new Rectangle(bounds);
+    }
+
+    /** {@inheritDoc} */
+
+    @Override
+    public int getWidth() {
+        return mBounds.width;
+    }
+
+    /** {@inheritDoc} */
+
+    @Override
+    public int getHeight() {
+        return mBounds.height;
+    }
+
+    /** {@inheritDoc} */
+
+    @Override
+    public BufferedImage capture() {
+        return mRobot.createScreenCapture(mBounds);
+    }
+}
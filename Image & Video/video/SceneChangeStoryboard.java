@@ -0,0 +1,352 @@
+package video;
+
+import image.ImageStoryboardGenerator;
+import image.TileDecoder;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.xuggle.mediatool.IMediaReader;
+import com.xuggle.mediatool.MediaToolAdapter;
+import com.xuggle.mediatool.ToolFactory;
+import com.xuggle.mediatool.event.ICloseEvent;
+import com.xuggle.mediatool.event.IVideoPictureEvent;
+import com.xuggle.xuggler.ICodec;
+import com.xuggle.xuggler.IContainer;
+import com.xuggle.xuggler.IPacket;
+import com.xuggle.xuggler.IPixelFormat;
+import com.xuggle.xuggler.IStreamCoder;
+import com.xuggle.xuggler.IVideoPicture;
+import com.xuggle.xuggler.video.ConverterFactory;
+import com.xuggle.xuggler.video.IConverter;
+
+/**
+ * Picks representative frames of a video by detecting scene changes, and
+ * turns them into an image storyboard without writing the frames to disk.
+ *
+ * Each analysed picture is reduced to a luma histogram taken from a sparse
+ * grid of its Y plane. A picture whose histogram differs enough from the one
+ * of the last selected picture starts a new scene; only those pictures are
+ * converted to RGB and kept, already scaled down to the tile size.
+ *
+ * The tool can be added to any {@link IMediaReader} chain. It does not need
+ * the reader to generate {@link BufferedImage}s. When only key frames are
+ * analysed, {@link #generate(String, String, int, int, String)} goes one step
+ * further and does not even decode the other frames.
+ */
+public class SceneChangeStoryboard extends MediaToolAdapter {
+    // number of histogram bins over the 0-255 luma range
+
+    private static final int BINS = 32;
+
+    // roughly how many luma samples are taken per picture
+
+    private static final int SAMPLES_X = 64;
+    private static final int SAMPLES_Y = 36;
+
+    private final int mUnitWidth;
+    private final int mUnitHeight;
+
+    // half of the L1 distance of two normalized histograms, from 0 to 1
+
+    private double mThreshold = 0.3;
+
+    private long mMinInterval = 1000000;
+
+    private int mMaxFrames = 500;
+
+    private boolean mKeyFramesOnly = true;
+
+    private final List<BufferedImage> mFrames = new ArrayList<BufferedImage>();
+    private final List<String> mLabels = new ArrayList<String>();
+
+    private final int[] mHistogram = new int[BINS];
+    private final int[] mSelectedHistogram = new int[BINS];
+    private int mSelectedSamples = 0;
+    private long mSelectedTimeStamp = Long.MIN_VALUE;
+
+    private IConverter mConverter;
+
+    /**
+     * Create a storyboard tool.
+     *
+     * @param unitWidth width of a tile
+     * @param unitHeight height of a tile
+     */
+
+    public SceneChangeStoryboard(int unitWidth, int unitHeight) {
+        mUnitWidth = unitWidth;
+        mUnitHeight = unitHeight;
+    }
+
+    /**
+     * Create a storyboard of a video, with a header on top of it.
+     *
+     * @param videoPath the video to read
+     * @param header the header, may be null
+     * @param unitWidth width of a tile
+     * @param unitHeight height of a tile
+     * @param outputPath the image to write
+     * @throws IOException
+     */
+
+    public static void generate(String videoPath, String header,
+            int unitWidth, int unitHeight, String outputPath)
+            throws IOException {
+        SceneChangeStoryboard storyboard = new SceneChangeStoryboard(
+                unitWidth, unitHeight);
+        storyboard.read(videoPath);
+        storyboard.write(header, outputPath);
+    }
+
+    /**
+     * Minimum histogram difference, from 0 (identical) to 1 (disjoint), for a
+     * picture to be considered a new scene. Defaults to 0.3.
+     */
+
+    public void setThreshold(double threshold) {
+        mThreshold = threshold;
+    }
+
+    /**
+     * Minimum time between two selected pictures, in microseconds. Pictures
+     * closer than that to the last selected one are not analysed at all.
+     * Defaults to one second.
+     */
+
+    public void setMinInterval(long minInterval) {
+        mMinInterval = minInterval;
+    }
+
+    /**
+     * Maximum number of pictures kept, later scene changes are ignored.
+     */
+
+    public void setMaxFrames(int maxFrames) {
+        mMaxFrames = maxFrames;
+    }
+
+    /**
+     * Only analyse key frames. Most encoders start a new group of pictures at
+     * a scene cut, so this rarely misses one and allows the other frames not
+     * to be decoded. Defaults to true.
+     */
+
+    public void setKeyFramesOnly(boolean keyFramesOnly) {
+        mKeyFramesOnly = keyFramesOnly;
+    }
+
+    /**
+     * Read a whole video and select its scenes. With key frames only, the
+     * container is read directly and only key packets of the first video
+     * stream are decoded. Otherwise an {@link IMediaReader} decodes
+     * everything and feeds this tool.
+     */
+
+    public void read(String videoPath) {
+        if (!mKeyFramesOnly) {
+            IMediaReader reader = ToolFactory.makeReader(videoPath);
+            reader.addListener(this);
+            while (reader.readPacket() == null)
+                ;
+            return;
+        }
+
+        IContainer container = IContainer.make();
+        if (container.open(videoPath, IContainer.Type.READ, null) < 0)
+            throw new RuntimeException("could not open " + videoPath);
+
+        try {
+            IStreamCoder coder = null;
+            int streamIndex = -1;
+            for (int i = 0; i < container.getNumStreams(); i++) {
+                IStreamCoder c = container.getStream(i).getStreamCoder();
+                if (c.getCodecType() == ICodec.Type.CODEC_TYPE_VIDEO) {
+                    coder = c;
+                    streamIndex = i;
+                    break;
+                }
+            }
+            if (coder == null)
+                throw new RuntimeException("no video stream in " + videoPath);
+            if (coder.open(null, null) < 0)
+                throw new RuntimeException("could not open video decoder of "
+                        + videoPath);
+
+            IPacket packet = IPacket.make();
+            IVideoPicture picture = IVideoPicture.make(coder.getPixelType(),
+                    coder.getWidth(), coder.getHeight());
+            try {
+                while (container.readNextPacket(packet) >= 0
+                        && mFrames.size() < mMaxFrames) {
+                    // other streams and non key packets are never decoded
+                    if (packet.getStreamIndex() != streamIndex
+                            || !packet.isKeyPacket())
+                        continue;
+
+                    int offset = 0;
+                    while (offset < packet.getSize()) {
+                        int decoded = coder.decodeVideo(picture, packet,
+                                offset);
+                        if (decoded < 0)
+                            break;
+                        offset += decoded;
+                        if (picture.isComplete())
+                            analyze(picture);
+                    }
+                }
+            } finally {
+                picture.delete();
+                packet.delete();
+                coder.close();
+            }
+        } finally {
+            container.close();
+            deleteConverter();
+        }
+    }
+
+    /**
+     * Write the storyboard of the pictures selected so far.
+     *
+     * @param header the header, may be null
+     * @param outputPath the image to write
+     * @throws IOException
+     */
+
+    public void write(String header, String outputPath) throws IOException {
+        new ImageStoryboardGenerator().write(
+                mFrames.toArray(new BufferedImage[mFrames.size()]),
+                mLabels.toArray(new String[mLabels.size()]), header,
+                mUnitWidth, mUnitHeight, outputPath);
+    }
+
+    /** The number of pictures selected so far. */
+
+    public int getFrameCount() {
+        return mFrames.size();
+    }
+
+    /** {@inheritDoc} */
+
+    @Override
+    public void onVideoPicture(IVideoPictureEvent event) {
+        IVideoPicture picture = event.getPicture();
+        if (picture != null && (!mKeyFramesOnly || picture.isKeyFrame()))
+            analyze(picture);
+
+        super.onVideoPicture(event);
+    }
+
+    /** {@inheritDoc} */
+
+    @Override
+    public void onClose(ICloseEvent event) {
+        deleteConverter();
+        super.onClose(event);
+    }
+
+    // decide whether a picture starts a new scene, and keep it if so
+
+    private void analyze(IVideoPicture picture) {
+        long timeStamp = picture.getTimeStamp();
+        if (mFrames.size() >= mMaxFrames
+                || (mSelectedTimeStamp != Long.MIN_VALUE && timeStamp
+                        - mSelectedTimeStamp < mMinInterval))
+            return;
+
+        int samples = lumaHistogram(picture, mHistogram);
+        if (mSelectedSamples > 0
+                && distance(mHistogram, samples, mSelectedHistogram,
+                        mSelectedSamples) < mThreshold)
+            return;
+
+        System.arraycopy(mHistogram, 0, mSelectedHistogram, 0, BINS);
+        mSelectedSamples = samples;
+        mSelectedTimeStamp = timeStamp;
+
+        mFrames.add(toTile(picture));
+        mLabels.add(formatTimeStamp(timeStamp));
+    }
+
+    // histogram of a sparse grid of luma samples, returns the sample count
+
+    private int lumaHistogram(IVideoPicture picture, int[] histogram) {
+        Arrays.fill(histogram, 0);
+        int width = picture.getWidth();
+        int height = picture.getHeight();
+        int stepX = Math.max(1, width / SAMPLES_X);
+        int stepY = Math.max(1, height / SAMPLES_Y);
+        int count = 0;
+
+        if (isPlanarYuv(picture.getPixelType())) {
+            // the Y plane comes first and is a plain 8 bit luma raster
+            ByteBuffer data = picture.getByteBuffer();
+            int lineSize = picture.getDataLineSize(0);
+            for (int y = 0; y < height; y += stepY) {
+                int row = y * lineSize;
+                for (int x = 0; x < width; x += stepX) {
+                    histogram[(data.get(row + x) & 0xff) * BINS / 256]++;
+                    count++;
+                }
+            }
+        } else {
+            BufferedImage image = convert(picture);
+            for (int y = 0; y < height; y += stepY) {
+                for (int x = 0; x < width; x += stepX) {
+                    int rgb = image.getRGB(x, y);
+                    int luma = (299 * ((rgb >> 16) & 0xff) + 587
+                            * ((rgb >> 8) & 0xff) + 114 * (rgb & 0xff)) / 1000;
+                    histogram[luma * BINS / 256]++;
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private static double distance(int[] h1, int n1, int[] h2, int n2) {
+        double sum = 0;
+        for (int i = 0; i < BINS; i++)
+            sum += Math.abs((double) h1[i] / n1 - (double) h2[i] / n2);
+        return sum / 2;
+    }
+
+    private static boolean isPlanarYuv(IPixelFormat.Type type) {
+        return type == IPixelFormat.Type.YUV420P
+                || type == IPixelFormat.Type.YUVJ420P;
+    }
+
+    // convert a picture to RGB and scale it into a tile right away, so that
+    // no full size frame is kept
+
+    private BufferedImage toTile(IVideoPicture picture) {
+        return TileDecoder.fit(convert(picture), mUnitWidth, mUnitHeight);
+    }
+
+    private BufferedImage convert(IVideoPicture picture) {
+        if (mConverter == null)
+            mConverter = ConverterFactory.createConverter(
+                    ConverterFactory.XUGGLER_BGR_24, picture);
+        return mConverter.toImage(picture);
+    }
+
+    private void deleteConverter() {
+        if (mConverter != null) {
+            mConverter.delete();
+            mConverter = null;
+        }
+    }
+
+    // HH:MM:SS of a timestamp in microseconds
+
+    static String formatTimeStamp(long timeStamp) {
+        long seconds = Math.max(0, timeStamp) / 1000000;
+        return String.format("%02d:%02d:%02d", seconds / 3600,
+                (seconds / 60) % 60, seconds % 60);
+    }
+}
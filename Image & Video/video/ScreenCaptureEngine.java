@@ -0,0 +1,449 @@
+package video;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Captures frames from a {@link FrameSource} at a fixed rate and hands them
+ * to a {@link FrameSink}, typically an encoder.
+ *
+ * Capturing and encoding run on two threads with a bounded queue between
+ * them, so a slow encode does not delay the next capture. Captures are
+ * scheduled against absolute deadlines, start + n / frame rate, so the time
+ * spent capturing does not add up into a lower frame rate. When a capture
+ * overruns its slot the next one starts at once, and the deadlines entirely
+ * missed are skipped rather than caught up with; when the queue is full the
+ * oldest queued frame is dropped to make room for the new one. Both count as
+ * dropped frames.
+ *
+ * With a {@link DirtyRegionDetector}, frames identical to the previous one
+ * are not queued at all, so an idle screen is neither converted nor encoded.
+ * The encoded frames keep their own capture time stamps, so the output stays
+ * in sync; a keep alive interval makes sure some frame is encoded every now
+ * and then anyway.
+ */
+public class ScreenCaptureEngine {
+
+    /** Receives the captured frames, on the encoder thread. */
+
+    public interface FrameSink {
+
+        /**
+         * Encode a frame.
+         *
+         * @param frame the frame, only valid during the call
+         * @param timeStamp the capture time, relative to the first capture
+         * @param unit the unit of the time stamp
+         * @throws Exception if encoding failed, which stops the engine
+         */
+
+        void encode(BufferedImage frame, long timeStamp, TimeUnit unit)
+                throws Exception;
+    }
+
+    /** Told which parts of the frames changed, on the encoder thread. */
+
+    public interface RegionListener {
+
+        /**
+         * Called before a frame is encoded.
+         *
+         * @param regions the regions changed since the previous frame, empty
+         *        for a keep alive frame
+         * @param bounds the bounding box of the regions, null if empty
+         * @param timeStamp the capture time of the frame
+         * @param unit the unit of the time stamp
+         */
+
+        void onRegionsChanged(List<Rectangle> regions, Rectangle bounds,
+                long timeStamp, TimeUnit unit);
+    }
+
+    /**
+     * The time the captures are scheduled with, {@link System#nanoTime()}
+     * outside of tests.
+     */
+
+    interface Clock {
+
+        long nanoTime();
+
+        /**
+         * Wait until a {@link #nanoTime()} deadline, or less if unparked.
+         *
+         * @param blocker the object the thread waits for
+         * @param deadline the time to wait until
+         */
+
+        void parkUntil(Object blocker, long deadline);
+    }
+
+    static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public void parkUntil(Object blocker, long deadline) {
+            LockSupport.parkNanos(blocker, deadline - System.nanoTime());
+        }
+    };
+
+    // a captured frame waiting for the encoder
+
+    private static final class Frame {
+        final BufferedImage image;
+        final long timeStamp;
+        final List<Rectangle> regions;
+
+        Frame(BufferedImage image, long timeStamp, List<Rectangle> regions) {
+            this.image = image;
+            this.timeStamp = timeStamp;
+            this.regions = regions;
+        }
+    }
+
+    private final Clock mClock;
+
+    private final FrameSource mSource;
+
+    private final FrameSink mSink;
+
+    // nanoseconds between two capture deadlines
+
+    private final long mPeriod;
+
+    private final BlockingQueue<Frame> mQueue;
+
+    // converts the frames on the encoder thread, may be null
+
+    private FrameConverter mConverter;
+
+    // skips unchanged frames on the capture thread, may be null
+
+    private DirtyRegionDetector mDetector;
+
+    private long mKeepAlive = Long.MAX_VALUE;
+
+    // nanoseconds after the start after which nothing is captured
+
+    private volatile long mDuration = Long.MAX_VALUE;
+
+    private RegionListener mRegionListener;
+
+    private Thread mCaptureThread;
+    private Thread mEncoderThread;
+
+    private volatile boolean mStopped = false;
+    private volatile boolean mCaptureDone = false;
+    private volatile Throwable mFailure;
+
+    // statistics, each one written by a single thread
+
+    private volatile long mStartTime;
+    private volatile long mEndTime;
+    private volatile long mCaptured = 0;
+    private volatile long mEncoded = 0;
+    private volatile long mDropped = 0;
+    private volatile long mSkipped = 0;
+    private volatile int mMaxQueueDepth = 0;
+
+    /**
+     * Create an engine.
+     *
+     * @param source where the frames are captured from
+     * @param sink where the frames are encoded
+     * @param frameRate frames captured per second
+     * @param queueSize number of captured frames which can wait for the
+     *        encoder
+     */
+
+    public ScreenCaptureEngine(FrameSource source, FrameSink sink,
+            double frameRate, int queueSize) {
+        this(source, sink, frameRate, queueSize, SYSTEM_CLOCK);
+    }
+
+    ScreenCaptureEngine(FrameSource source, FrameSink sink, double frameRate,
+            int queueSize, Clock clock) {
+        if (frameRate <= 0 || queueSize < 1)
+            throw new IllegalArgumentException("invalid frame rate "
+                    + frameRate + " or queue size " + queueSize);
+
+        mClock = clock;
+        mSource = source;
+        mSink = sink;
+        mPeriod = Math.round(TimeUnit.SECONDS.toNanos(1) / frameRate);
+        mQueue = new ArrayBlockingQueue<Frame>(queueSize);
+    }
+
+    /**
+     * Convert the frames with a converter before encoding them. The
+     * conversion runs on the encoder thread; the converter is not closed by
+     * the engine.
+     */
+
+    public void setConverter(FrameConverter converter) {
+        mConverter = converter;
+    }
+
+    /**
+     * Only encode frames which differ from the previous one, according to a
+     * detector. The detector is used on the capture thread.
+     */
+
+    public void setDirtyRegionDetector(DirtyRegionDetector detector) {
+        mDetector = detector;
+    }
+
+    /**
+     * With a dirty region detector, encode an unchanged frame anyway when
+     * nothing was queued for this long. By default unchanged frames are
+     * never encoded.
+     */
+
+    public void setKeepAlive(long interval, TimeUnit unit) {
+        mKeepAlive = unit.toNanos(interval);
+    }
+
+    /** Receive the changed regions of the encoded frames. */
+
+    public void setRegionListener(RegionListener listener) {
+        mRegionListener = listener;
+    }
+
+    /** Start capturing and encoding. */
+
+    public synchronized void start() {
+        if (mCaptureThread != null)
+            throw new IllegalStateException("already started");
+
+        mStartTime = mClock.nanoTime();
+        mCaptureThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runCapture();
+            }
+        }, "screen-capture");
+        mEncoderThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runEncoder();
+            }
+        }, "screen-encoder");
+        mEncoderThread.start();
+        mCaptureThread.start();
+    }
+
+    /**
+     * Stop capturing, and wait for the frames already captured to be
+     * encoded.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     * @throws RuntimeException if capturing or encoding failed
+     */
+
+    public void stop() throws InterruptedException {
+        Thread capture;
+        Thread encoder;
+        synchronized (this) {
+            capture = mCaptureThread;
+            encoder = mEncoderThread;
+        }
+        if (capture == null)
+            throw new IllegalStateException("not started");
+
+        mStopped = true;
+        LockSupport.unpark(capture);
+        capture.join();
+        encoder.join();
+
+        if (mFailure != null)
+            throw new RuntimeException("screen capture failed", mFailure);
+    }
+
+    /**
+     * Capture the frames due in a while, then stop.
+     *
+     * @see #stop()
+     */
+
+    public void run(long duration, TimeUnit unit) throws InterruptedException {
+        mDuration = unit.toNanos(duration);
+        start();
+        try {
+            mCaptureThread.join();
+        } finally {
+            stop();
+        }
+    }
+
+    /** Frames encoded per second since the start. */
+
+    public double getFrameRate() {
+        long end = mCaptureDone ? mEndTime : mClock.nanoTime();
+        long elapsed = end - mStartTime;
+        return elapsed > 0 ? mEncoded * 1e9 / elapsed : 0;
+    }
+
+    public long getCapturedFrames() {
+        return mCaptured;
+    }
+
+    public long getEncodedFrames() {
+        return mEncoded;
+    }
+
+    /**
+     * Capture deadlines which were missed, plus captured frames which were
+     * dropped because the encoder fell behind.
+     */
+
+    public long getDroppedFrames() {
+        return mDropped;
+    }
+
+    /** Frames which were not encoded because nothing changed. */
+
+    public long getSkippedFrames() {
+        return mSkipped;
+    }
+
+    /** The number of frames currently waiting for the encoder. */
+
+    public int getQueueDepth() {
+        return mQueue.size();
+    }
+
+    /** The largest number of frames which waited for the encoder. */
+
+    public int getMaxQueueDepth() {
+        return mMaxQueueDepth;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ScreenCaptureEngine[fps: %.2f, captured: %d, "
+                + "encoded: %d, dropped: %d, skipped: %d, queue: %d, "
+                + "max queue: %d]", getFrameRate(), getCapturedFrames(),
+                getEncodedFrames(), getDroppedFrames(), getSkippedFrames(),
+                getQueueDepth(), getMaxQueueDepth());
+    }
+
+    private void runCapture() {
+        try {
+            long deadline = mStartTime;
+            long lastQueued = 0;
+            while (!mStopped && deadline - mStartTime < mDuration) {
+                long now = waitUntil(deadline);
+                if (mStopped)
+                    break;
+
+                BufferedImage image = mSource.capture();
+                mCaptured++;
+                long timeStamp = now - mStartTime;
+
+                // skip unchanged frames unless nothing was queued for the
+                // keep alive interval, the first detection is always dirty
+                List<Rectangle> regions = null;
+                boolean changed = true;
+                if (mDetector != null) {
+                    regions = mDetector.detect(image);
+                    changed = !regions.isEmpty()
+                            || timeStamp - lastQueued >= mKeepAlive;
+                }
+                if (changed) {
+                    enqueue(new Frame(image, timeStamp, regions));
+                    lastQueued = timeStamp;
+                } else {
+                    mSkipped++;
+                }
+
+                // skip the whole periods the capture overran instead of
+                // trying to catch up with a burst of frames, the current one
+                // is captured at once
+                deadline += mPeriod;
+                long late = mClock.nanoTime() - deadline;
+                if (late > 0) {
+                    long missed = late / mPeriod;
+                    mDropped += missed;
+                    deadline += missed * mPeriod;
+                }
+            }
+        } catch (Throwable t) {
+            fail(t);
+        } finally {
+            mEndTime = mClock.nanoTime();
+            mCaptureDone = true;
+        }
+    }
+
+    // Queue a frame, dropping the oldest one if the encoder is behind. The
+    // changes of a dropped frame never reach the encoder, so the next frame
+    // has to be sent whole even if it does not change anything.
+
+    private void enqueue(Frame frame) {
+        while (!mQueue.offer(frame)) {
+            if (mQueue.poll() != null) {
+                mDropped++;
+                if (mDetector != null)
+                    mDetector.reset();
+            }
+        }
+        mMaxQueueDepth = Math.max(mMaxQueueDepth, mQueue.size());
+    }
+
+    private void runEncoder() {
+        try {
+            while (mFailure == null) {
+                Frame frame = mQueue.poll(mPeriod, TimeUnit.NANOSECONDS);
+                if (frame == null) {
+                    // the capture thread only finishes after its last offer
+                    if (mCaptureDone && mQueue.isEmpty())
+                        break;
+                    continue;
+                }
+
+                if (mRegionListener != null && frame.regions != null)
+                    mRegionListener.onRegionsChanged(frame.regions,
+                            DirtyRegionDetector.getBounds(frame.regions),
+                            frame.timeStamp, TimeUnit.NANOSECONDS);
+
+                BufferedImage image = mConverter == null ? frame.image
+                        : mConverter.convert(frame.image);
+                try {
+                    mSink.encode(image, frame.timeStamp, TimeUnit.NANOSECONDS);
+                } finally {
+                    if (mConverter != null)
+                        mConverter.release(image);
+                }
+                mEncoded++;
+            }
+        } catch (Throwable t) {
+            fail(t);
+        }
+    }
+
+    private synchronized void fail(Throwable t) {
+        if (mFailure == null)
+            mFailure = t;
+        mStopped = true;
+        if (mCaptureThread != null)
+            LockSupport.unpark(mCaptureThread);
+    }
+
+    // park until a deadline of the clock or until stopped, returns the time
+    // it woke up at
+
+    private long waitUntil(long deadline) {
+        long now;
+        while ((now = mClock.nanoTime()) - deadline < 0 && !mStopped)
+            mClock.parkUntil(this, deadline);
+        return now;
+    }
+}
@@ -0,0 +1,242 @@
+package video;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class ScreenCaptureEngineTest {
+
+    // a clock which only moves when the engine waits for it or a capture
+    // advances it, so that the time stamps do not depend on the scheduler
+
+    private static class FakeClock implements ScreenCaptureEngine.Clock {
+        private volatile long mNow;
+
+        @Override
+        public long nanoTime() {
+            return mNow;
+        }
+
+        @Override
+        public synchronized void parkUntil(Object blocker, long deadline) {
+            mNow = Math.max(mNow, deadline);
+        }
+
+        synchronized void advance(long millis) {
+            mNow += TimeUnit.MILLISECONDS.toNanos(millis);
+        }
+    }
+
+    // a headless source of small frames, taking a while to capture each
+
+    private static class SyntheticSource implements FrameSource {
+        private final long mCaptureMillis;
+        private final FakeClock mClock;
+
+        SyntheticSource(long captureMillis) {
+            this(captureMillis, null);
+        }
+
+        SyntheticSource(long captureMillis, FakeClock clock) {
+            mCaptureMillis = captureMillis;
+            mClock = clock;
+        }
+
+        @Override
+        public int getWidth() {
+            return 32;
+        }
+
+        @Override
+        public int getHeight() {
+            return 24;
+        }
+
+        @Override
+        public BufferedImage capture() throws InterruptedException {
+            if (mClock == null)
+                Thread.sleep(mCaptureMillis);
+            else
+                mClock.advance(mCaptureMillis);
+            return new BufferedImage(getWidth(), getHeight(),
+                    BufferedImage.TYPE_INT_RGB);
+        }
+    }
+
+    // records the time stamps, taking a while to encode each frame
+
+    private static class SlowSink implements ScreenCaptureEngine.FrameSink {
+        private final long mEncodeMillis;
+        final List<Long> timeStamps = new ArrayList<Long>();
+
+        SlowSink(long encodeMillis) {
+            mEncodeMillis = encodeMillis;
+        }
+
+        @Override
+        public void encode(BufferedImage frame, long timeStamp, TimeUnit unit)
+                throws InterruptedException {
+            assertEquals(BufferedImage.TYPE_3BYTE_BGR, frame.getType());
+            timeStamps.add(unit.toMillis(timeStamp));
+            Thread.sleep(mEncodeMillis);
+        }
+    }
+
+    @Test
+    public void testFrameRateIsKept() throws InterruptedException {
+        // captures taking 10 ms do not push the next ones back, with a queue
+        // holding all the frames of the second
+        FakeClock clock = new FakeClock();
+        SlowSink sink = new SlowSink(0);
+        ScreenCaptureEngine engine = new ScreenCaptureEngine(
+                new SyntheticSource(10, clock), sink, 25, 25, clock);
+        FrameConverter converter = new FrameConverter(32, 24,
+                BufferedImage.TYPE_3BYTE_BGR, 1);
+        engine.setConverter(converter);
+        try {
+            engine.run(1, TimeUnit.SECONDS);
+        } finally {
+            converter.close();
+        }
+
+        assertEquals(engine.toString(), 25, engine.getEncodedFrames());
+        assertEquals(25, engine.getCapturedFrames());
+        assertEquals(0, engine.getDroppedFrames());
+        assertEquals(0, engine.getQueueDepth());
+        assertEquals(25, sink.timeStamps.size());
+
+        // frames are taken on a 40 ms grid, not 40 ms after the last one,
+        // and the last capture ends 970 ms in
+        for (int i = 0; i < sink.timeStamps.size(); i++)
+            assertEquals(40L * i, (long) sink.timeStamps.get(i));
+        assertEquals(25 / 0.97, engine.getFrameRate(), 1e-9);
+    }
+
+    @Test
+    public void testOverrunDeadlinesAreSkipped() throws InterruptedException {
+        // captures of 50 ms run back to back, only the 40 ms deadlines they
+        // miss entirely, at 160 and 360 ms, are skipped
+        FakeClock clock = new FakeClock();
+        SlowSink sink = new SlowSink(0);
+        ScreenCaptureEngine engine = new ScreenCaptureEngine(
+                new SyntheticSource(50, clock), sink, 25, 25, clock);
+        FrameConverter converter = new FrameConverter(32, 24,
+                BufferedImage.TYPE_3BYTE_BGR, 1);
+        engine.setConverter(converter);
+        try {
+            engine.run(400, TimeUnit.MILLISECONDS);
+        } finally {
+            converter.close();
+        }
+
+        assertEquals(engine.toString(), 8, engine.getEncodedFrames());
+        assertEquals(2, engine.getDroppedFrames());
+        for (int i = 0; i < sink.timeStamps.size(); i++)
+            assertEquals(50L * i, (long) sink.timeStamps.get(i));
+    }
+
+    @Test
+    public void testFramesAreDroppedWhenEncoderIsBehind()
+            throws InterruptedException {
+        SlowSink sink = new SlowSink(100);
+        ScreenCaptureEngine engine = new ScreenCaptureEngine(
+                new SyntheticSource(0), sink, 50, 2);
+        FrameConverter converter = new FrameConverter(32, 24,
+                BufferedImage.TYPE_3BYTE_BGR, 1);
+        engine.setConverter(converter);
+        try {
+            engine.run(500, TimeUnit.MILLISECONDS);
+        } finally {
+            converter.close();
+        }
+
+        assertTrue(engine.toString(), engine.getEncodedFrames() < 10);
+        assertTrue(engine.toString(), engine.getDroppedFrames() >= engine
+                .getCapturedFrames() - engine.getEncodedFrames());
+        assertTrue(engine.toString(), engine.getDroppedFrames() > 0);
+        assertEquals(2, engine.getMaxQueueDepth());
+
+        for (int i = 1; i < sink.timeStamps.size(); i++)
+            assertTrue(sink.timeStamps.get(i) > sink.timeStamps.get(i - 1));
+    }
+
+    @Test
+    public void testUnchangedFramesAreSkipped() throws InterruptedException {
+        // the screen changes once, a third of a second in
+        final BufferedImage idle = new BufferedImage(32, 24,
+                BufferedImage.TYPE_INT_RGB);
+        final BufferedImage changed = new BufferedImage(32, 24,
+                BufferedImage.TYPE_INT_RGB);
+        changed.setRGB(20, 20, 0xffffff);
+        final FakeClock clock = new FakeClock();
+        FrameSource source = new SyntheticSource(0) {
+            @Override
+            public BufferedImage capture() {
+                return clock.nanoTime() < 300000000 ? idle : changed;
+            }
+        };
+
+        SlowSink sink = new SlowSink(0);
+        final List<Rectangle> bounds = new ArrayList<Rectangle>();
+        ScreenCaptureEngine engine = new ScreenCaptureEngine(source, sink,
+                50, 5, clock);
+        engine.setConverter(new FrameConverter(32, 24,
+                BufferedImage.TYPE_3BYTE_BGR, 1));
+        engine.setDirtyRegionDetector(new DirtyRegionDetector(32, 24, 16));
+        engine.setKeepAlive(400, TimeUnit.MILLISECONDS);
+        engine.setRegionListener(new ScreenCaptureEngine.RegionListener() {
+            @Override
+            public void onRegionsChanged(List<Rectangle> regions,
+                    Rectangle bound, long timeStamp, TimeUnit unit) {
+                bounds.add(bound);
+            }
+        });
+        engine.run(1, TimeUnit.SECONDS);
+
+        // the first frame, the change, and a keep alive frame out of the 50
+        // captures
+        assertEquals(engine.toString(), 3, engine.getEncodedFrames());
+        assertEquals(50, engine.getCapturedFrames());
+        assertEquals(47, engine.getSkippedFrames());
+        assertEquals(new Rectangle(0, 0, 32, 24), bounds.get(0));
+        assertEquals(new Rectangle(16, 16, 16, 8), bounds.get(1));
+        assertNull(bounds.get(2));
+
+        assertEquals(0L, (long) sink.timeStamps.get(0));
+        assertEquals(300L, (long) sink.timeStamps.get(1));
+        assertEquals(700L, (long) sink.timeStamps.get(2));
+    }
+
+    @Test
+    public void testEncoderFailureStopsEngine() throws InterruptedException {
+        final IllegalStateException failure = new IllegalStateException();
+        ScreenCaptureEngine engine = new ScreenCaptureEngine(
+                new SyntheticSource(0), new ScreenCaptureEngine.FrameSink() {
+                    @Override
+                    public void encode(BufferedImage frame, long timeStamp,
+                            TimeUnit unit) {
+                        throw failure;
+                    }
+                }, 50, 2);
+
+        long start = System.nanoTime();
+        try {
+            engine.run(10, TimeUnit.SECONDS);
+            fail("the failure was not reported");
+        } catch (RuntimeException e) {
+            assertSame(failure, e.getCause());
+        }
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+    }
+
+}
@@ -0,0 +1,358 @@
+package video;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.xuggle.xuggler.Global;
+import com.xuggle.xuggler.IAudioSamples;
+import com.xuggle.xuggler.IBuffer;
+import com.xuggle.xuggler.ICodec;
+import com.xuggle.xuggler.IContainer;
+import com.xuggle.xuggler.IPacket;
+import com.xuggle.xuggler.IPixelFormat;
+import com.xuggle.xuggler.IRational;
+import com.xuggle.xuggler.IStream;
+import com.xuggle.xuggler.IStreamCoder;
+
+/**
+ * Concatenates media files by copying their packets from container to
+ * container, without decoding or encoding anything.
+ *
+ * This only works for files with the same streams, in the same order and
+ * with the same codec parameters, typically clips from one camera;
+ * {@link #concatenate(List, String)} checks each file as it reaches it, and
+ * {@link #isCompatible(List)} checks them all beforehand. The time stamps of each file are
+ * shifted by the end of the files before it, like the
+ * {@link ConcatenateAudioAndVideo.MediaConcatenator} does with decoded
+ * media.
+ */
+public class StreamCopier {
+    // the time base the offsets between files are kept in
+
+    private static final IRational MICROSECONDS = IRational.make(1,
+            Global.DEFAULT_PTS_PER_SECOND);
+
+    /**
+     * Thrown by {@link #concatenate(List, String)} when a file does not have
+     * the stream formats of the first one, which only decoding and encoding
+     * can concatenate.
+     */
+
+    public static class IncompatibleStreamsException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        IncompatibleStreamsException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Whether files can be concatenated by copying their packets: same number
+     * of streams, and for each stream the same {@link StreamFormat}.
+     *
+     * @param sourceUrls the files
+     * @return true if {@link #concatenate(List, String)} can be used
+     */
+
+    public static boolean isCompatible(List<String> sourceUrls) {
+        MediaPrefetcher inputs = new MediaPrefetcher(sourceUrls);
+        try {
+            IContainer first = inputs.next();
+            try {
+                while (inputs.hasNext()) {
+                    IContainer other = inputs.next();
+                    try {
+                        if (!isCompatible(first, other))
+                            return false;
+                    } finally {
+                        other.close();
+                    }
+                }
+                return true;
+            } finally {
+                first.close();
+            }
+        } finally {
+            inputs.close();
+        }
+    }
+
+    /**
+     * Concatenate files by copying their packets. The output streams are
+     * those of the first file. Each file is opened while the one before it
+     * is copied, and checked against the first one once open, so the files
+     * are only opened once.
+     *
+     * @param sourceUrls the files, in order
+     * @param destinationUrl the file which will be produced
+     * @throws IncompatibleStreamsException if a file is not compatible with
+     *         the first one, according to {@link #isCompatible(List)}, the
+     *         output then being incomplete
+     * @throws RuntimeException if a file could not be read or the output
+     *         could not be written
+     */
+
+    public static void concatenate(List<String> sourceUrls,
+            String destinationUrl) {
+        IContainer output = IContainer.make();
+        if (output.open(destinationUrl, IContainer.Type.WRITE, null) < 0)
+            throw new RuntimeException("could not open " + destinationUrl);
+
+        IStreamCoder[] coders = null;
+        StreamFormat[] formats = null;
+        MediaPrefetcher inputs = new MediaPrefetcher(sourceUrls);
+        try {
+            // where the next file starts, in microseconds
+            long offset = 0;
+
+            while (inputs.hasNext()) {
+                IContainer input = inputs.next();
+                try {
+                    if (coders == null) {
+                        formats = formats(input);
+                        coders = addStreams(input, output);
+                        if (output.writeHeader() < 0)
+                            throw new RuntimeException(
+                                    "could not write header of "
+                                            + destinationUrl);
+                    } else {
+                        StreamFormat[] other = formats(input);
+                        if (!Arrays.equals(other, formats))
+                            throw new IncompatibleStreamsException(
+                                    input.getURL()
+                                            + " does not have the streams of "
+                                            + sourceUrls.get(0) + ": "
+                                            + Arrays.toString(other)
+                                            + ", not "
+                                            + Arrays.toString(formats));
+                    }
+
+                    offset = copyPackets(input, output, coders, offset);
+                } finally {
+                    input.close();
+                }
+            }
+
+            if (coders != null && output.writeTrailer() < 0)
+                throw new RuntimeException("could not write trailer of "
+                        + destinationUrl);
+        } finally {
+            inputs.close();
+            if (coders != null)
+                for (IStreamCoder coder : coders)
+                    if (coder != null)
+                        coder.close();
+            output.close();
+        }
+    }
+
+    // copy all packets of a file, shifted by an offset, returns the end of
+    // the file including the offset
+
+    static long copyPackets(IContainer input, IContainer output,
+            IStreamCoder[] coders, long offset) {
+        long end = offset;
+        IPacket packet = IPacket.make();
+        try {
+            while (input.readNextPacket(packet) >= 0) {
+                IRational to = coders[packet.getStreamIndex()].getTimeBase();
+                retime(packet, to, offset);
+
+                // As with decoded pictures, the next packet is at least one
+                // tick ahead of this one.
+                long last = packet.getPts() != Global.NO_PTS ? packet.getPts()
+                        : packet.getDts();
+                if (last != Global.NO_PTS)
+                    end = Math.max(end, MICROSECONDS.rescale(last
+                            + Math.max(1, packet.getDuration()), to));
+
+                if (output.writePacket(packet) < 0)
+                    throw new RuntimeException("could not write packet to "
+                            + output.getURL());
+            }
+        } finally {
+            packet.delete();
+        }
+        return end;
+    }
+
+    /**
+     * Convert the time stamps of a packet to another time base, and shift
+     * them.
+     *
+     * @param packet the packet
+     * @param timeBase the new time base of the packet
+     * @param shift added to the time stamps, in microseconds
+     */
+
+    static void retime(IPacket packet, IRational timeBase, long shift) {
+        IRational from = packet.getTimeBase();
+        long ticks = timeBase.rescale(shift, MICROSECONDS);
+
+        if (packet.getPts() != Global.NO_PTS)
+            packet.setPts(timeBase.rescale(packet.getPts(), from) + ticks);
+        if (packet.getDts() != Global.NO_PTS)
+            packet.setDts(timeBase.rescale(packet.getDts(), from) + ticks);
+        packet.setDuration(timeBase.rescale(packet.getDuration(), from));
+        packet.setTimeBase(timeBase);
+    }
+
+    /**
+     * The time stamp of a packet in microseconds, its presentation time if
+     * it has one, its decoding time otherwise.
+     */
+
+    static long timeStamp(IPacket packet) {
+        long ts = packet.getPts() != Global.NO_PTS ? packet.getPts() : packet
+                .getDts();
+        return ts == Global.NO_PTS ? Global.NO_PTS : MICROSECONDS.rescale(ts,
+                packet.getTimeBase());
+    }
+
+    // an output stream for each stream of a file, with the same parameters
+
+    static IStreamCoder[] addStreams(IContainer input, IContainer output) {
+        IStreamCoder[] coders = new IStreamCoder[input.getNumStreams()];
+        for (int i = 0; i < coders.length; i++)
+            coders[i] = addStream(output, input.getStream(i).getStreamCoder());
+        return coders;
+    }
+
+    /**
+     * Add a stream with the parameters of another one to a container, for
+     * packets copied from that stream.
+     *
+     * @return the opened coder of the new stream, to be closed by the caller
+     */
+
+    static IStreamCoder addStream(IContainer output, IStreamCoder source) {
+        IStreamCoder coder = IStreamCoder.make(
+                IStreamCoder.Direction.ENCODING, source);
+        if (output.addNewStream(coder) == null)
+            throw new RuntimeException("could not add stream to "
+                    + output.getURL());
+
+        // nothing is encoded, the coder is only opened so that the
+        // container can write its header
+        if (coder.open(null, null) < 0)
+            throw new RuntimeException("could not open coder of stream "
+                    + "of " + output.getURL());
+        return coder;
+    }
+
+    private static boolean isCompatible(IContainer first, IContainer other) {
+        return Arrays.equals(formats(first), formats(other));
+    }
+
+    /** The formats of the streams of a file. */
+
+    static StreamFormat[] formats(IContainer container) {
+        StreamFormat[] formats = new StreamFormat[container.getNumStreams()];
+        for (int i = 0; i < formats.length; i++)
+            formats[i] = new StreamFormat(container.getStream(i));
+        return formats;
+    }
+
+    /**
+     * The parameters of a stream which its packets depend on: codec, profile,
+     * time base and codec extra data, like the SPS and PPS of H.264 in MP4,
+     * then picture size and pixel format, or sample rate, channels and sample
+     * format. Packets can only be copied between streams of equal formats.
+     * The parameters are copied, so they are kept once the file is closed.
+     */
+
+    static class StreamFormat {
+        private final ICodec.Type mType;
+        private final ICodec.ID mCodec;
+        private final int mTag;
+        private final long mProfile;
+        private final int mTimeBaseNumerator;
+        private final int mTimeBaseDenominator;
+        private final byte[] mExtraData;
+
+        private final int mWidth;
+        private final int mHeight;
+        private final IPixelFormat.Type mPixelType;
+
+        private final int mSampleRate;
+        private final int mChannels;
+        private final IAudioSamples.Format mSampleFormat;
+
+        StreamFormat(IStream stream) {
+            IStreamCoder coder = stream.getStreamCoder();
+            mType = coder.getCodecType();
+            mCodec = coder.getCodecID();
+            mTag = coder.getCodecTag();
+            mProfile = coder.getPropertyAsLong("profile");
+            IRational timeBase = stream.getTimeBase();
+            mTimeBaseNumerator = timeBase.getNumerator();
+            mTimeBaseDenominator = timeBase.getDenominator();
+            mExtraData = extraData(coder);
+
+            boolean video = mType == ICodec.Type.CODEC_TYPE_VIDEO;
+            mWidth = video ? coder.getWidth() : 0;
+            mHeight = video ? coder.getHeight() : 0;
+            mPixelType = video ? coder.getPixelType() : null;
+
+            boolean audio = mType == ICodec.Type.CODEC_TYPE_AUDIO;
+            mSampleRate = audio ? coder.getSampleRate() : 0;
+            mChannels = audio ? coder.getChannels() : 0;
+            mSampleFormat = audio ? coder.getSampleFormat() : null;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof StreamFormat))
+                return false;
+            StreamFormat other = (StreamFormat) o;
+
+            // equal time bases, which may not be reduced
+            boolean timeBase = (long) mTimeBaseNumerator
+                    * other.mTimeBaseDenominator == (long) other.mTimeBaseNumerator
+                    * mTimeBaseDenominator;
+            return mType == other.mType && mCodec == other.mCodec
+                    && mTag == other.mTag && mProfile == other.mProfile
+                    && timeBase && Arrays.equals(mExtraData, other.mExtraData)
+                    && mWidth == other.mWidth && mHeight == other.mHeight
+                    && mPixelType == other.mPixelType
+                    && mSampleRate == other.mSampleRate
+                    && mChannels == other.mChannels
+                    && mSampleFormat == other.mSampleFormat;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * mTag + mWidth + mSampleRate)
+                    + Arrays.hashCode(mExtraData);
+        }
+
+        @Override
+        public String toString() {
+            return mType + " " + mCodec + (mWidth > 0 ? " " + mWidth + "x"
+                    + mHeight : "") + (mChannels > 0 ? " " + mChannels + "@"
+                    + mSampleRate : "");
+        }
+
+        private static byte[] extraData(IStreamCoder coder) {
+            int size = coder.getExtraDataSize();
+            if (size <= 0)
+                return new byte[0];
+            IBuffer buffer = IBuffer.make(null, size);
+            try {
+                if (coder.getExtraData(buffer, 0, size) != size)
+                    throw new RuntimeException("could not read extra data of "
+                            + coder.getCodecID());
+                return buffer.getByteArray(0, size);
+            } finally {
+                buffer.delete();
+            }
+        }
+    }
+
+    static IContainer open(String url) {
+        IContainer container = IContainer.make();
+        if (container.open(url, IContainer.Type.READ, null) < 0)
+            throw new RuntimeException("could not open " + url);
+        return container;
+    }
+}
@@ -0,0 +1,489 @@
+package video;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.util.concurrent.TimeUnit;
+
+import com.xuggle.xuggler.IVideoPicture;
+
+/**
+ * Burns time stamps into video frames, for
+ * {@link ModifyVideoAndAudio.TimeStampTool}, with the same result as
+ * {@link Graphics2D#drawString(String, int, int)} but without laying out or
+ * rasterizing any text per frame.
+ *
+ * The digits and the other characters of the format are drawn once, each in
+ * a cell over the background, into an atlas, which is also converted to the
+ * channel order of the frame rasters. Digits have cells of the same width,
+ * so the time stamp box never changes size. A frame then only gets the rows
+ * of the cells of its time stamp copied into its raster, and nothing is
+ * allocated. Frames of type {@link BufferedImage#TYPE_3BYTE_BGR},
+ * {@link BufferedImage#TYPE_INT_RGB} and {@link BufferedImage#TYPE_INT_BGR}
+ * are copied into directly; other types fall back to drawing the cells.
+ *
+ * Time stamps can also be burnt into the YUV planes of decoded pictures,
+ * with no {@link BufferedImage} per picture: the box is copied together and
+ * converted to YUV, which only takes the pixels of the box.
+ *
+ * The format has these fields, with as many digits as letters, and any other
+ * character as it is:
+ * <ul>
+ * <li>H hours</li>
+ * <li>m minutes</li>
+ * <li>s seconds</li>
+ * <li>S fraction of second, SSS being milliseconds, the digits after the
+ * microseconds being 0</li>
+ * <li>F frame in the second, with {@link #setFrameRate(double)}</li>
+ * </ul>
+ */
+public class TimecodeBurner {
+    // the format of IVideoPicture.getFormattedTimeStamp()
+
+    public static final String DEFAULT_FORMAT = "HH:mm:ss.SSS";
+
+    private static final String FIELDS = "HmsSF";
+
+    private static final String DIGITS = "0123456789";
+
+    private Font mFont;
+    private Color mForeground = Color.BLACK;
+    private Color mBackground = Color.WHITE;
+    private String mFormat = DEFAULT_FORMAT;
+    private double mFrameRate;
+    private Point mPosition;
+
+    // the atlas, null when it must be drawn again, and the frame type it is
+    // converted to, -1 for none
+
+    private BufferedImage mAtlas;
+    private int mType = -1;
+
+    // the atlas in the channel order of the frame type
+
+    private byte[] mAtlasBytes;
+    private int[] mAtlasInts;
+
+    // the characters of the atlas, digits first, and the x and width of
+    // their cells
+
+    private String mCharacters;
+    private int[] mCellX;
+    private int[] mCellWidth;
+
+    // for each character of the format, the field it is a digit of, or 0 for
+    // other characters, its position in the box, and the index of the
+    // character in the atlas, set per frame for digits
+
+    private char[] mFields;
+    private int[] mPositionX;
+    private int[] mGlyphs;
+
+    // the size of the box and the ascent of the font
+
+    private int mWidth;
+    private int mHeight;
+    private int mAscent;
+
+    // the box with the cells copied together, and converted to YUV, for
+    // pictures
+
+    private BufferedImage mBox;
+    private YuvPlanes.Patch mPatch;
+    private final YuvPlanes mPlanes = new YuvPlanes();
+
+    /** Create a burner with the default font of {@link Graphics2D}. */
+
+    public TimecodeBurner() {
+        this(new Font(Font.DIALOG, Font.PLAIN, 12));
+    }
+
+    /**
+     * Create a burner.
+     *
+     * @param font the font of the time stamps
+     */
+
+    public TimecodeBurner(Font font) {
+        mFont = font;
+    }
+
+    public void setFont(Font font) {
+        mFont = font;
+        mAtlas = null;
+    }
+
+    /**
+     * The colors of the text and of the box behind it. The background has to
+     * be opaque.
+     */
+
+    public void setColors(Color foreground, Color background) {
+        if (background.getAlpha() != 0xff)
+            throw new IllegalArgumentException("translucent background "
+                    + background);
+        mForeground = foreground;
+        mBackground = background;
+        mAtlas = null;
+    }
+
+    /** The format of the time stamps, {@link #DEFAULT_FORMAT} by default. */
+
+    public void setFormat(String format) {
+        mFormat = format;
+        mAtlas = null;
+    }
+
+    /** The frame rate, for the F field. */
+
+    public void setFrameRate(double frameRate) {
+        mFrameRate = frameRate;
+    }
+
+    /**
+     * Where the top left corner of the box goes in the frames. By default
+     * the box is at the bottom left corner, inset by half its height.
+     */
+
+    public void setPosition(Point position) {
+        mPosition = position == null ? null : new Point(position);
+    }
+
+    /**
+     * The box the time stamps are drawn in, for a frame size.
+     */
+
+    public Rectangle getBounds(int frameWidth, int frameHeight) {
+        if (mAtlas == null)
+            render();
+        return new Rectangle(boxX(), boxY(frameHeight), mWidth, mHeight);
+    }
+
+    /**
+     * Burn a time stamp into a frame.
+     *
+     * @param frame the frame, changed in place
+     * @param timeStamp the time stamp, negative ones are shown as 0
+     * @param unit the unit of the time stamp
+     */
+
+    public void burn(BufferedImage frame, long timeStamp, TimeUnit unit) {
+        if (mAtlas == null)
+            render();
+        if (frame.getType() != mType)
+            convert(frame.getType());
+
+        layout(Math.max(0, unit.toMicros(timeStamp)));
+        int x = boxX();
+        int y = boxY(frame.getHeight());
+
+        switch (frame.getType()) {
+        case BufferedImage.TYPE_3BYTE_BGR:
+            copyBytes(frame.getRaster(), x, y);
+            break;
+
+        case BufferedImage.TYPE_INT_RGB:
+        case BufferedImage.TYPE_INT_BGR:
+            copyInts(frame.getRaster(), x, y);
+            break;
+
+        default:
+            Graphics2D g = frame.createGraphics();
+            try {
+                for (int i = 0; i < mGlyphs.length; i++) {
+                    int c = mGlyphs[i];
+                    int left = x + mPositionX[i];
+                    g.drawImage(mAtlas, left, y, left + mCellWidth[c], y
+                            + mHeight, mCellX[c], 0, mCellX[c]
+                            + mCellWidth[c], mHeight, null);
+                }
+            } finally {
+                g.dispose();
+            }
+        }
+    }
+
+    /**
+     * Burn a time stamp into a picture.
+     *
+     * @param picture a YUV420P or YUVJ420P picture, changed in place
+     * @param timeStamp the time stamp, negative ones are shown as 0
+     * @param unit the unit of the time stamp
+     */
+
+    public void burn(IVideoPicture picture, long timeStamp, TimeUnit unit) {
+        mPlanes.set(picture);
+        burn(mPlanes, timeStamp, unit);
+    }
+
+    // burn a time stamp into planes
+
+    void burn(YuvPlanes planes, long timeStamp, TimeUnit unit) {
+        if (mAtlas == null)
+            render();
+        if (mType != BufferedImage.TYPE_INT_RGB)
+            convert(BufferedImage.TYPE_INT_RGB);
+        if (mBox == null || mBox.getWidth() != mWidth
+                || mBox.getHeight() != mHeight)
+            mBox = new BufferedImage(Math.max(1, mWidth), Math.max(1, mHeight),
+                    BufferedImage.TYPE_INT_RGB);
+
+        layout(Math.max(0, unit.toMicros(timeStamp)));
+        copyInts(mBox.getRaster(), 0, 0);
+
+        int x = boxX();
+        int y = boxY(planes.getHeight());
+        if (mPatch == null || !mPatch.fits(mBox.getWidth(), mBox.getHeight(),
+                x, y, planes.isFullRange()))
+            mPatch = new YuvPlanes.Patch(mBox.getWidth(), mBox.getHeight(),
+                    x, y, planes.isFullRange());
+        mPatch.set(((DataBufferInt) mBox.getRaster().getDataBuffer())
+                .getData(), 0, mBox.getWidth(), 1, false);
+        planes.blend(mPatch, x, y);
+    }
+
+    /**
+     * The text of a time stamp, as burnt into the frames.
+     */
+
+    String format(long timeStamp, TimeUnit unit) {
+        if (mAtlas == null)
+            render();
+        layout(Math.max(0, unit.toMicros(timeStamp)));
+        StringBuilder s = new StringBuilder();
+        for (int glyph : mGlyphs)
+            s.append(mCharacters.charAt(glyph));
+        return s.toString();
+    }
+
+    // by default, where drawString puts the box translated by half its
+    // height
+
+    private int boxX() {
+        return mPosition != null ? mPosition.x : mHeight / 2;
+    }
+
+    private int boxY(int frameHeight) {
+        return mPosition != null ? mPosition.y : frameHeight - mHeight / 2
+                - mAscent;
+    }
+
+    // set the glyphs of the digits of a time stamp, in microseconds
+
+    private void layout(long micros) {
+        // each run of a field, from its last digit
+        for (int i = mFields.length - 1; i >= 0;) {
+            char field = mFields[i];
+            if (field == 0) {
+                i--;
+                continue;
+            }
+
+            int end = i;
+            while (i >= 0 && mFields[i] == field)
+                i--;
+            long value = value(field, end - i, micros);
+            for (int j = end; j > i; j--) {
+                mGlyphs[j] = (int) (value % 10);
+                value /= 10;
+            }
+        }
+    }
+
+    private long value(char field, int digits, long micros) {
+        switch (field) {
+        case 'H':
+            return micros / 3600000000L;
+        case 'm':
+            return micros / 60000000 % 60;
+        case 's':
+            return micros / 1000000 % 60;
+        case 'S':
+            long fraction = micros % 1000000;
+            for (int i = digits; i < 6; i++)
+                fraction /= 10;
+            for (int i = 6; i < digits; i++)
+                fraction *= 10;
+            return fraction;
+        default:
+            return (long) (micros % 1000000 * mFrameRate / 1000000);
+        }
+    }
+
+    // draw the cells of the characters of the format, and lay them out
+
+    private void render() {
+        if (mFormat.indexOf('F') >= 0 && mFrameRate <= 0)
+            throw new IllegalStateException("no frame rate for the F field of "
+                    + mFormat);
+
+        // the characters, digits first, each once
+        StringBuilder characters = new StringBuilder(DIGITS);
+        mFields = new char[mFormat.length()];
+        for (int i = 0; i < mFormat.length(); i++) {
+            char c = mFormat.charAt(i);
+            if (FIELDS.indexOf(c) >= 0)
+                mFields[i] = c;
+            else if (characters.indexOf(String.valueOf(c)) < 0)
+                characters.append(c);
+        }
+        mCharacters = characters.toString();
+
+        BufferedImage scratch = new BufferedImage(1, 1,
+                BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = scratch.createGraphics();
+        FontMetrics metrics = g.getFontMetrics(mFont);
+        g.dispose();
+
+        int digitWidth = 0;
+        for (char c : DIGITS.toCharArray())
+            digitWidth = Math.max(digitWidth, metrics.charWidth(c));
+        mCellX = new int[mCharacters.length()];
+        mCellWidth = new int[mCharacters.length()];
+        int x = 0;
+        for (int i = 0; i < mCharacters.length(); i++) {
+            mCellX[i] = x;
+            mCellWidth[i] = i < DIGITS.length() ? digitWidth : metrics
+                    .charWidth(mCharacters.charAt(i));
+            x += mCellWidth[i];
+        }
+        mAscent = metrics.getAscent();
+        mHeight = metrics.getAscent() + metrics.getDescent();
+
+        mAtlas = new BufferedImage(Math.max(1, x), Math.max(1, mHeight),
+                BufferedImage.TYPE_INT_RGB);
+        g = mAtlas.createGraphics();
+        try {
+            g.setColor(mBackground);
+            g.fillRect(0, 0, mAtlas.getWidth(), mAtlas.getHeight());
+            g.setColor(mForeground);
+            g.setFont(mFont);
+            g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,
+                    RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            for (int i = 0; i < mCharacters.length(); i++) {
+                char c = mCharacters.charAt(i);
+                g.setClip(mCellX[i], 0, mCellWidth[i], mHeight);
+                g.drawString(String.valueOf(c), mCellX[i]
+                        + (mCellWidth[i] - metrics.charWidth(c)) / 2, mAscent);
+            }
+        } finally {
+            g.dispose();
+        }
+
+        // the glyphs of the other characters never change
+        mPositionX = new int[mFormat.length()];
+        mGlyphs = new int[mFormat.length()];
+        mWidth = 0;
+        for (int i = 0; i < mFormat.length(); i++) {
+            mPositionX[i] = mWidth;
+            if (mFields[i] == 0)
+                mGlyphs[i] = mCharacters.indexOf(mFormat.charAt(i));
+            mWidth += mFields[i] == 0 ? mCellWidth[mGlyphs[i]] : digitWidth;
+        }
+        mType = -1;
+    }
+
+    // convert the atlas to the channel order of a frame type
+
+    private void convert(int type) {
+        int width = mAtlas.getWidth();
+        int[] rgb = mAtlas.getRGB(0, 0, width, mAtlas.getHeight(), null, 0,
+                width);
+        mAtlasBytes = null;
+        mAtlasInts = null;
+
+        switch (type) {
+        case BufferedImage.TYPE_3BYTE_BGR:
+            mAtlasBytes = new byte[3 * rgb.length];
+            for (int i = 0; i < rgb.length; i++) {
+                mAtlasBytes[3 * i] = (byte) rgb[i];
+                mAtlasBytes[3 * i + 1] = (byte) (rgb[i] >> 8);
+                mAtlasBytes[3 * i + 2] = (byte) (rgb[i] >> 16);
+            }
+            break;
+
+        case BufferedImage.TYPE_INT_RGB:
+            mAtlasInts = rgb;
+            break;
+
+        case BufferedImage.TYPE_INT_BGR:
+            mAtlasInts = rgb;
+            for (int i = 0; i < rgb.length; i++)
+                rgb[i] = (rgb[i] & 0xff) << 16 | rgb[i] & 0xff00
+                        | (rgb[i] >> 16) & 0xff;
+            break;
+        }
+        mType = type;
+    }
+
+    // copy the cells into three bytes per pixel, blue first
+
+    private void copyBytes(Raster raster, int boxX, int boxY) {
+        ComponentSampleModel model = (ComponentSampleModel) raster
+                .getSampleModel();
+        byte[] dst = ((DataBufferByte) raster.getDataBuffer()).getData();
+        int stride = model.getScanlineStride();
+        // the offset of the first pixel rather than of its first band, red
+        int offset = raster.getDataBuffer().getOffset()
+                + model.getOffset(-raster.getSampleModelTranslateX(),
+                        -raster.getSampleModelTranslateY())
+                - model.getBandOffsets()[0];
+        int atlasWidth = mAtlas.getWidth();
+
+        int top = Math.max(boxY, 0);
+        int bottom = Math.min(boxY + mHeight, raster.getHeight());
+        for (int i = 0; i < mGlyphs.length; i++) {
+            int c = mGlyphs[i];
+            int x = boxX + mPositionX[i];
+            int from = Math.max(x, 0);
+            int to = Math.min(x + mCellWidth[c], raster.getWidth());
+            if (from >= to)
+                continue;
+
+            int s = mCellX[c] + from - x;
+            for (int y = top; y < bottom; y++)
+                System.arraycopy(mAtlasBytes, 3 * ((y - boxY) * atlasWidth
+                        + s), dst, offset + y * stride + 3 * from,
+                        3 * (to - from));
+        }
+    }
+
+    // copy the cells into packed ints
+
+    private void copyInts(Raster raster, int boxX, int boxY) {
+        SinglePixelPackedSampleModel model =
+                (SinglePixelPackedSampleModel) raster.getSampleModel();
+        int[] dst = ((DataBufferInt) raster.getDataBuffer()).getData();
+        int stride = model.getScanlineStride();
+        int offset = raster.getDataBuffer().getOffset()
+                + model.getOffset(-raster.getSampleModelTranslateX(),
+                        -raster.getSampleModelTranslateY());
+        int atlasWidth = mAtlas.getWidth();
+
+        int top = Math.max(boxY, 0);
+        int bottom = Math.min(boxY + mHeight, raster.getHeight());
+        for (int i = 0; i < mGlyphs.length; i++) {
+            int c = mGlyphs[i];
+            int x = boxX + mPositionX[i];
+            int from = Math.max(x, 0);
+            int to = Math.min(x + mCellWidth[c], raster.getWidth());
+            if (from >= to)
+                continue;
+
+            int s = mCellX[c] + from - x;
+            for (int y = top; y < bottom; y++)
+                System.arraycopy(mAtlasInts, (y - boxY) * atlasWidth + s,
+                        dst, offset + y * stride + from, to - from);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package video;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Benchmark of burning a time stamp into a 4K frame, laid out and drawn per
+ * frame as {@link ModifyVideoAndAudio.TimeStampTool} used to do, and copied
+ * from the atlas of a {@link TimecodeBurner}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TimecodeBurnerBenchmark {
+
+    @Param({ "12", "48" })
+    public int fontSize;
+
+    private BufferedImage frame;
+    private Font font;
+    private TimecodeBurner burner;
+    private long timeStamp;
+
+    @Setup
+    public void setUp() {
+        frame = new BufferedImage(3840, 2160, BufferedImage.TYPE_3BYTE_BGR);
+        font = new Font(Font.SANS_SERIF, Font.BOLD, fontSize);
+        burner = new TimecodeBurner(font);
+    }
+
+    @Benchmark
+    public BufferedImage drawString() {
+        timeStamp += 40000;
+        String text = String.format("%02d:%02d:%02d.%03d",
+                timeStamp / 3600000000L, timeStamp / 60000000 % 60,
+                timeStamp / 1000000 % 60, timeStamp / 1000 % 1000);
+
+        Graphics2D g = frame.createGraphics();
+        g.setFont(font);
+        g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,
+                RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+        Rectangle2D bounds = font.getStringBounds(text,
+                g.getFontRenderContext());
+        double inset = bounds.getHeight() / 2;
+        g.translate(inset, frame.getHeight() - inset);
+        g.setColor(Color.WHITE);
+        g.fill(bounds);
+        g.setColor(Color.BLACK);
+        g.drawString(text, 0, 0);
+        g.dispose();
+        return frame;
+    }
+
+    @Benchmark
+    public BufferedImage burner() {
+        timeStamp += 40000;
+        burner.burn(frame, timeStamp, TimeUnit.MICROSECONDS);
+        return frame;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(TimecodeBurnerBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class).build()).run();
+    }
+
+}
@@ -0,0 +1,129 @@
+package video;
+
+import static org.junit.Assert.assertEquals;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TimecodeBurnerTest {
+
+    private static final int WIDTH = 160;
+    private static final int HEIGHT = 90;
+
+    @Test
+    public void testFormat() {
+        TimecodeBurner burner = new TimecodeBurner();
+        assertEquals("01:02:03.456", burner.format(3723456789L,
+                TimeUnit.MICROSECONDS));
+        assertEquals("00:00:00.000", burner.format(-5, TimeUnit.SECONDS));
+
+        burner.setFormat("HH:mm:ss:FF");
+        burner.setFrameRate(25);
+        assertEquals("00:00:01:12", burner.format(1500, TimeUnit.MILLISECONDS));
+
+        burner.setFormat("m's'S");
+        assertEquals("2'5'7", burner.format(125789, TimeUnit.MILLISECONDS));
+
+        // the fraction is left aligned, past the microseconds as well
+        burner.setFormat("s.SSSSSSSS");
+        assertEquals("1.12345600", burner.format(1123456789,
+                TimeUnit.NANOSECONDS));
+    }
+
+    @Test
+    public void testSameAsDrawingText() {
+        Font font = new Font(Font.MONOSPACED, Font.BOLD, 18);
+        int[] types = { BufferedImage.TYPE_3BYTE_BGR,
+                BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_BGR,
+                BufferedImage.TYPE_USHORT_565_RGB };
+
+        for (int type : types) {
+            TimecodeBurner burner = new TimecodeBurner(font);
+            burner.setColors(Color.YELLOW, Color.BLUE);
+            BufferedImage frame = new BufferedImage(WIDTH, HEIGHT, type);
+            burner.burn(frame, 61020, TimeUnit.MILLISECONDS);
+
+            // the box and text drawn as the time stamp tool used to
+            BufferedImage expected = new BufferedImage(WIDTH, HEIGHT, type);
+            Rectangle box = burner.getBounds(WIDTH, HEIGHT);
+            Graphics2D g = expected.createGraphics();
+            g.setColor(Color.BLUE);
+            g.fill(box);
+            g.setColor(Color.YELLOW);
+            g.setFont(font);
+            g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,
+                    RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            g.drawString("00:01:01.020", box.x, box.y
+                    + g.getFontMetrics().getAscent());
+            g.dispose();
+
+            assertSame("type " + type, expected, frame);
+        }
+    }
+
+    @Test
+    public void testBoxIsClipped() {
+        TimecodeBurner burner = new TimecodeBurner();
+        Rectangle box = burner.getBounds(WIDTH, HEIGHT);
+
+        // half out on the left and the bottom
+        BufferedImage frame = new BufferedImage(WIDTH, HEIGHT,
+                BufferedImage.TYPE_3BYTE_BGR);
+        burner.setPosition(new Point(-box.width / 2, HEIGHT - box.height / 2));
+        burner.burn(frame, 1, TimeUnit.HOURS);
+
+        // the same in the middle of a bigger frame
+        BufferedImage whole = new BufferedImage(WIDTH + box.width, HEIGHT
+                + box.height, BufferedImage.TYPE_3BYTE_BGR);
+        burner.setPosition(new Point(box.width - box.width / 2, HEIGHT
+                - box.height / 2));
+        burner.burn(whole, 1, TimeUnit.HOURS);
+
+        assertSame("clipped", whole.getSubimage(box.width, 0, WIDTH, HEIGHT),
+                frame);
+    }
+
+    @Test
+    public void testSameLumaInPictures() {
+        TimecodeBurner burner = new TimecodeBurner();
+        burner.setColors(Color.YELLOW, Color.BLUE);
+        burner.setPosition(new Point(5, 7));
+        BufferedImage frame = new BufferedImage(WIDTH, HEIGHT,
+                BufferedImage.TYPE_INT_RGB);
+        burner.burn(frame, 61020, TimeUnit.MILLISECONDS);
+
+        YuvPlanes planes = new YuvPlanes();
+        planes.set(ByteBuffer.allocate(WIDTH * HEIGHT * 3 / 2), WIDTH, HEIGHT,
+                WIDTH, WIDTH / 2, WIDTH / 2);
+        burner.burn(planes, 61020, TimeUnit.MILLISECONDS);
+
+        Rectangle box = burner.getBounds(WIDTH, HEIGHT);
+        for (int y = 0; y < HEIGHT; y++)
+            for (int x = 0; x < WIDTH; x++)
+                assertEquals(x + "," + y, box.contains(x, y) ? YuvPlanes
+                        .luma(frame.getRGB(x, y)) : 0, planes.get(0, x, y));
+
+        // inside the box, the chroma of the background
+        int blue = Color.BLUE.getRGB();
+        assertEquals(YuvPlanes.u(blue), planes.get(1, 3, 4));
+        assertEquals(YuvPlanes.v(blue), planes.get(2, 3, 4));
+    }
+
+    private static void assertSame(String message, BufferedImage expected,
+            BufferedImage actual) {
+        for (int y = 0; y < HEIGHT; y++)
+            for (int x = 0; x < WIDTH; x++)
+                assertEquals(message + " at " + x + "," + y, expected.getRGB(
+                        x, y), actual.getRGB(x, y));
+    }
+
+}
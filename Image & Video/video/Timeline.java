@@ -0,0 +1,188 @@
+package video;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Effects scheduled over ranges of time stamps, such as overlays shown or
+ * gain changes applied for a while, and the ones active at a time stamp.
+ *
+ * The ranges are indexed in an interval tree laid out in an array sorted by
+ * start, so finding the active effects takes a logarithmic time in the
+ * number of effects. The answer is kept until the next time one starts or
+ * ends, so media read in order only looks the effects up when the active
+ * set changes, and time stamps with no active effect cost a comparison.
+ *
+ * A timeline is not thread safe: effects are added before the media is
+ * read, and looked up from the thread passing the media on.
+ *
+ * @param <T> the type of the effects
+ */
+public class Timeline<T> {
+    private final List<T> mEffects = new ArrayList<T>();
+    private final List<long[]> mRanges = new ArrayList<long[]>();
+
+    // the index, null when it must be built again: the effects sorted by
+    // start, their starts and ends, and for each node of the implicit tree,
+    // the middle of a range of the sorted effects, the latest end in the
+    // range
+
+    private int[] mOrder;
+    private long[] mStarts;
+    private long[] mEnds;
+    private long[] mMaxEnds;
+
+    // the last answer, valid from mFrom until mUntil, exclusive
+
+    private long mFrom = Long.MAX_VALUE;
+    private long mUntil = Long.MIN_VALUE;
+    private List<T> mActive = Collections.emptyList();
+
+    private int[] mScratch = new int[16];
+
+    /**
+     * Schedule an effect.
+     *
+     * @param effect the effect
+     * @param start the first time stamp it is active at
+     * @param end the time stamp it stops being active at,
+     *        {@link Long#MAX_VALUE} for never
+     * @param unit the unit of the start and end
+     */
+
+    public void add(T effect, long start, long end, TimeUnit unit) {
+        long from = unit.toMicros(start);
+        long until = unit.toMicros(end);
+        if (until < from)
+            throw new IllegalArgumentException("range ends at " + end
+                    + " before starting at " + start);
+        mEffects.add(effect);
+        mRanges.add(new long[] { from, until });
+        mOrder = null;
+        mFrom = Long.MAX_VALUE;
+        mUntil = Long.MIN_VALUE;
+    }
+
+    /** The number of effects scheduled. */
+
+    public int size() {
+        return mEffects.size();
+    }
+
+    /** The effects active at a time stamp, in the order they were added. */
+
+    public List<T> at(long timeStamp, TimeUnit unit) {
+        return at(unit.toMicros(timeStamp));
+    }
+
+    /**
+     * The effects active at a time stamp, in the order they were added.
+     *
+     * @param micros the time stamp in microseconds
+     * @return the effects, empty if none, not to be modified
+     */
+
+    public List<T> at(long micros) {
+        if (micros >= mFrom && micros < mUntil)
+            return mActive;
+        if (mOrder == null)
+            index();
+
+        // the effects started at the time stamp and not ended yet
+        int count = find(micros, 0, mOrder.length, 0);
+        Arrays.sort(mScratch, 0, count);
+
+        // the answer holds until the next start, or the first end
+        int next = after(micros);
+        long until = next < mStarts.length ? mStarts[next] : Long.MAX_VALUE;
+
+        if (count == 0) {
+            mActive = Collections.emptyList();
+        } else {
+            List<T> active = new ArrayList<T>(count);
+            for (int i = 0; i < count; i++) {
+                active.add(mEffects.get(mScratch[i]));
+                until = Math.min(until, mRanges.get(mScratch[i])[1]);
+            }
+            mActive = Collections.unmodifiableList(active);
+        }
+        mFrom = micros;
+        mUntil = until;
+        return mActive;
+    }
+
+    // the first of the sorted effects starting after a time stamp
+
+    private int after(long micros) {
+        int low = 0, high = mStarts.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (mStarts[middle] <= micros)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low;
+    }
+
+    // sort the ranges by start and compute the latest end under each node
+
+    private void index() {
+        int n = mEffects.size();
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++)
+            order[i] = i;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                long x = mRanges.get(a)[0], y = mRanges.get(b)[0];
+                return x < y ? -1 : x > y ? 1 : a - b;
+            }
+        });
+
+        mOrder = new int[n];
+        mStarts = new long[n];
+        mEnds = new long[n];
+        for (int i = 0; i < n; i++) {
+            mOrder[i] = order[i];
+            mStarts[i] = mRanges.get(order[i])[0];
+            mEnds[i] = mRanges.get(order[i])[1];
+        }
+        mMaxEnds = new long[n];
+        maxEnd(0, n);
+        if (mScratch.length < n)
+            mScratch = new int[n];
+    }
+
+    private long maxEnd(int from, int to) {
+        if (from >= to)
+            return Long.MIN_VALUE;
+        int middle = (from + to) >>> 1;
+        long max = Math.max(mEnds[middle], Math.max(maxEnd(from, middle),
+                maxEnd(middle + 1, to)));
+        mMaxEnds[middle] = max;
+        return max;
+    }
+
+    // add the effects of the node over from to, active at a time stamp, to
+    // the scratch from count, and return the new count
+
+    private int find(long micros, int from, int to, int count) {
+        while (from < to) {
+            int middle = (from + to) >>> 1;
+            if (mMaxEnds[middle] <= micros)
+                return count;
+            count = find(micros, from, middle, count);
+            if (mStarts[middle] > micros)
+                return count;
+            if (mEnds[middle] > micros)
+                mScratch[count++] = mOrder[middle];
+            from = middle + 1;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,78 @@
+package video;
+
+import java.util.List;
+
+import com.xuggle.mediatool.MediaToolAdapter;
+import com.xuggle.mediatool.event.IAudioSamplesEvent;
+import com.xuggle.mediatool.event.IVideoPictureEvent;
+
+/**
+ * Applies the effects of {@link Timeline}s active at the time stamp of each
+ * picture or buffer of samples, then passes it on. Media with no active
+ * effect is passed on untouched, after a comparison with the time the
+ * active effects last changed.
+ */
+public class TimelineMediaTool extends MediaToolAdapter {
+    /** An effect changing pictures. */
+
+    public interface VideoEffect {
+        /**
+         * Change the picture, or the image, of an event.
+         *
+         * @param event the event, with its time stamp
+         */
+
+        void apply(IVideoPictureEvent event);
+    }
+
+    /** An effect changing audio samples. */
+
+    public interface AudioEffect {
+        /**
+         * Change the samples of an event.
+         *
+         * @param event the event, with its time stamp
+         */
+
+        void apply(IAudioSamplesEvent event);
+    }
+
+    private final Timeline<VideoEffect> mVideo;
+
+    private final Timeline<AudioEffect> mAudio;
+
+    /**
+     * Create a tool.
+     *
+     * @param video the effects on pictures, in the order they apply
+     * @param audio the effects on samples, in the order they apply
+     */
+
+    public TimelineMediaTool(Timeline<VideoEffect> video,
+            Timeline<AudioEffect> audio) {
+        mVideo = video;
+        mAudio = audio;
+    }
+
+    /** {@inheritDoc} */
+
+    @Override
+    public void onVideoPicture(IVideoPictureEvent event) {
+        List<VideoEffect> effects = mVideo.at(event.getTimeStamp(), event
+                .getTimeUnit());
+        for (int i = 0; i < effects.size(); i++)
+            effects.get(i).apply(event);
+        super.onVideoPicture(event);
+    }
+
+    /** {@inheritDoc} */
+
+    @Override
+    public void onAudioSamples(IAudioSamplesEvent event) {
+        List<AudioEffect> effects = mAudio.at(event.getTimeStamp(), event
+                .getTimeUnit());
+        for (int i = 0; i < effects.size(); i++)
+            effects.get(i).apply(event);
+        super.onAudioSamples(event);
+    }
+}
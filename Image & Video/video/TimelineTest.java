@@ -0,0 +1,89 @@
+package video;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TimelineTest {
+
+    @Test
+    public void testRanges() {
+        Timeline<String> timeline = new Timeline<String>();
+        timeline.add("logo", 17, 18, TimeUnit.SECONDS);
+        timeline.add("volume", 16, Long.MAX_VALUE, TimeUnit.SECONDS);
+        timeline.add("title", 0, 5, TimeUnit.SECONDS);
+        timeline.add("empty", 3, 3, TimeUnit.SECONDS);
+
+        assertEquals(Arrays.asList("title"), timeline.at(0));
+        assertEquals(Arrays.asList("title"), timeline.at(3,
+                TimeUnit.SECONDS));
+        assertTrue(timeline.at(5, TimeUnit.SECONDS).isEmpty());
+        assertEquals(Arrays.asList("volume"), timeline.at(16,
+                TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("logo", "volume"), timeline.at(17500,
+                TimeUnit.MILLISECONDS));
+        assertEquals(Arrays.asList("volume"), timeline.at(18,
+                TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("volume"), timeline.at(1, TimeUnit.DAYS));
+
+        // backwards
+        assertEquals(Arrays.asList("title"), timeline.at(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testSameAnswerUntilChange() {
+        Timeline<String> timeline = new Timeline<String>();
+        timeline.add("a", 10, 20, TimeUnit.MICROSECONDS);
+        timeline.add("b", 15, 30, TimeUnit.MICROSECONDS);
+
+        List<String> a = timeline.at(10);
+        assertSame(a, timeline.at(14));
+        List<String> both = timeline.at(15);
+        assertEquals(Arrays.asList("a", "b"), both);
+        assertSame(both, timeline.at(19));
+        assertEquals(Arrays.asList("b"), timeline.at(20));
+
+        // a new effect changes the answer
+        timeline.add("c", 0, 100, TimeUnit.MICROSECONDS);
+        assertEquals(Arrays.asList("b", "c"), timeline.at(21));
+    }
+
+    @Test
+    public void testSameAsScanning() {
+        Random random = new Random(42);
+        Timeline<Integer> timeline = new Timeline<Integer>();
+        long[][] ranges = new long[3000][];
+        for (int i = 0; i < ranges.length; i++) {
+            long start = random.nextInt(1000000);
+            long end = start + random.nextInt(random.nextBoolean() ? 100
+                    : 50000);
+            ranges[i] = new long[] { start, end };
+            timeline.add(i, start, end, TimeUnit.MICROSECONDS);
+        }
+
+        // in order, as media is read, then at random
+        List<Long> times = new ArrayList<Long>();
+        for (long t = 0; t < 1100000; t += 997)
+            times.add(t);
+        for (int i = 0; i < 1000; i++)
+            times.add((long) random.nextInt(1100000));
+
+        for (long t : times) {
+            List<Integer> expected = new ArrayList<Integer>();
+            for (int i = 0; i < ranges.length; i++)
+                if (ranges[i][0] <= t && t < ranges[i][1])
+                    expected.add(i);
+            assertEquals("at " + t, expected, timeline.at(t));
+        }
+        assertEquals(Collections.<Integer> emptyList(), timeline.at(-1));
+    }
+}
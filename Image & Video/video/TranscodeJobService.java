@@ -0,0 +1,789 @@
+package video;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.xuggle.mediatool.IMediaReader;
+import com.xuggle.mediatool.IMediaWriter;
+import com.xuggle.mediatool.MediaToolAdapter;
+import com.xuggle.mediatool.ToolFactory;
+import com.xuggle.mediatool.event.IReadPacketEvent;
+import com.xuggle.xuggler.Global;
+import com.xuggle.xuggler.ICodec;
+import com.xuggle.xuggler.IContainer;
+import com.xuggle.xuggler.IError;
+import com.xuggle.xuggler.IStreamCoder;
+
+/**
+ * Transcodes many files on one machine, a bounded number at a time.
+ *
+ * Jobs are submitted directly or picked up from watched directories. They
+ * are started highest priority first, then in the order they were
+ * submitted, when a worker is free and the memory the job is estimated to
+ * need fits in the memory budget. A job bigger than the whole budget runs
+ * alone. A job waiting for memory holds back the jobs after it, so big jobs
+ * are not starved by small ones.
+ *
+ * Every change of state of a job is appended to a journal file. A service
+ * started on the journal of a previous one, which may have crashed, skips
+ * the jobs which were done or failed and queues again the ones which were
+ * not.
+ */
+public class TranscodeJobService implements Closeable {
+
+    /** The state of a job. */
+
+    public enum State {
+        QUEUED, RUNNING, DONE, FAILED
+    }
+
+    /** Converts files for the service. */
+
+    public interface Transcoder {
+
+        /**
+         * Estimate the memory a transcode of a file needs.
+         *
+         * @param sourceUrl the file to read
+         * @return the memory in megabytes
+         */
+
+        int estimateMemory(String sourceUrl);
+
+        /**
+         * Transcode the file of a job, setting its progress along the way.
+         *
+         * @param job the job, with the source and destination
+         * @throws Exception if the transcode failed
+         */
+
+        void transcode(Job job) throws Exception;
+    }
+
+    /** A file to transcode, and how far it is. */
+
+    public static class Job {
+
+        private final long mId;
+
+        private final String mSourceUrl;
+
+        private final String mDestinationUrl;
+
+        private final int mPriority;
+
+        private volatile State mState;
+
+        private volatile double mProgress;
+
+        private volatile Exception mFailure;
+
+        private final CountDownLatch mFinished = new CountDownLatch(1);
+
+        // the memory reserved for the job while it runs, in megabytes
+
+        private int mMemory;
+
+        Job(long id, String sourceUrl, String destinationUrl, int priority,
+                State state) {
+            mId = id;
+            mSourceUrl = sourceUrl;
+            mDestinationUrl = destinationUrl;
+            mPriority = priority;
+            mState = state;
+            if (isFinished(state)) {
+                mProgress = state == State.DONE ? 1 : 0;
+                mFinished.countDown();
+            }
+        }
+
+        public long getId() {
+            return mId;
+        }
+
+        public String getSourceUrl() {
+            return mSourceUrl;
+        }
+
+        public String getDestinationUrl() {
+            return mDestinationUrl;
+        }
+
+        /** Jobs with a higher priority are started first. */
+
+        public int getPriority() {
+            return mPriority;
+        }
+
+        public State getState() {
+            return mState;
+        }
+
+        /** How much of the source was transcoded, from 0 to 1. */
+
+        public double getProgress() {
+            return mProgress;
+        }
+
+        /**
+         * Report how much of the source was transcoded. The progress never
+         * goes back, so that the streams of a file, which are not exactly
+         * interleaved, can report it in turn.
+         *
+         * @param progress from 0 to 1
+         */
+
+        public void setProgress(double progress) {
+            if (progress > mProgress)
+                mProgress = Math.min(1, progress);
+        }
+
+        /** Why the job failed, null if it did not or the failure is lost. */
+
+        public Exception getFailure() {
+            return mFailure;
+        }
+
+        /**
+         * Wait until the job is done or failed.
+         *
+         * @return the final state
+         */
+
+        public State await() throws InterruptedException {
+            mFinished.await();
+            return mState;
+        }
+
+        /**
+         * Wait until the job is done or failed, or a timeout.
+         *
+         * @return true if the job finished in time
+         */
+
+        public boolean await(long timeout, TimeUnit unit)
+                throws InterruptedException {
+            return mFinished.await(timeout, unit);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("job %d %s %.0f%% %s -> %s", mId, mState,
+                    mProgress * 100, mSourceUrl, mDestinationUrl);
+        }
+
+        private void finish(State state, Exception failure) {
+            if (state == State.DONE)
+                mProgress = 1;
+            mFailure = failure;
+            mState = state;
+            mFinished.countDown();
+        }
+    }
+
+    /**
+     * Transcodes with an {@link IMediaReader} feeding an {@link IMediaWriter}
+     * which picks the format and codecs from the destination extension, and
+     * reports the progress from the time stamps of the packets read.
+     */
+
+    public static class MediaToolTranscoder implements Transcoder {
+        // memory of the coders, buffers and library, whatever the file
+
+        private static final int BASE_MEMORY = 32;
+
+        // decoded pictures held at a time, counting the encoder references
+        // and the converted images
+
+        private static final int FRAMES_IN_MEMORY = 24;
+
+        /** {@inheritDoc} */
+
+        @Override
+        public int estimateMemory(String sourceUrl) {
+            IContainer container = StreamCopier.open(sourceUrl);
+            try {
+                if (container.queryStreamMetaData() < 0)
+                    throw new RuntimeException("could not probe " + sourceUrl);
+
+                long bytes = 0;
+                for (int i = 0; i < container.getNumStreams(); i++) {
+                    IStreamCoder coder = container.getStream(i)
+                            .getStreamCoder();
+                    if (coder.getCodecType() == ICodec.Type.CODEC_TYPE_VIDEO)
+                        bytes += 4L * coder.getWidth() * coder.getHeight()
+                                * FRAMES_IN_MEMORY;
+                }
+                return BASE_MEMORY + (int) ((bytes + (1 << 20) - 1) >> 20);
+            } finally {
+                container.close();
+            }
+        }
+
+        /** {@inheritDoc} */
+
+        @Override
+        public void transcode(Job job) {
+            // the container is opened here rather than by the reader, to get
+            // its duration before reading
+            IContainer container = StreamCopier.open(job.getSourceUrl());
+            try {
+                if (container.queryStreamMetaData() < 0)
+                    throw new RuntimeException("could not probe "
+                            + job.getSourceUrl());
+
+                IMediaReader reader = ToolFactory.makeReader(container);
+                IMediaWriter writer = ToolFactory.makeWriter(
+                        job.getDestinationUrl(), reader);
+                reader.addListener(writer);
+                reader.addListener(new ProgressTracker(job, container
+                        .getStartTime(), container.getDuration()));
+                try {
+                    IError error;
+                    while ((error = reader.readPacket()) == null)
+                        ;
+                    if (error.getType() != IError.Type.ERROR_EOF)
+                        throw new RuntimeException("could not read "
+                                + job.getSourceUrl() + ": "
+                                + error.getDescription());
+                } finally {
+                    if (reader.isOpen())
+                        reader.close();
+                    if (writer.isOpen())
+                        writer.close();
+                }
+            } finally {
+                container.close();
+            }
+        }
+    }
+
+    // sets the progress of a job from the packets read
+
+    private static class ProgressTracker extends MediaToolAdapter {
+        private final Job mJob;
+
+        private final long mStart;
+
+        private final long mDuration;
+
+        ProgressTracker(Job job, long start, long duration) {
+            mJob = job;
+            mStart = start == Global.NO_PTS ? 0 : start;
+            mDuration = duration;
+        }
+
+        /** {@inheritDoc} */
+
+        @Override
+        public void onReadPacket(IReadPacketEvent event) {
+            long timeStamp = StreamCopier.timeStamp(event.getPacket());
+            if (timeStamp != Global.NO_PTS && mDuration != Global.NO_PTS
+                    && mDuration > 0)
+                mJob.setProgress((double) (timeStamp - mStart) / mDuration);
+            super.onReadPacket(event);
+        }
+    }
+
+    // highest priority first, then first submitted first
+
+    private static final Comparator<Job> ORDER = new Comparator<Job>() {
+        @Override
+        public int compare(Job j1, Job j2) {
+            if (j1.mPriority != j2.mPriority)
+                return j1.mPriority > j2.mPriority ? -1 : 1;
+            return Long.compare(j1.mId, j2.mId);
+        }
+    };
+
+    private final Transcoder mTranscoder;
+
+    private final int mMemoryBudget;
+
+    // a permit per free worker
+
+    private final Semaphore mSlots;
+
+    // a permit per free megabyte of the budget
+
+    private final Semaphore mMemory;
+
+    private final PriorityBlockingQueue<Job> mQueue = new PriorityBlockingQueue<Job>(
+            11, ORDER);
+
+    // all jobs by id, and the ones which did not fail by source and
+    // destination
+
+    private final Map<Long, Job> mJobs = new LinkedHashMap<Long, Job>();
+
+    private final Map<String, Job> mActive = new HashMap<String, Job>();
+
+    private long mNextId;
+
+    private final File mJournal;
+
+    private final Writer mJournalWriter;
+
+    private final ExecutorService mWorkers;
+
+    private final Thread mDispatcher;
+
+    private ScheduledExecutorService mWatcher;
+
+    private long mPollInterval = 1000;
+
+    private boolean mClosed;
+
+    /**
+     * Create a service transcoding with an {@link MediaToolTranscoder}.
+     *
+     * @see #TranscodeJobService(File, int, int, Transcoder)
+     */
+
+    public TranscodeJobService(File journal, int workers, int memoryBudget)
+            throws IOException {
+        this(journal, workers, memoryBudget, new MediaToolTranscoder());
+    }
+
+    /**
+     * Create a service, and queue the unfinished jobs of the journal.
+     *
+     * @param journal where the state of the jobs is kept, created if it does
+     *        not exist
+     * @param workers number of jobs run at the same time
+     * @param memoryBudget memory the running jobs may take together, in
+     *        megabytes
+     * @param transcoder what runs the jobs
+     * @throws IOException if the journal could not be read or written
+     */
+
+    public TranscodeJobService(File journal, int workers, int memoryBudget,
+            Transcoder transcoder) throws IOException {
+        if (workers < 1)
+            throw new IllegalArgumentException("invalid worker count "
+                    + workers);
+        if (memoryBudget < 1)
+            throw new IllegalArgumentException("invalid memory budget "
+                    + memoryBudget);
+        mTranscoder = transcoder;
+        mMemoryBudget = memoryBudget;
+        mSlots = new Semaphore(workers);
+        mMemory = new Semaphore(memoryBudget);
+        mJournal = journal;
+
+        replay();
+        mJournalWriter = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(journal, true), StandardCharsets.UTF_8));
+
+        mWorkers = Executors.newFixedThreadPool(workers, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "transcode-worker-"
+                        + mCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mDispatcher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                dispatch();
+            }
+        }, "transcode-dispatcher");
+        mDispatcher.setDaemon(true);
+        mDispatcher.start();
+    }
+
+    /**
+     * How often watched directories are listed, in milliseconds, 1 second by
+     * default. A file is picked up once its size did not change between two
+     * listings, so that files still being copied are not.
+     */
+
+    public void setPollInterval(long pollInterval) {
+        mPollInterval = pollInterval;
+    }
+
+    /**
+     * Submit a file to transcode. If the same file is queued, running or was
+     * already transcoded to the same destination, by this service or one
+     * before it on the same journal, that job is returned and nothing is
+     * done. Only failed jobs are submitted again.
+     *
+     * @param sourceUrl the file to read
+     * @param destinationUrl the file to write
+     * @param priority jobs with a higher priority are started first
+     * @return the job
+     * @throws IOException if the job could not be written to the journal
+     */
+
+    public Job submit(String sourceUrl, String destinationUrl, int priority)
+            throws IOException {
+        Job job;
+        synchronized (this) {
+            if (mClosed)
+                throw new IllegalStateException("service is closed");
+
+            String key = key(sourceUrl, destinationUrl);
+            Job active = mActive.get(key);
+            if (active != null)
+                return active;
+
+            job = new Job(mNextId++, sourceUrl, destinationUrl, priority,
+                    State.QUEUED);
+            mJobs.put(job.mId, job);
+            mActive.put(key, job);
+            record(job);
+        }
+        mQueue.add(job);
+        return job;
+    }
+
+    /**
+     * Transcode the files which are or will be put in a directory. Only the
+     * files directly in the directory are picked up, each once.
+     *
+     * @param directory the directory of the files to transcode
+     * @param outputDirectory where the files are written, with the same name
+     *        and another extension, not the watched directory
+     * @param suffix the extension of the written files, with the dot
+     * @param priority of the jobs
+     */
+
+    public synchronized void watch(File directory, File outputDirectory,
+            String suffix, int priority) {
+        if (mClosed)
+            throw new IllegalStateException("service is closed");
+        if (directory.getAbsoluteFile().equals(
+                outputDirectory.getAbsoluteFile()))
+            throw new IllegalArgumentException(
+                    "cannot write into the watched directory " + directory);
+
+        if (mWatcher == null)
+            mWatcher = Executors
+                    .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "transcode-watcher");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        mWatcher.scheduleWithFixedDelay(new Watcher(directory,
+                outputDirectory, suffix, priority), 0, mPollInterval,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /** The job with an id, null if there is none. */
+
+    public synchronized Job getJob(long id) {
+        return mJobs.get(id);
+    }
+
+    /** All jobs, including those of the journal, in submission order. */
+
+    public synchronized List<Job> getJobs() {
+        return new ArrayList<Job>(mJobs.values());
+    }
+
+    /**
+     * Stop watching directories and starting jobs, and wait for the running
+     * jobs to finish. The jobs still queued are left in the journal for the
+     * next service.
+     */
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (mClosed)
+                return;
+            mClosed = true;
+            if (mWatcher != null)
+                mWatcher.shutdownNow();
+        }
+
+        mDispatcher.interrupt();
+        mWorkers.shutdown();
+        try {
+            mDispatcher.join();
+            mWorkers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (this) {
+            mJournalWriter.close();
+        }
+    }
+
+    // start the jobs in order, as workers and memory become available
+
+    private void dispatch() {
+        try {
+            while (true) {
+                mSlots.acquire();
+                Job job = mQueue.take();
+
+                int memory;
+                try {
+                    memory = mTranscoder.estimateMemory(job.mSourceUrl);
+                } catch (RuntimeException e) {
+                    mSlots.release();
+                    finish(job, State.FAILED, e);
+                    continue;
+                }
+                job.mMemory = Math.max(1, Math.min(memory, mMemoryBudget));
+                mMemory.acquire(job.mMemory);
+
+                synchronized (this) {
+                    if (mClosed) {
+                        mMemory.release(job.mMemory);
+                        mSlots.release();
+                        return;
+                    }
+                    mWorkers.execute(new Worker(job));
+                }
+            }
+        } catch (InterruptedException e) {
+            // closed
+        }
+    }
+
+    // runs a job and gives its worker and memory back
+
+    private class Worker implements Runnable {
+        private final Job mJob;
+
+        Worker(Job job) {
+            mJob = job;
+        }
+
+        @Override
+        public void run() {
+            try {
+                mJob.mState = State.RUNNING;
+                synchronized (TranscodeJobService.this) {
+                    record(mJob);
+                }
+                mTranscoder.transcode(mJob);
+                finish(mJob, State.DONE, null);
+            } catch (Exception e) {
+                finish(mJob, State.FAILED, e);
+            } finally {
+                mMemory.release(mJob.mMemory);
+                mSlots.release();
+            }
+        }
+    }
+
+    private void finish(Job job, State state, Exception failure) {
+        synchronized (this) {
+            job.mState = state;
+            if (state == State.FAILED)
+                mActive.remove(key(job.mSourceUrl, job.mDestinationUrl), job);
+            try {
+                record(job);
+            } catch (IOException e) {
+                // the job is done again after a restart
+            }
+        }
+        job.finish(state, failure);
+    }
+
+    // picks up the files of a directory once they stop growing
+
+    private class Watcher implements Runnable {
+        private final File mDirectory;
+
+        private final File mOutputDirectory;
+
+        private final String mSuffix;
+
+        private final int mPriority;
+
+        // sizes at the last listing of the files not submitted yet
+
+        private final Map<File, Long> mSizes = new HashMap<File, Long>();
+
+        private final Set<File> mSubmitted = new HashSet<File>();
+
+        Watcher(File directory, File outputDirectory, String suffix,
+                int priority) {
+            mDirectory = directory;
+            mOutputDirectory = outputDirectory;
+            mSuffix = suffix;
+            mPriority = priority;
+        }
+
+        @Override
+        public void run() {
+            File[] files = mDirectory.listFiles();
+            if (files == null)
+                return;
+
+            for (File file : files) {
+                if (!file.isFile() || file.isHidden()
+                        || mSubmitted.contains(file))
+                    continue;
+
+                long size = file.length();
+                Long last = mSizes.put(file, size);
+                if (last == null || last != size || size == 0)
+                    continue;
+
+                String name = file.getName();
+                if (name.lastIndexOf('.') > 0)
+                    name = name.substring(0, name.lastIndexOf('.'));
+                try {
+                    submit(file.getPath(), new File(mOutputDirectory, name
+                            + mSuffix).getPath(), mPriority);
+                } catch (IOException e) {
+                    // tried again at the next listing
+                    continue;
+                } catch (IllegalStateException e) {
+                    // closed
+                    return;
+                }
+                mSizes.remove(file);
+                mSubmitted.add(file);
+            }
+        }
+    }
+
+    // the journal has a line per change of state of a job: id, state,
+    // priority, source and destination, separated by tabs, the urls encoded
+
+    private void record(Job job) throws IOException {
+        mJournalWriter.write(line(job));
+        mJournalWriter.flush();
+    }
+
+    private static String line(Job job) {
+        try {
+            return job.mId + "\t" + job.mState + "\t" + job.mPriority + "\t"
+                    + URLEncoder.encode(job.mSourceUrl, "UTF-8") + "\t"
+                    + URLEncoder.encode(job.mDestinationUrl, "UTF-8") + "\n";
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    // restore the jobs of the journal, queue the unfinished ones, and
+    // rewrite the journal with only the last state of each job
+
+    private void replay() throws IOException {
+        if (!mJournal.exists())
+            return;
+
+        Map<Long, String[]> last = new LinkedHashMap<Long, String[]>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(mJournal), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // the last line can be cut short by a crash
+                String[] fields = line.split("\t");
+                if (fields.length == 5)
+                    last.put(Long.parseLong(fields[0]), fields);
+            }
+        }
+
+        for (String[] fields : last.values()) {
+            State state = State.valueOf(fields[1]);
+            if (!isFinished(state))
+                state = State.QUEUED;
+            Job job = new Job(Long.parseLong(fields[0]), URLDecoder.decode(
+                    fields[3], "UTF-8"), URLDecoder.decode(fields[4], "UTF-8"),
+                    Integer.parseInt(fields[2]), state);
+            mJobs.put(job.mId, job);
+            mNextId = Math.max(mNextId, job.mId + 1);
+            if (state == State.FAILED)
+                continue;
+            mActive.put(key(job.mSourceUrl, job.mDestinationUrl), job);
+            if (state == State.QUEUED)
+                mQueue.add(job);
+        }
+
+        File compacted = new File(mJournal.getPath() + ".tmp");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(
+                compacted), StandardCharsets.UTF_8)) {
+            for (Job job : mJobs.values())
+                writer.write(line(job));
+        }
+        Files.move(compacted.toPath(), mJournal.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String key(String sourceUrl, String destinationUrl) {
+        return sourceUrl + "\n" + destinationUrl;
+    }
+
+    private static boolean isFinished(State state) {
+        return state == State.DONE || state == State.FAILED;
+    }
+
+    /**
+     * Transcode the files put in a directory, until killed, printing the
+     * progress of the running jobs.
+     *
+     * @param args journal, input directory, output directory, output
+     *        extension, and optionally the number of workers and the memory
+     *        budget in megabytes
+     */
+
+    public static void main(String[] args) throws IOException,
+            InterruptedException {
+        if (args.length < 4) {
+            System.out.println("usage: TranscodeJobService journal input-dir"
+                    + " output-dir suffix [workers [memory-mb]]");
+            return;
+        }
+        int workers = args.length > 4 ? Integer.parseInt(args[4]) : Runtime
+                .getRuntime().availableProcessors();
+        int memory = args.length > 5 ? Integer.parseInt(args[5]) : (int) (Runtime
+                .getRuntime().maxMemory() >> 20) / 2;
+
+        TranscodeJobService service = new TranscodeJobService(new File(
+                args[0]), workers, memory);
+        service.watch(new File(args[1]), new File(args[2]), args[3], 0);
+        while (true) {
+            Thread.sleep(5000);
+            for (Job job : service.getJobs())
+                if (job.getState() == State.RUNNING)
+                    System.out.println(job);
+        }
+    }
+}
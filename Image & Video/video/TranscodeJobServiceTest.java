@@ -0,0 +1,267 @@
+package video;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class TranscodeJobServiceTest {
+
+    // records the jobs it runs, holding each until released
+
+    private static class FakeTranscoder implements
+            TranscodeJobService.Transcoder {
+        private final int mMemory;
+        final CountDownLatch release;
+        final List<String> sources = Collections
+                .synchronizedList(new ArrayList<String>());
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+
+        FakeTranscoder(int memory, CountDownLatch release) {
+            mMemory = memory;
+            this.release = release;
+        }
+
+        @Override
+        public int estimateMemory(String sourceUrl) {
+            return sourceUrl.startsWith("huge") ? 100000 : mMemory;
+        }
+
+        @Override
+        public void transcode(TranscodeJobService.Job job)
+                throws InterruptedException {
+            sources.add(job.getSourceUrl());
+            int now = running.incrementAndGet();
+            while (maxRunning.get() < now)
+                maxRunning.compareAndSet(maxRunning.get(), now);
+            try {
+                job.setProgress(0.5);
+                release.await();
+                if (job.getSourceUrl().startsWith("bad"))
+                    throw new IllegalStateException(job.getSourceUrl());
+            } finally {
+                running.decrementAndGet();
+            }
+        }
+    }
+
+    private static File journal() throws IOException {
+        File journal = File.createTempFile("transcode-", ".journal");
+        journal.delete();
+        journal.deleteOnExit();
+        return journal;
+    }
+
+    @Test
+    public void testJobsStartByPriority() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        FakeTranscoder transcoder = new FakeTranscoder(10, release);
+        TranscodeJobService service = new TranscodeJobService(journal(), 1,
+                100, transcoder);
+        try {
+            TranscodeJobService.Job first = service.submit("first", "a", 0);
+            while (first.getState() != TranscodeJobService.State.RUNNING)
+                Thread.sleep(1);
+            assertEquals(0.5, first.getProgress(), 0);
+
+            TranscodeJobService.Job last = service.submit("low", "b", -1);
+            service.submit("normal", "c", 0);
+            service.submit("high", "d", 5);
+            service.submit("normal-2", "e", 0);
+            release.countDown();
+
+            assertEquals(TranscodeJobService.State.DONE, last.await());
+            assertEquals(1, first.getProgress(), 0);
+        } finally {
+            service.close();
+        }
+        assertEquals(Arrays.asList("first", "high", "normal", "normal-2",
+                "low"), transcoder.sources);
+    }
+
+    @Test
+    public void testMemoryLimitsRunningJobs() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        FakeTranscoder transcoder = new FakeTranscoder(60, release);
+        TranscodeJobService service = new TranscodeJobService(journal(), 4,
+                100, transcoder);
+        List<TranscodeJobService.Job> jobs = new ArrayList<TranscodeJobService.Job>();
+        try {
+            for (int i = 0; i < 3; i++)
+                jobs.add(service.submit("file-" + i, "out-" + i, 0));
+            // bigger than the budget, it still runs, alone
+            jobs.add(service.submit("huge", "out-huge", 0));
+            jobs.add(service.submit("bad", "out-bad", 0));
+
+            Thread.sleep(100);
+            assertEquals(1, transcoder.running.get());
+            release.countDown();
+
+            for (TranscodeJobService.Job job : jobs)
+                job.await();
+        } finally {
+            service.close();
+        }
+        assertEquals(1, transcoder.maxRunning.get());
+        assertEquals(TranscodeJobService.State.DONE, jobs.get(3).getState());
+        assertEquals(TranscodeJobService.State.FAILED, jobs.get(4).getState());
+        assertEquals("bad", jobs.get(4).getFailure().getMessage());
+    }
+
+    @Test
+    public void testRestartSkipsFinishedJobs() throws Exception {
+        File journal = journal();
+        CountDownLatch release = new CountDownLatch(1);
+        FakeTranscoder transcoder = new FakeTranscoder(10, new CountDownLatch(
+                0));
+        TranscodeJobService service = new TranscodeJobService(journal, 1,
+                100, transcoder);
+        try {
+            service.submit("done", "a", 0).await();
+            service.submit("bad", "b", 0).await();
+        } finally {
+            service.close();
+        }
+
+        // copy the journal while a job is running and another is queued, as
+        // a crash would leave it
+        transcoder = new FakeTranscoder(10, release);
+        service = new TranscodeJobService(journal, 1, 100, transcoder);
+        File crashed = journal();
+        try {
+            service.submit("running", "c", 0);
+            service.submit("queued", "d", 0);
+            while (transcoder.running.get() == 0)
+                Thread.sleep(1);
+            Files.copy(journal.toPath(), crashed.toPath());
+            release.countDown();
+        } finally {
+            service.close();
+        }
+
+        transcoder = new FakeTranscoder(10, new CountDownLatch(0));
+        TranscodeJobService restarted = new TranscodeJobService(crashed, 1,
+                100, transcoder);
+        try {
+            List<TranscodeJobService.Job> jobs = restarted.getJobs();
+            assertEquals(4, jobs.size());
+            for (TranscodeJobService.Job job : jobs)
+                job.await();
+            assertEquals(TranscodeJobService.State.FAILED, jobs.get(1)
+                    .getState());
+            assertSame(jobs.get(0), restarted.submit("done", "a", 0));
+
+            TranscodeJobService.Job again = restarted.submit("done", "z", 0);
+            assertEquals(4, again.getId());
+            again.await();
+        } finally {
+            restarted.close();
+        }
+        assertEquals(Arrays.asList("running", "queued", "done"),
+                transcoder.sources);
+    }
+
+    @Test
+    public void testWatchedFilesAreSubmittedOnce() throws Exception {
+        File input = Files.createTempDirectory("transcode-in").toFile();
+        File output = Files.createTempDirectory("transcode-out").toFile();
+        FakeTranscoder transcoder = new FakeTranscoder(10, new CountDownLatch(
+                0));
+        TranscodeJobService service = new TranscodeJobService(journal(), 2,
+                100, transcoder);
+        File file = new File(input, "clip.MTS");
+        try {
+            try (FileOutputStream out = new FileOutputStream(file)) {
+                out.write(new byte[100]);
+            }
+            service.setPollInterval(20);
+            service.watch(input, output, ".mp4", 0);
+
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (service.getJobs().isEmpty()
+                    && System.nanoTime() < deadline)
+                Thread.sleep(10);
+            TranscodeJobService.Job job = service.getJobs().get(0);
+            assertEquals(TranscodeJobService.State.DONE, job.await());
+            assertEquals(file.getPath(), job.getSourceUrl());
+            assertEquals(new File(output, "clip.mp4").getPath(), job
+                    .getDestinationUrl());
+
+            Thread.sleep(100);
+            assertEquals(1, service.getJobs().size());
+        } finally {
+            service.close();
+            file.delete();
+            input.delete();
+            output.delete();
+        }
+    }
+
+    @Test
+    public void testRestartDoesNotSubmitQueuedJobsAgain() throws Exception {
+        File input = Files.createTempDirectory("transcode-in").toFile();
+        File output = Files.createTempDirectory("transcode-out").toFile();
+        File file = new File(input, "clip.MTS");
+        File destination = new File(output, "clip.mp4");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[100]);
+        }
+
+        // a crash left the watched file queued
+        File journal = journal();
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(
+                journal), StandardCharsets.UTF_8)) {
+            writer.write("0\tQUEUED\t0\t"
+                    + URLEncoder.encode(file.getPath(), "UTF-8") + "\t"
+                    + URLEncoder.encode(destination.getPath(), "UTF-8")
+                    + "\n");
+        }
+
+        CountDownLatch release = new CountDownLatch(1);
+        FakeTranscoder transcoder = new FakeTranscoder(10, release);
+        TranscodeJobService service = new TranscodeJobService(journal, 2,
+                100, transcoder);
+        try {
+            TranscodeJobService.Job job = service.getJob(0);
+            while (job.getState() != TranscodeJobService.State.RUNNING)
+                Thread.sleep(1);
+            assertSame(job, service.submit(file.getPath(), destination
+                    .getPath(), 0));
+
+            // the watcher lists the file a few times while the job runs
+            service.setPollInterval(20);
+            service.watch(input, output, ".mp4", 0);
+            Thread.sleep(200);
+            assertEquals(1, service.getJobs().size());
+
+            release.countDown();
+            assertEquals(TranscodeJobService.State.DONE, job.await());
+        } finally {
+            release.countDown();
+            service.close();
+            file.delete();
+            input.delete();
+            output.delete();
+        }
+        assertEquals(Arrays.asList(file.getPath()), transcoder.sources);
+        assertEquals(1, transcoder.maxRunning.get());
+    }
+
+}
@@ -1,12 +1,16 @@
 package video;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
 import java.awt.Color;
 import java.awt.Graphics2D;
-import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
-import java.nio.ShortBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import javax.imageio.ImageIO;
 
@@ -16,14 +20,11 @@ import com.xuggle.mediatool.IMediaDebugListener.Event;
 import com.xuggle.mediatool.IMediaReader;
 import com.xuggle.mediatool.IMediaTool;
 import com.xuggle.mediatool.IMediaWriter;
-import com.xuggle.mediatool.MediaToolAdapter;
 import com.xuggle.mediatool.ToolFactory;
 import com.xuggle.mediatool.event.IAudioSamplesEvent;
 import com.xuggle.mediatool.event.IVideoPictureEvent;
-import com.xuggle.xuggler.ICodec;
+import com.xuggle.xuggler.IAudioSamples;
 import com.xuggle.xuggler.IContainer;
-import com.xuggle.xuggler.IStream;
-import com.xuggle.xuggler.IStreamCoder;
 
 public class XuggleTest {
 
@@ -34,72 +35,55 @@ public class XuggleTest {
 
     @Test
     public void testBasicInfo() {
-        // first we create a Xuggler container object
-        IContainer container = IContainer.make();
-
-        // we attempt to open up the container
-        int result = container.open(filename, IContainer.Type.READ, null);
-
-        // check if the operation was successful
-        if (result < 0)
-            throw new RuntimeException("Failed to open media file");
-
-        // query how many streams the call to open found
-        int numStreams = container.getNumStreams();
+        // the container and stream parameters, from the header of the file
+        MediaProbe.MediaInfo info = MediaProbe.probe(filename);
+        System.out.println(info);
 
-        // query for the total duration
-        long duration = container.getDuration();
-
-        // query for the file size
-        long fileSize = container.getFileSize();
-
-        // query for the bit rate
-        long bitRate = container.getBitRate();
-
-        System.out.println("Number of streams: " + numStreams);
-        System.out.println("Duration (ms): " + duration);
-        System.out.println("File Size (bytes): " + fileSize);
-        System.out.println("Bit Rate: " + bitRate);
-
-        // iterate through the streams to print their meta data
-        for (int i = 0; i < numStreams; i++) {
-
-            // find the stream object
-            IStream stream = container.getStream(i);
-
-            // get the pre-configured decoder that can decode this stream;
-            IStreamCoder coder = stream.getStreamCoder();
-
-            System.out.println("*** Start of Stream Info ***");
-
-            System.out.printf("stream %d: ", i);
-            System.out.printf("type: %s; ", coder.getCodecType());
-            System.out.printf("codec: %s; ", coder.getCodecID());
-            System.out.printf("duration: %s; ", stream.getDuration());
-            System.out.printf("start time: %s; ", container.getStartTime());
-            System.out.printf("timebase: %d/%d; ", stream.getTimeBase()
-                    .getNumerator(), stream.getTimeBase().getDenominator());
-            System.out.printf("coder tb: %d/%d; ", coder.getTimeBase()
-                    .getNumerator(), coder.getTimeBase().getDenominator());
-            System.out.println();
-
-            if (coder.getCodecType() == ICodec.Type.CODEC_TYPE_AUDIO) {
-                System.out.printf("sample rate: %d; ", coder.getSampleRate());
-                System.out.printf("channels: %d; ", coder.getChannels());
-                System.out.printf("format: %s", coder.getSampleFormat());
-            } else if (coder.getCodecType() == ICodec.Type.CODEC_TYPE_VIDEO) {
-                System.out.printf("width: %d; ", coder.getWidth());
-                System.out.printf("height: %d; ", coder.getHeight());
-                System.out.printf("format: %s; ", coder.getPixelType());
-                System.out.printf("frame-rate: %5.2f; ", coder.getFrameRate()
-                        .getDouble());
-            }
+        assertTrue(info.getStreams().size() > 0);
+        assertTrue(info.getDuration() > 0);
+    }
 
-            System.out.println();
-            System.out.println("*** End of Stream Info ***");
+    @Test
+    public void testSceneChangeStoryboard() throws IOException {
+        SceneChangeStoryboard.generate(targetFilename, "SRE", 320, 180,
+                "D:/worksap/HUE-kickoff/team-introduction/SRE-storyboard.png");
+    }
 
+    @Test
+    public void testConcatenateByStreamCopy() {
+        String target = "D:/worksap/HUE-kickoff/team-introduction/SRE-twice.mp4";
+        List<String> sources = Arrays.asList(targetFilename, targetFilename);
+
+        assertTrue(StreamCopier.isCompatible(sources));
+        ConcatenateAudioAndVideo.concatenate(targetFilename, targetFilename,
+                target);
+
+        IContainer source = StreamCopier.open(targetFilename);
+        IContainer result = StreamCopier.open(target);
+        try {
+            assertEquals(2 * source.getDuration(), result.getDuration(),
+                    source.getDuration() / 100);
+        } finally {
+            source.close();
+            result.close();
         }
+    }
 
+    @Test
+    public void testConcatenateByTranscoding() {
+        String target = "D:/worksap/HUE-kickoff/team-introduction/SRE-thrice.mp4";
+        ConcatenateAudioAndVideo.transcode(Arrays.asList(targetFilename,
+                targetFilename, targetFilename), target);
+
+        IContainer source = StreamCopier.open(targetFilename);
+        IContainer result = StreamCopier.open(target);
+        try {
+            assertEquals(3 * source.getDuration(), result.getDuration(),
+                    source.getDuration() / 100);
+        } finally {
+            source.close();
+            result.close();
+        }
     }
 
     @Test
@@ -119,91 +103,104 @@ public class XuggleTest {
             ;
     }
 
-    // reader -> addStaticImage -> reduceVolume -> writer 
+    @Test
+    public void testParallelTranscoding() throws IOException,
+            InterruptedException {
+        String target = "D:/worksap/HUE-kickoff/team-introduction/SRE-parallel.mp4";
+        new ParallelTranscoder(Runtime.getRuntime().availableProcessors())
+                .transcode(filename, target);
+
+        IContainer source = StreamCopier.open(filename);
+        IContainer result = StreamCopier.open(target);
+        try {
+            assertEquals(source.getDuration(), result.getDuration(),
+                    source.getDuration() / 100);
+        } finally {
+            source.close();
+            result.close();
+        }
+    }
+
+    // reader -> timeline (logo, volume) -> writer
     @Test
     public void testModifyMedia() {
+        // no buffer images, the logo is blended into the decoded pictures
         IMediaReader mediaReader = ToolFactory.makeReader(targetFilename);
 
-        // configure it to generate buffer images
-        mediaReader
-                .setBufferedImageTypeToGenerate(BufferedImage.TYPE_3BYTE_BGR);
-
         IMediaWriter mediaWriter = ToolFactory.makeWriter(targetAvi,
                 mediaReader);
 
-        IMediaTool imageMediaTool = new StaticImageMediaTool(targetImage);
-        IMediaTool audioVolumeMediaTool = new VolumeAdjustMediaTool(0.3);
-
-        mediaReader.addListener(imageMediaTool);
-        imageMediaTool.addListener(audioVolumeMediaTool);
-        audioVolumeMediaTool.addListener(mediaWriter);
+        // the logo blinks on every odd second from 17 s, and the volume is
+        // reduced from 16 s
+        long duration = MediaProbe.probe(targetFilename).getDuration();
+        Timeline<TimelineMediaTool.VideoEffect> video =
+                new Timeline<TimelineMediaTool.VideoEffect>();
+        LogoEffect logo = new LogoEffect(targetImage);
+        for (long second = 17; second * 1000000 < duration; second += 2)
+            video.add(logo, second, second + 1, TimeUnit.SECONDS);
+        Timeline<TimelineMediaTool.AudioEffect> audio =
+                new Timeline<TimelineMediaTool.AudioEffect>();
+        audio.add(new VolumeEffect(0.3), 16, Long.MAX_VALUE, TimeUnit.SECONDS);
+
+        IMediaTool timelineMediaTool = new TimelineMediaTool(video, audio);
+        mediaReader.addListener(timelineMediaTool);
+        timelineMediaTool.addListener(mediaWriter);
 
         while (mediaReader.readPacket() == null)
             ;
     }
 
-    private static class StaticImageMediaTool extends MediaToolAdapter {
+    private static class LogoEffect implements TimelineMediaTool.VideoEffect {
 
-        private BufferedImage logoImage;
+        private YuvOverlay overlay;
 
-        public StaticImageMediaTool(String imageFile) {
+        public LogoEffect(String imageFile) {
+            BufferedImage logoImage;
             try {
                 logoImage = ImageIO.read(new File(imageFile));
             } catch (IOException e) {
                 e.printStackTrace();
                 throw new RuntimeException("could not open file");
             }
+
+            // the logo over a white rectangle, rendered once
+            BufferedImage background = new BufferedImage(logoImage.getWidth(),
+                    logoImage.getHeight(), BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g = background.createGraphics();
+            g.setColor(Color.WHITE);
+            g.fillRect(0, 0, logoImage.getWidth(), logoImage.getHeight());
+            g.drawImage(logoImage, 0, 0, null);
+            g.dispose();
+
+            // inset by the size of the logo
+            overlay = new YuvOverlay(background);
+            overlay.setPosition(logoImage.getWidth(), logoImage.getHeight());
         }
 
         @Override
-        public void onVideoPicture(IVideoPictureEvent event) {
-            BufferedImage image = event.getImage();
-
-            long ts = event.getTimeStamp();
-            if (ts / 1000000 > 15) {
-                if (ts / 1000000 % 2 == 1) {
-                    Graphics2D g = image.createGraphics();
-                    Rectangle2D bounds = new Rectangle2D.Float(0, 0,
-                            logoImage.getWidth(), logoImage.getHeight());
-
-                    // compute the amount to inset the time stamp and translate the image to that position
-                    double insetX = bounds.getWidth();
-                    double insetY = bounds.getHeight();
-                    //            g.translate(inset, event.getImage().getHeight() - inset);
-                    g.translate(insetX, insetY);
-
-                    g.setColor(Color.WHITE);
-                    g.fill(bounds);
-                    g.setColor(Color.BLACK);
-                    g.drawImage(logoImage, 0, 0, null);
-                }
-                // call parent which will pass the video to next tool in chain
-                super.onVideoPicture(event);
-            }
+        public void apply(IVideoPictureEvent event) {
+            overlay.apply(event.getPicture());
         }
     }
 
-    private static class VolumeAdjustMediaTool extends MediaToolAdapter {
+    private static class VolumeEffect implements TimelineMediaTool.AudioEffect {
 
         private double mVolume;
 
-        public VolumeAdjustMediaTool(double volume) {
+        private AudioGain mGain;
+
+        public VolumeEffect(double volume) {
             mVolume = volume;
         }
 
         @Override
-        public void onAudioSamples(IAudioSamplesEvent event) {
-            long ts = event.getTimeStamp();
-            if (ts / 1000000 > 15) {
-                ShortBuffer buffer = event.getAudioSamples().getByteBuffer()
-                        .asShortBuffer();
-
-                for (int i = 0; i < buffer.limit(); ++i) {
-                    buffer.put(i, (short) (buffer.get(i) * mVolume));
-                }
-
-                super.onAudioSamples(event);
+        public void apply(IAudioSamplesEvent event) {
+            IAudioSamples samples = event.getAudioSamples();
+            if (mGain == null || mGain.getChannels() != samples.getChannels()) {
+                mGain = new AudioGain(samples.getChannels());
+                mGain.setGain(mVolume);
             }
+            mGain.process(samples.getByteBuffer().asShortBuffer());
         }
 
     }
@@ -214,55 +211,102 @@ public class XuggleTest {
         String target1 = "D:/worksap/HUE-kickoff/team-introduction/SRE-1.mp4";
         String target2 = "D:/worksap/HUE-kickoff/team-introduction/SRE-2.mp4";
 
-        IMediaReader reader = ToolFactory.makeReader(source);
-        CutChecker cutChecker = new CutChecker();
-        reader.addListener(cutChecker);
-        IMediaWriter writer = ToolFactory.makeWriter(target1, reader);
-        cutChecker.addListener(writer);
-
-        boolean updated = false;
-        while (reader.readPacket() == null) {
-            // 15 below is the point to split, in seconds
-            if ((cutChecker.currentTimestamp >= 15 * 1000000) && (!updated)) {
-                cutChecker.removeListener(writer);
-                writer.close();
-                writer = ToolFactory.makeWriter(target2, reader);
-                cutChecker.addListener(writer);
-                updated = true;
-            }
-        }
+        // 15 below is the point to split, in seconds
+        MediaSplitter splitter = new MediaSplitter(source);
+        splitter.extract(0, 15 * 1000000, target1);
+        splitter.extract(15 * 1000000, Long.MAX_VALUE, target2);
     }
 
-    private static class CutChecker extends MediaToolAdapter {
+    @Test
+    public void testSplittingOnlyOne() {
+        String source = "D:/worksap/HUE-kickoff/team-introduction/SRE.mp4";
+        String target3 = "D:/worksap/HUE-kickoff/team-introduction/SRE-3.mp4";
 
-        public long currentTimestamp = 0L;
+        // 15 below is the point to split, in seconds
+        MediaSplitter.extract(source, 15 * 1000000, Long.MAX_VALUE, target3);
+    }
 
-        @Override
-        public void onVideoPicture(IVideoPictureEvent event) {
-            currentTimestamp = event.getTimeStamp();
-            super.onVideoPicture(event);
+    @Test
+    public void testSplittingNearTheEnd() {
+        String source = "D:/worksap/HUE-kickoff/team-introduction/SRE.mp4";
+        String target4 = "D:/worksap/HUE-kickoff/team-introduction/SRE-4.mp4";
+
+        IContainer container = StreamCopier.open(source);
+        long duration = container.getDuration();
+        container.close();
+
+        // a 10 second clip at the end only reads the packets of that clip,
+        // from the key frame before it as the MP4 has its SPS/PPS in its
+        // header
+        MediaSplitter.extract(source, duration - 10 * 1000000, duration,
+                target4);
+
+        IContainer result = StreamCopier.open(target4);
+        try {
+            assertTrue(result.getDuration() >= 10 * 1000000 - 100000);
+        } finally {
+            result.close();
         }
+    }
 
+    @Test
+    public void testSplittingByCutList() {
+        String source = "D:/worksap/HUE-kickoff/team-introduction/SRE.mp4";
+        String prefix = "D:/worksap/HUE-kickoff/team-introduction/SRE-cut-";
+
+        // overlapping ranges, all written in one pass
+        new MediaSplitter(source).split(Arrays.asList(
+                new MediaSplitter.Segment(0, 10 * 1000000, prefix + "1.mp4"),
+                new MediaSplitter.Segment(5 * 1000000, 20 * 1000000, prefix
+                        + "2.mp4"),
+                new MediaSplitter.Segment(30 * 1000000, 35 * 1000000, prefix
+                        + "3.mp4")));
+
+        // extended to the key frames around the range
+        IContainer result = StreamCopier.open(prefix + "2.mp4");
+        try {
+            assertTrue(result.getDuration() >= 15 * 1000000 - 100000);
+        } finally {
+            result.close();
+        }
     }
 
     @Test
-    public void testSplittingOnlyOne() {
+    public void testSplittingIntoSegments() {
         String source = "D:/worksap/HUE-kickoff/team-introduction/SRE.mp4";
-        String target3 = "D:/worksap/HUE-kickoff/team-introduction/SRE-3.mp4";
 
-        IMediaReader reader = ToolFactory.makeReader(source);
-        CutChecker cutChecker = new CutChecker();
-        reader.addListener(cutChecker);
-
-        boolean updated = false;
-        while (reader.readPacket() == null) {
-            // 15 below is the point to split, in seconds
-            if ((cutChecker.currentTimestamp >= 15 * 1000000) && (!updated)) {
-                IMediaWriter writer = ToolFactory.makeWriter(target3, reader);
-                cutChecker.addListener(writer);
-                updated = true;
-            }
-        }
+        MediaSplitter splitter = new MediaSplitter(source);
+        splitter.setFrameAccurate(false);
+        List<String> segments = splitter.split(10 * 1000000,
+                "D:/worksap/HUE-kickoff/team-introduction/SRE-%03d.ts");
+
+        IContainer container = StreamCopier.open(source);
+        long duration = container.getDuration();
+        container.close();
+        assertTrue(segments.size() <= (duration + 10 * 1000000 - 1)
+                / (10 * 1000000));
+        for (String segment : segments)
+            assertTrue(segment, new File(segment).length() > 0);
+    }
+
+    @Test
+    public void testSplittingIntoSegmentsShorterThanGops() {
+        String source = "D:/worksap/HUE-kickoff/team-introduction/SRE.mp4";
+
+        // most 100 ms segments have no key frame, their GOPs going to the
+        // segment before, and only the segments written are returned
+        MediaSplitter splitter = new MediaSplitter(source);
+        splitter.setFrameAccurate(false);
+        List<String> segments = splitter.split(100000,
+                "D:/worksap/HUE-kickoff/team-introduction/SRE-short-%05d.ts");
+
+        IContainer container = StreamCopier.open(source);
+        long duration = container.getDuration();
+        container.close();
+        assertTrue(segments.size() > 0);
+        assertTrue(segments.size() < duration / 100000);
+        for (String segment : segments)
+            assertTrue(segment, new File(segment).length() > 0);
     }
 
 }
@@ -0,0 +1,128 @@
+package video;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+
+import com.xuggle.xuggler.IVideoPicture;
+
+/**
+ * Blends a translucent image, such as a logo, into the YUV planes of
+ * decoded pictures, like {@link ImageOverlay} does into frames.
+ *
+ * With it the media reader does not need to generate a
+ * {@link BufferedImage} per picture, converting the whole picture from YUV to
+ * BGR for the overlay and the encoder converting it back: the overlay is
+ * converted to YUV once, and each picture only gets the pixels under the
+ * overlay changed. Pictures must be YUV420P, which most decoders output, or
+ * the full range YUVJ420P of MJPEG.
+ */
+public class YuvOverlay {
+    private final BufferedImage mImage;
+    private int mX;
+    private int mY;
+    private float mOpacity = 1;
+
+    // the part of the overlay which is not transparent, in overlay
+    // coordinates
+
+    private Rectangle mCrop;
+
+    // the converted overlay, null when it must be converted again
+
+    private YuvPlanes.Patch mPatch;
+
+    private final YuvPlanes mPlanes = new YuvPlanes();
+
+    /**
+     * Create an overlay, at the top left corner and opaque.
+     *
+     * @param image the overlay, with or without alpha
+     */
+
+    public YuvOverlay(BufferedImage image) {
+        mImage = image;
+    }
+
+    /** Where the top left corner of the overlay goes in the pictures. */
+
+    public void setPosition(int x, int y) {
+        mX = x;
+        mY = y;
+        if (mPatch != null
+                && !mPatch.fits(mCrop.width, mCrop.height, x + mCrop.x, y
+                        + mCrop.y, mPatch.isFullRange()))
+            mPatch = null;
+    }
+
+    /** The opacity of the overlay, from 0 to 1, multiplied with its alpha. */
+
+    public void setOpacity(float opacity) {
+        if (opacity < 0 || opacity > 1)
+            throw new IllegalArgumentException("invalid opacity " + opacity);
+        mOpacity = opacity;
+        mPatch = null;
+    }
+
+    /**
+     * The area of the pictures the overlay changes, before clipping to the
+     * pictures. Empty if the overlay is fully transparent.
+     */
+
+    public Rectangle getBounds() {
+        if (mPatch == null)
+            render(false);
+        return new Rectangle(mX + mCrop.x, mY + mCrop.y, mCrop.width,
+                mCrop.height);
+    }
+
+    /**
+     * Blend the overlay into a picture.
+     *
+     * @param picture a YUV420P or YUVJ420P picture, changed in place
+     */
+
+    public void apply(IVideoPicture picture) {
+        mPlanes.set(picture);
+        apply(mPlanes);
+    }
+
+    // blend the overlay into planes
+
+    void apply(YuvPlanes planes) {
+        if (mPatch == null || mPatch.isFullRange() != planes.isFullRange())
+            render(planes.isFullRange());
+        if (!mCrop.isEmpty())
+            planes.blend(mPatch, mX + mCrop.x, mY + mCrop.y);
+    }
+
+    // convert the overlay, cropped to its pixels which are not transparent
+    // once the opacity is applied
+
+    private void render(boolean fullRange) {
+        int width = mImage.getWidth();
+        int height = mImage.getHeight();
+        int[] argb = mImage.getRGB(0, 0, width, height, null, 0, width);
+
+        int left = width, top = height, right = -1, bottom = -1;
+        for (int i = 0; i < argb.length; i++) {
+            if (Math.round((argb[i] >>> 24) * mOpacity) != 0) {
+                int x = i % width, y = i / width;
+                left = Math.min(left, x);
+                right = Math.max(right, x);
+                top = Math.min(top, y);
+                bottom = Math.max(bottom, y);
+            }
+        }
+        if (right < 0)
+            left = top = right = bottom = 0;
+        else {
+            right++;
+            bottom++;
+        }
+        mCrop = new Rectangle(left, top, right - left, bottom - top);
+
+        mPatch = new YuvPlanes.Patch(mCrop.width, mCrop.height, mX + left, mY
+                + top, fullRange);
+        mPatch.set(argb, top * width + left, width, mOpacity, true);
+    }
+}
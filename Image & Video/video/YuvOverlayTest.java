@@ -0,0 +1,145 @@
+package video;
+
+import static org.junit.Assert.assertEquals;
+
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class YuvOverlayTest {
+
+    private static final int WIDTH = 32;
+    private static final int HEIGHT = 16;
+
+    // line sizes padded as by the decoder
+
+    private static final int LUMA_STRIDE = 48;
+    private static final int CHROMA_STRIDE = 24;
+
+    private static final int GRAY = 100;
+
+    @Test
+    public void testOpaque() {
+        int red = Color.RED.getRGB();
+        YuvOverlay overlay = new YuvOverlay(image(10, 6, red));
+        overlay.setPosition(3, 5);
+        ByteBuffer data = gray();
+        YuvPlanes planes = planes(data);
+        overlay.apply(planes);
+
+        Rectangle bounds = overlay.getBounds();
+        for (int y = 0; y < HEIGHT; y++)
+            for (int x = 0; x < WIDTH; x++)
+                assertEquals(x + "," + y, bounds.contains(x, y) ? YuvPlanes
+                        .luma(red) : GRAY, planes.get(0, x, y));
+
+        // chroma samples fully covered, half covered on the left edge and a
+        // quarter in the corner
+        assertEquals(YuvPlanes.u(red), planes.get(1, 2, 3));
+        assertEquals(YuvPlanes.v(red), planes.get(2, 2, 3));
+        assertEquals((128 + YuvPlanes.v(red) + 1) / 2, planes.get(2, 1, 3), 1);
+        assertEquals((3 * 128 + YuvPlanes.v(red) + 2) / 4, planes.get(2, 1, 2),
+                1);
+        assertEquals(128, planes.get(2, 0, 3));
+        assertEquals(128, planes.get(1, 7, 3));
+
+        // the padding is left alone
+        for (int x = WIDTH; x < LUMA_STRIDE; x++)
+            assertEquals(0, data.get(5 * LUMA_STRIDE + x));
+    }
+
+    @Test
+    public void testTranslucent() {
+        int white = Color.WHITE.getRGB();
+        YuvOverlay overlay = new YuvOverlay(image(4, 4, 0x80ffffff));
+        overlay.setPosition(2, 2);
+        overlay.setOpacity(0.5f);
+        YuvPlanes planes = planes(gray());
+        overlay.apply(planes);
+
+        // a quarter of white over gray
+        assertEquals((3 * GRAY + YuvPlanes.luma(white)) / 4, planes.get(0, 3,
+                3), 1);
+        assertEquals(128, planes.get(1, 1, 1));
+        assertEquals(GRAY, planes.get(0, 6, 3));
+    }
+
+    @Test
+    public void testClipped() {
+        int blue = Color.BLUE.getRGB();
+        YuvOverlay overlay = new YuvOverlay(image(8, 8, blue));
+        overlay.setPosition(-3, HEIGHT - 5);
+        YuvPlanes planes = planes(gray());
+        overlay.apply(planes);
+
+        assertEquals(YuvPlanes.luma(blue), planes.get(0, 0, HEIGHT - 1));
+        assertEquals(YuvPlanes.luma(blue), planes.get(0, 4, HEIGHT - 5));
+        assertEquals(GRAY, planes.get(0, 5, HEIGHT - 5));
+        assertEquals(GRAY, planes.get(0, 0, HEIGHT - 6));
+        assertEquals(YuvPlanes.u(blue), planes.get(1, 0, HEIGHT / 2 - 1));
+
+        // moved to the other parity, and fully out of the picture
+        overlay.setPosition(WIDTH, 0);
+        overlay.apply(planes);
+        overlay.setPosition(-9, -8);
+        overlay.apply(planes);
+        assertEquals(GRAY, planes.get(0, WIDTH - 1, 0));
+    }
+
+    @Test
+    public void testFullRange() {
+        // the same overlay on limited range planes, then on the full range
+        // ones of MJPEG, white and black reaching 255 and 0
+        YuvOverlay overlay = new YuvOverlay(image(4, 2, Color.WHITE.getRGB()));
+        overlay.setPosition(2, 2);
+        YuvPlanes planes = planes(gray());
+        overlay.apply(planes);
+        assertEquals(235, planes.get(0, 2, 2));
+
+        planes = planes(gray());
+        planes.setFullRange(true);
+        overlay.apply(planes);
+        assertEquals(255, planes.get(0, 2, 2));
+        assertEquals(128, planes.get(1, 1, 1));
+
+        int red = Color.RED.getRGB();
+        assertEquals(0.299 * 255, YuvPlanes.luma(red, true), 1);
+        assertEquals(85, YuvPlanes.u(red, true));
+        assertEquals(255, YuvPlanes.v(red, true));
+        assertEquals(0, YuvPlanes.luma(Color.BLACK.getRGB(), true));
+    }
+
+    private static BufferedImage image(int width, int height, int argb) {
+        BufferedImage image = new BufferedImage(width, height,
+                BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < height; y++)
+            for (int x = 0; x < width; x++)
+                image.setRGB(x, y, argb);
+        return image;
+    }
+
+    // gray planes, with padding left at 0
+
+    private static ByteBuffer gray() {
+        ByteBuffer data = ByteBuffer.allocateDirect(LUMA_STRIDE * HEIGHT + 2
+                * CHROMA_STRIDE * HEIGHT / 2);
+        for (int y = 0; y < HEIGHT; y++)
+            for (int x = 0; x < WIDTH; x++)
+                data.put(y * LUMA_STRIDE + x, (byte) GRAY);
+        for (int y = 0; y < HEIGHT; y++)
+            for (int x = 0; x < WIDTH / 2; x++)
+                data.put(LUMA_STRIDE * HEIGHT + y * CHROMA_STRIDE + x,
+                        (byte) 128);
+        return data;
+    }
+
+    private static YuvPlanes planes(ByteBuffer data) {
+        YuvPlanes planes = new YuvPlanes();
+        planes.set(data, WIDTH, HEIGHT, LUMA_STRIDE, CHROMA_STRIDE,
+                CHROMA_STRIDE);
+        return planes;
+    }
+}
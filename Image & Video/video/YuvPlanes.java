@@ -0,0 +1,342 @@
+package video;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.xuggle.xuggler.IPixelFormat;
+import com.xuggle.xuggler.IVideoPicture;
+
+/**
+ * The planes of a YUV 4:2:0 picture, as decoded from most video and as
+ * encoded, so that overlays can be blended into decoded pictures with no
+ * conversion of the whole picture to a {@link java.awt.image.BufferedImage}
+ * and back.
+ *
+ * Colors are converted with the BT.601 limited range coefficients the
+ * encoder's converter uses for standard definition and web video, or with
+ * the full range ones of JPEG for YUVJ420P pictures, as decoded from MJPEG
+ * and many phone clips. Only the pixels of the overlays are read and
+ * written.
+ */
+final class YuvPlanes {
+    private ByteBuffer mData;
+
+    // a view of the data for bulk writes, which move its position
+
+    private ByteBuffer mWriter;
+
+    private int mWidth;
+    private int mHeight;
+    private boolean mFullRange;
+
+    // the offsets and line sizes of the Y, U and V planes
+
+    private final int[] mOffsets = new int[3];
+    private final int[] mStrides = new int[3];
+
+    /**
+     * Use the planes of a picture.
+     *
+     * @param picture a complete YUV420P or YUVJ420P picture
+     */
+
+    void set(IVideoPicture picture) {
+        IPixelFormat.Type type = picture.getPixelType();
+        if (type != IPixelFormat.Type.YUV420P
+                && type != IPixelFormat.Type.YUVJ420P)
+            throw new RuntimeException("could not filter " + type
+                    + " picture");
+        set(picture.getByteBuffer(), picture.getWidth(), picture.getHeight(),
+                picture.getDataLineSize(0), picture.getDataLineSize(1),
+                picture.getDataLineSize(2));
+        mFullRange = type == IPixelFormat.Type.YUVJ420P;
+    }
+
+    /**
+     * Use limited range planes stored one after the other.
+     *
+     * @param data the planes
+     * @param width the width of the picture
+     * @param height the height of the picture
+     * @param lumaStride the line size of the Y plane
+     * @param uStride the line size of the U plane
+     * @param vStride the line size of the V plane
+     */
+
+    void set(ByteBuffer data, int width, int height, int lumaStride,
+            int uStride, int vStride) {
+        mData = data;
+        mWriter = data.duplicate();
+        mWidth = width;
+        mHeight = height;
+        mStrides[0] = lumaStride;
+        mStrides[1] = uStride;
+        mStrides[2] = vStride;
+        mOffsets[0] = 0;
+        mOffsets[1] = lumaStride * height;
+        mOffsets[2] = mOffsets[1] + uStride * ((height + 1) / 2);
+        mFullRange = false;
+    }
+
+    /** Whether the samples use the full range, from 0 to 255. */
+
+    boolean isFullRange() {
+        return mFullRange;
+    }
+
+    void setFullRange(boolean fullRange) {
+        mFullRange = fullRange;
+    }
+
+    int getWidth() {
+        return mWidth;
+    }
+
+    int getHeight() {
+        return mHeight;
+    }
+
+    /** A sample of a plane, 0 for Y, 1 for U and 2 for V, in its pixels. */
+
+    int get(int plane, int x, int y) {
+        return mData.get(mOffsets[plane] + y * mStrides[plane] + x) & 0xff;
+    }
+
+    /**
+     * Blend a patch into the planes, clipped to the picture.
+     *
+     * @param patch the patch
+     * @param x where its left edge goes, of the parity of the patch
+     * @param y where its top edge goes, of the parity of the patch
+     */
+
+    void blend(Patch patch, int x, int y) {
+        if ((x & 1) != patch.mParityX || (y & 1) != patch.mParityY)
+            throw new IllegalArgumentException("patch for other parity at "
+                    + x + "," + y);
+        if (patch.mFullRange != mFullRange)
+            throw new IllegalArgumentException("patch for other range");
+
+        int left = Math.max(x, 0);
+        int right = Math.min(x + patch.mWidth, mWidth);
+        for (int row = Math.max(y, 0); row < Math.min(y + patch.mHeight,
+                mHeight); row++)
+            blendRow(0, row, left, right, patch.mLuma, patch.mLumaAlpha,
+                    (row - y) * patch.mWidth - x, patch.mOpaqueRows[row - y]);
+
+        // the chroma samples covering the patch
+        int chromaX = (x - patch.mParityX) / 2;
+        int chromaY = (y - patch.mParityY) / 2;
+        left = Math.max(chromaX, 0);
+        right = Math.min(chromaX + patch.mChromaWidth, (mWidth + 1) / 2);
+        for (int row = Math.max(chromaY, 0); row < Math.min(chromaY
+                + patch.mChromaHeight, (mHeight + 1) / 2); row++) {
+            int start = (row - chromaY) * patch.mChromaWidth - chromaX;
+            blendRow(1, row, left, right, patch.mU, patch.mChromaAlpha, start,
+                    false);
+            blendRow(2, row, left, right, patch.mV, patch.mChromaAlpha, start,
+                    false);
+        }
+    }
+
+    // blend the samples of a row of a patch, at start + x, into a row of a
+    // plane
+
+    private void blendRow(int plane, int row, int left, int right,
+            byte[] samples, int[] alphas, int start, boolean opaque) {
+        if (left >= right)
+            return;
+        int d = mOffsets[plane] + row * mStrides[plane];
+        if (opaque) {
+            mWriter.position(d + left);
+            mWriter.put(samples, start + left, right - left);
+            return;
+        }
+        for (int x = left; x < right; x++) {
+            int a = alphas[start + x];
+            if (a == 0)
+                continue;
+            int s = samples[start + x] & 0xff;
+            if (a != 256)
+                s = (s * a + (mData.get(d + x) & 0xff) * (256 - a) + 128) >> 8;
+            mData.put(d + x, (byte) s);
+        }
+    }
+
+    // the BT.601 limited range conversion of a packed RGB color
+
+    static int luma(int rgb) {
+        return luma(rgb, false);
+    }
+
+    static int u(int rgb) {
+        return u(rgb, false);
+    }
+
+    static int v(int rgb) {
+        return v(rgb, false);
+    }
+
+    // the BT.601 conversion of a packed RGB color, limited or full range
+
+    static int luma(int rgb, boolean fullRange) {
+        int r = (rgb >> 16) & 0xff, g = (rgb >> 8) & 0xff, b = rgb & 0xff;
+        return fullRange ? (77 * r + 150 * g + 29 * b + 128) >> 8
+                : ((66 * r + 129 * g + 25 * b + 128) >> 8) + 16;
+    }
+
+    // full range chroma reaches 256 for pure blue or red, once rounded
+
+    static int u(int rgb, boolean fullRange) {
+        int r = (rgb >> 16) & 0xff, g = (rgb >> 8) & 0xff, b = rgb & 0xff;
+        if (fullRange)
+            return Math.min(255,
+                    ((-43 * r - 85 * g + 128 * b + 128) >> 8) + 128);
+        return ((-38 * r - 74 * g + 112 * b + 128) >> 8) + 128;
+    }
+
+    static int v(int rgb, boolean fullRange) {
+        int r = (rgb >> 16) & 0xff, g = (rgb >> 8) & 0xff, b = rgb & 0xff;
+        if (fullRange)
+            return Math.min(255,
+                    ((128 * r - 107 * g - 21 * b + 128) >> 8) + 128);
+        return ((112 * r - 94 * g - 18 * b + 128) >> 8) + 128;
+    }
+
+    /**
+     * An image converted to YUV 4:2:0 samples with alpha, for a position of
+     * a given parity in the pictures, since each chroma sample covers two by
+     * two pixels.
+     */
+
+    static final class Patch {
+        private final int mWidth;
+        private final int mHeight;
+        private final int mParityX;
+        private final int mParityY;
+        private final boolean mFullRange;
+
+        // the Y samples and their alpha from 0 to 256, row by row, and
+        // whether each row is opaque
+
+        private final byte[] mLuma;
+        private final int[] mLumaAlpha;
+        private final boolean[] mOpaqueRows;
+
+        // the chroma samples covering the patch, with the share of their
+        // pixels covered by it as alpha
+
+        private final int mChromaWidth;
+        private final int mChromaHeight;
+        private final byte[] mU;
+        private final byte[] mV;
+        private final int[] mChromaAlpha;
+
+        // the sums of the chroma samples of the pixels, weighted by alpha
+
+        private final int[] mSumU;
+        private final int[] mSumV;
+        private final int[] mSumAlpha;
+
+        /**
+         * Create a transparent patch.
+         *
+         * @param width the width of the patch
+         * @param height the height of the patch
+         * @param parityX the parity of the x where it goes
+         * @param parityY the parity of the y where it goes
+         * @param fullRange whether it goes into full range planes
+         */
+
+        Patch(int width, int height, int parityX, int parityY,
+                boolean fullRange) {
+            mWidth = width;
+            mHeight = height;
+            mParityX = parityX & 1;
+            mParityY = parityY & 1;
+            mFullRange = fullRange;
+            mLuma = new byte[width * height];
+            mLumaAlpha = new int[width * height];
+            mOpaqueRows = new boolean[height];
+            mChromaWidth = (mParityX + width + 1) / 2;
+            mChromaHeight = (mParityY + height + 1) / 2;
+            mU = new byte[mChromaWidth * mChromaHeight];
+            mV = new byte[mChromaWidth * mChromaHeight];
+            mChromaAlpha = new int[mChromaWidth * mChromaHeight];
+            mSumU = new int[mU.length];
+            mSumV = new int[mV.length];
+            mSumAlpha = new int[mChromaAlpha.length];
+        }
+
+        int getWidth() {
+            return mWidth;
+        }
+
+        int getHeight() {
+            return mHeight;
+        }
+
+        boolean isFullRange() {
+            return mFullRange;
+        }
+
+        boolean fits(int width, int height, int x, int y, boolean fullRange) {
+            return mWidth == width && mHeight == height
+                    && mParityX == (x & 1) && mParityY == (y & 1)
+                    && mFullRange == fullRange;
+        }
+
+        /**
+         * Convert the pixels of an image.
+         *
+         * @param argb the pixels, row by row
+         * @param offset the first pixel
+         * @param scan the distance between rows
+         * @param opacity multiplied with the alpha of the pixels
+         * @param alpha false if the pixels are opaque whatever their high
+         *        byte
+         */
+
+        void set(int[] argb, int offset, int scan, float opacity,
+                boolean alpha) {
+            int[] sumU = mSumU;
+            int[] sumV = mSumV;
+            int[] sumAlpha = mSumAlpha;
+            Arrays.fill(sumU, 0);
+            Arrays.fill(sumV, 0);
+            Arrays.fill(sumAlpha, 0);
+
+            for (int y = 0; y < mHeight; y++) {
+                boolean opaque = true;
+                int c = (y + mParityY) / 2 * mChromaWidth;
+                for (int x = 0; x < mWidth; x++) {
+                    int p = argb[offset + y * scan + x];
+                    int a = alpha ? p >>> 24 : 0xff;
+                    if (opacity != 1)
+                        a = Math.round(a * opacity);
+                    int i = y * mWidth + x;
+                    mLuma[i] = (byte) luma(p, mFullRange);
+                    mLumaAlpha[i] = a + (a >> 7);
+                    opaque &= a == 0xff;
+
+                    int j = c + (x + mParityX) / 2;
+                    sumU[j] += u(p, mFullRange) * a;
+                    sumV[j] += v(p, mFullRange) * a;
+                    sumAlpha[j] += a;
+                }
+                mOpaqueRows[y] = opaque;
+            }
+
+            // each chroma sample blended by the share of the four pixels it
+            // covers in the patch
+            for (int j = 0; j < mChromaAlpha.length; j++) {
+                int a = sumAlpha[j];
+                if (a != 0) {
+                    mU[j] = (byte) ((sumU[j] + a / 2) / a);
+                    mV[j] = (byte) ((sumV[j] + a / 2) / a);
+                }
+                mChromaAlpha[j] = (a + 2) / 4 + ((a + 2) / 4 >> 7);
+            }
+        }
+    }
+}